@@ -211,6 +211,8 @@ dependencies {
     testImplementation(libs.powermock.api.mockito2)
     testImplementation(libs.mockito.core) // powermock isn't compatible with mockito 4
     testImplementation(libs.jsonassert)
+    testImplementation(libs.jmh.core) // For benchmarks, run them with their main()
+    testAnnotationProcessor(libs.jmh.generator.annprocess)
 
     // For device controls
     implementation(libs.reactive.streams)
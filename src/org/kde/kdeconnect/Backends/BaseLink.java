@@ -17,6 +17,7 @@ import org.kde.kdeconnect.NetworkPacket;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 
 
 public abstract class BaseLink {
@@ -68,4 +69,23 @@ public abstract class BaseLink {
     //TO OVERRIDE, should be sync. If sendPayloadFromSameThread is false, it should only block to send the packet but start a separate thread to send the payload.
     @WorkerThread
     public abstract boolean sendPacket(@NonNull NetworkPacket np, @NonNull Device.SendPacketStatusCallback callback, boolean sendPayloadFromSameThread) throws IOException;
+
+    /**
+     * Sends several packets in order, as {@link #sendPacket} would with sendPayloadFromSameThread set to false.
+     * Links that can send them with fewer writes than one per packet should override this.
+     *
+     * @return for each packet, whether it was sent
+     */
+    @WorkerThread
+    public boolean[] sendPackets(@NonNull List<NetworkPacket> nps, @NonNull List<Device.SendPacketStatusCallback> callbacks) {
+        boolean[] sent = new boolean[nps.size()];
+        for (int i = 0; i < nps.size(); i++) {
+            try {
+                sent[i] = sendPacket(nps.get(i), callbacks.get(i), false);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return sent;
+    }
 }
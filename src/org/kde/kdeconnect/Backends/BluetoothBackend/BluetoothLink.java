@@ -16,20 +16,20 @@ import androidx.annotation.WorkerThread;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.kde.kdeconnect.Backends.BaseLink;
+import org.kde.kdeconnect.Backends.FrameDecoder;
 import org.kde.kdeconnect.Device;
 import org.kde.kdeconnect.DeviceInfo;
+import org.kde.kdeconnect.Helpers.Metrics;
 import org.kde.kdeconnect.NetworkPacket;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.Reader;
 import java.util.UUID;
 
-import kotlin.text.Charsets;
-
 public class BluetoothLink extends BaseLink {
+    private static final Metrics.Timer writeTimer = Metrics.timer("link.bluetooth.write");
+
     private final ConnectionMultiplexer connection;
     private final InputStream input;
     private final OutputStream output;
@@ -42,29 +42,16 @@ public class BluetoothLink extends BaseLink {
     private final Thread receivingThread = new Thread(new Runnable() {
         @Override
         public void run() {
-            StringBuilder sb = new StringBuilder();
+            FrameDecoder decoder = new FrameDecoder(this::processMessage);
             try {
-                Reader reader = new InputStreamReader(input, Charsets.UTF_8);
-                char[] buf = new char[512];
+                byte[] buf = new byte[8192];
                 while (continueAccepting) {
-                    while (sb.indexOf("\n") == -1 && continueAccepting) {
-                        int charsRead;
-                        if ((charsRead = reader.read(buf)) > 0) {
-                            sb.append(buf, 0, charsRead);
-                        }
-                        if (charsRead < 0) {
-                            disconnect();
-                            return;
-                        }
-                    }
-                    if (!continueAccepting) break;
-
-                    int endIndex = sb.indexOf("\n");
-                    if (endIndex != -1) {
-                        String message = sb.substring(0, endIndex + 1);
-                        sb.delete(0, endIndex + 1);
-                        processMessage(message);
+                    int bytesRead = input.read(buf);
+                    if (bytesRead < 0) {
+                        disconnect();
+                        return;
                     }
+                    decoder.feed(buf, 0, bytesRead);
                 }
             } catch (IOException e) {
                 Log.e("BluetoothLink/receiving", "Connection to " + remoteAddress.getAddress() + " likely broken.", e);
@@ -72,10 +59,10 @@ public class BluetoothLink extends BaseLink {
             }
         }
 
-        private void processMessage(String message) {
+        private void processMessage(byte[] data, int offset, int length) {
             NetworkPacket np;
             try {
-                np = NetworkPacket.unserialize(message);
+                np = NetworkPacket.unserialize(data, offset, length);
             } catch (JSONException e) {
                 Log.e("BluetoothLink/receiving", "Unable to parse message.", e);
                 return;
@@ -132,9 +119,13 @@ public class BluetoothLink extends BaseLink {
     }
 
     private void sendMessage(NetworkPacket np) throws JSONException, IOException {
-        byte[] message = np.serialize().getBytes(Charsets.UTF_8);
+        byte[] message = np.serializeToBytes();
         Log.i("BluetoothLink", "Beginning to send message");
+        long start = System.nanoTime();
         output.write(message);
+        // Writing only queues the message for the writer thread, wait until it's on the socket
+        output.flush();
+        writeTimer.recordSince(start);
         Log.i("BluetoothLink", "Finished sending message");
     }
 
@@ -201,7 +201,7 @@ public class BluetoothLinkProvider extends BaseLinkProvider {
                 NetworkPacket np = myDeviceInfo.toIdentityPacket();
                 np.set("certificate", Base64.encodeToString(SslHelper.certificate.getEncoded(), 0));
 
-                byte[] message = np.serialize().getBytes(Charsets.UTF_8);
+                byte[] message = np.serializeToBytes();
                 outputStream.write(message);
                 outputStream.flush();
 
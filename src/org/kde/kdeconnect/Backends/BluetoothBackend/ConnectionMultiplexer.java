@@ -13,16 +13,50 @@ import org.kde.kdeconnect.Helpers.ThreadHelper;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 
+/**
+ * Runs several byte streams (channels) over a single Bluetooth socket.
+ * <p>
+ * Every message has a 19 byte header: type, payload length (unsigned 16 bits) and channel id.
+ * Writes are flow controlled: a receiver grants bytes with MESSAGE_READ and the sender never sends
+ * more than it was granted. We grant credits as soon as a channel opens and again whenever a
+ * quarter of its window is free, so the sender doesn't have to wait for a round trip once the
+ * reader caught up.
+ * </p><p>
+ * All messages are sent by a single writer thread, so no lock is held while writing to the socket.
+ * Data written to a channel is buffered until the writer sends it. Control messages go first, then
+ * the default channel (which carries the packets), then the other channels take turns. That way a
+ * file transfer doesn't delay the packets sent meanwhile by more than one write.
+ * </p><p>
+ * Protocol version 2 adds the largest MESSAGE_WRITE payload each end accepts to the version
+ * message. Version 1 ends can't have more than {@link #V1_MAX_WRITE_SIZE} bytes granted at once,
+ * so nothing is granted until we know which version the other end speaks.
+ * </p>
+ */
 public final class ConnectionMultiplexer implements Closeable {
     private static final UUID DEFAULT_CHANNEL = UUID.fromString("a0d0aaf4-1072-4d81-aa35-902a954b1266");
-    private static final int BUFFER_SIZE = 4096;
+
+    private static final int PROTOCOL_VERSION_MIN = 1;
+    private static final int PROTOCOL_VERSION_MAX = 2;
+    private static final int HEADER_SIZE = 19;
+    private static final int V1_MAX_WRITE_SIZE = 4096;
+    // The most the 16 bit length field allows
+    private static final int MAX_WRITE_SIZE = 0xFFFF;
+    // Bigger writes would hold the socket for too long, delaying the other channels
+    private static final int MAX_OUTGOING_WRITE_SIZE = 4 * 1024;
+    // How many bytes each channel buffers, and so how many we can grant to a version 2 sender
+    private static final int RECEIVE_WINDOW = 64 * 1024;
+    // How many bytes written to a channel can wait for the writer thread
+    private static final int SEND_BUFFER_SIZE = 64 * 1024;
 
     private static final class ChannelInputStream extends InputStream implements Closeable {
         final Channel channel;
@@ -100,11 +134,15 @@ public final class ConnectionMultiplexer implements Closeable {
     private static final class Channel implements Closeable {
         final ConnectionMultiplexer multiplexer;
         final UUID id;
-        final ByteBuffer read_buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        final ByteBuffer read_buffer = ByteBuffer.allocate(RECEIVE_WINDOW);
         final Object lock = new Object();
-        boolean open = true;
+        volatile boolean open = true;
         int requestedReadAmount = 0; //Number of times we requested some bytes from the channel
+
+        // Sending side, guarded by the multiplexer's writeLock
+        ByteBuffer write_buffer; // Allocated on the first write, channels are often only read from
         int freeWriteAmount = 0; //Number of times we can safely send bytes over the channel
+        boolean scheduled = false; // Whether it's in sendOrder
 
         Channel(ConnectionMultiplexer multiplexer, UUID id) {
             this.multiplexer = multiplexer;
@@ -117,36 +155,40 @@ public final class ConnectionMultiplexer implements Closeable {
             }
         }
 
+        /**
+         * @return how many bytes we can grant the sender now. Must hold lock.
+         */
+        int grantableAmount() {
+            int window = multiplexer.receiveWindow;
+            int amount = window - read_buffer.position() - requestedReadAmount;
+            return (amount > 0 && amount >= window / 4) ? amount : 0;
+        }
+
         public int read(byte[] b, int off, int len) {
             if (len == 0) return 0;
 
             while (true) {
+                int numread;
                 boolean makeRequest;
                 synchronized (lock) {
-                    if (read_buffer.position() >= len) {
-                        read_buffer.flip();
-                        read_buffer.get(b, off, len);
-                        read_buffer.compact();
-
-                        //TODO: non-blocking (opportunistic) read request
-                        return len;
-                    } else if (read_buffer.position() > 0) {
-                        int numread = read_buffer.position();
+                    numread = Math.min(len, read_buffer.position());
+                    if (numread > 0) {
                         read_buffer.flip();
                         read_buffer.get(b, off, numread);
                         read_buffer.compact();
-
-                        //TODO: non-blocking (opportunistic) read request
-                        return numread;
+                    } else if (!open) {
+                        return -1;
                     }
-
-                    if (!open) return -1;
-                    makeRequest = requestedReadAmount < BUFFER_SIZE;
+                    makeRequest = grantableAmount() > 0;
                 }
 
+                // Grant the space we freed right away, so the sender can keep going while we process this
                 if (makeRequest) {
                     multiplexer.readRequest(id);
                 }
+                if (numread > 0) {
+                    return numread;
+                }
 
                 synchronized (lock) {
                     if (!open) return -1;
@@ -175,40 +217,39 @@ public final class ConnectionMultiplexer implements Closeable {
                 open = false;
                 lock.notifyAll();
             }
+            multiplexer.wakeWriters();
         }
 
-        public void write(byte[] data, int off, int len) throws IOException {
-            while (len > 0) {
-                synchronized (lock) {
-                    while (true) {
-                        if (!open) throw new IOException("Connection closed!");
-
-                        if (freeWriteAmount == 0) {
-                            try {
-                                lock.wait();
-                            } catch (Exception ignored) {}
-                        } else {
-                            break;
-                        }
-                    }
-                }
+        /**
+         * @return whether the writer thread can send some of this channel's data now. Must hold writeLock.
+         */
+        boolean canSend() {
+            return open && freeWriteAmount > 0 && write_buffer != null && write_buffer.position() > 0;
+        }
 
-                int num_written = multiplexer.writeRequest(id, data, off, len);
-                off += num_written;
-                len -= num_written;
-            }
+        public void write(byte[] data, int off, int len) throws IOException {
+            multiplexer.send(this, data, off, len);
         }
 
         void flush() throws IOException {
-            multiplexer.flush();
+            multiplexer.flush(this);
         }
     }
 
     private BluetoothSocket socket;
     private final Map<UUID, Channel> channels = new HashMap<>();
+    private final Channel defaultChannel;
     private final Object lock = new Object();
-    private boolean open = true;
+    private volatile boolean open = true;
     private boolean receivedProtocolVersion = false;
+    private volatile int peerMaxWriteSize = V1_MAX_WRITE_SIZE;
+    private volatile int receiveWindow = 0; // Set once we know the protocol version
+
+    // What the writer thread has to send, guarded by writeLock. Never hold writeLock while taking lock or a channel's lock.
+    private final Object writeLock = new Object();
+    private final ArrayDeque<byte[]> controlMessages = new ArrayDeque<>();
+    private final ArrayDeque<Channel> sendOrder = new ArrayDeque<>(); // Channels with data to send, other than the default one
+    private Channel writingChannel; // The channel whose data the writer thread is sending right now
 
     private static final byte MESSAGE_PROTOCOL_VERSION = 0; //Negotiate the protocol version
     private static final byte MESSAGE_OPEN_CHANNEL = 1; //Open a new channel
@@ -218,22 +259,25 @@ public final class ConnectionMultiplexer implements Closeable {
 
     public ConnectionMultiplexer(BluetoothSocket socket) throws IOException {
         this.socket = socket;
-        channels.put(DEFAULT_CHANNEL, new Channel(this, DEFAULT_CHANNEL));
+        defaultChannel = new Channel(this, DEFAULT_CHANNEL);
+        channels.put(DEFAULT_CHANNEL, defaultChannel);
 
         sendProtocolVersion();
 
         ThreadHelper.execute(new ListenRunnable(socket));
+        ThreadHelper.execute(new WriteRunnable(socket));
     }
 
     private void sendProtocolVersion() throws IOException {
-        byte[] data = new byte[23];
+        byte[] data = new byte[HEADER_SIZE + 8];
         ByteBuffer message = ByteBuffer.wrap(data).order(ByteOrder.BIG_ENDIAN);
 
         message.put(MESSAGE_PROTOCOL_VERSION);
-        message.putShort((short) 4);
-        message.position(19);
-        message.putShort((short) 1);
-        message.putShort((short) 1);
+        message.putShort((short) 8);
+        message.position(HEADER_SIZE);
+        message.putShort((short) PROTOCOL_VERSION_MIN);
+        message.putShort((short) PROTOCOL_VERSION_MAX);
+        message.putInt(MAX_WRITE_SIZE); // Since version 2
 
         socket.getOutputStream().write(data);
     }
@@ -245,33 +289,46 @@ public final class ConnectionMultiplexer implements Closeable {
                 channel.doClose();
             }
             channels.clear();
-            if (socket.isConnected()) {
+            if (socket != null && socket.isConnected()) {
                 try {
                     socket.close();
                 } catch (IOException ignored) {
                 }
             }
         }
+        wakeWriters();
+    }
+
+    private void wakeWriters() {
+        synchronized (writeLock) {
+            writeLock.notifyAll();
+        }
+    }
+
+    /**
+     * Queues a message without payload, or with a 2 byte one if amount isn't negative
+     */
+    private void sendControlMessage(byte type, UUID id, int amount) {
+        byte[] data = new byte[HEADER_SIZE + (amount >= 0 ? 2 : 0)];
+        ByteBuffer message = ByteBuffer.wrap(data).order(ByteOrder.BIG_ENDIAN);
+        message.put(type);
+        message.putShort((short) (data.length - HEADER_SIZE));
+        message.putLong(id.getMostSignificantBits());
+        message.putLong(id.getLeastSignificantBits());
+        if (amount >= 0) {
+            message.putShort((short) amount);
+        }
+        synchronized (writeLock) {
+            controlMessages.addLast(data);
+            writeLock.notifyAll();
+        }
     }
 
     private void closeChannel(UUID id) {
         synchronized (lock) {
             if (channels.containsKey(id)) {
                 channels.remove(id);
-
-                byte[] data = new byte[19];
-                ByteBuffer message = ByteBuffer.wrap(data);
-                message.order(ByteOrder.BIG_ENDIAN);
-                message.put(MESSAGE_CLOSE_CHANNEL);
-                message.putShort((short) 0);
-                message.putLong(id.getMostSignificantBits());
-                message.putLong(id.getLeastSignificantBits());
-
-                try {
-                    socket.getOutputStream().write(data);
-                } catch (IOException e) {
-                    handleException(e);
-                }
+                sendControlMessage(MESSAGE_CLOSE_CHANNEL, id, -1);
             }
         }
     }
@@ -281,114 +338,117 @@ public final class ConnectionMultiplexer implements Closeable {
             Channel channel = channels.get(id);
             if (channel == null) return;
 
-            byte[] data = new byte[21];
             synchronized (channel.lock) {
                 if (!channel.open) return;
-                if (channel.read_buffer.position() + channel.requestedReadAmount >= BUFFER_SIZE) return;
-                int amount = BUFFER_SIZE - channel.read_buffer.position() - channel.requestedReadAmount;
-
-                ByteBuffer message = ByteBuffer.wrap(data).order(ByteOrder.BIG_ENDIAN);
-                message.put(MESSAGE_READ);
-                message.putShort((short) 2);
-                message.putLong(id.getMostSignificantBits());
-                message.putLong(id.getLeastSignificantBits());
-                message.putShort((short) amount);
-                channel.requestedReadAmount += amount;
-
-                try {
-                    socket.getOutputStream().write(data);
-                } catch (IOException e) {
-                    handleException(e);
+                int amount = channel.grantableAmount();
+                while (amount > 0) {
+                    // A single message can't grant more than an unsigned short
+                    int granted = Math.min(amount, 0xFFFF);
+                    sendControlMessage(MESSAGE_READ, id, granted);
+                    channel.requestedReadAmount += granted;
+                    amount -= granted;
                 }
                 channel.lock.notifyAll();
             }
         }
     }
 
-    private int writeRequest(UUID id, byte[] write_data, int off, int write_len) throws IOException {
-        synchronized (lock) {
-            Channel channel = channels.get(id);
-            if (channel == null) return 0;
-
-            byte[] data = new byte[19 + BUFFER_SIZE];
-            int length;
-            synchronized (channel.lock) {
-                if (!channel.open) return 0;
-                if (channel.freeWriteAmount == 0) return 0;
+    /**
+     * Copies the data to the channel's send buffer, waiting for room in it if needed
+     */
+    private void send(Channel channel, byte[] data, int off, int len) throws IOException {
+        synchronized (writeLock) {
+            while (len > 0) {
+                if (!open || !channel.open) throw new IOException("Connection closed!");
 
-                length = channel.freeWriteAmount;
-                if (write_len < length) {
-                    length = write_len;
+                if (channel.write_buffer == null) {
+                    channel.write_buffer = ByteBuffer.allocate(SEND_BUFFER_SIZE);
                 }
-
-                ByteBuffer message = ByteBuffer.wrap(data).order(ByteOrder.BIG_ENDIAN);
-                message.put(MESSAGE_WRITE);
-                //Convert length to signed short
-                short lengthShort;
-                if (length >= 0x10000) {
-                    throw new IOException("Invalid buffer size, too large!");
-                } else if (length >= 0x8000) {
-                    lengthShort = (short) (-0x10000 + length);
-                } else {
-                    lengthShort = (short) length;
+                int length = Math.min(len, channel.write_buffer.remaining());
+                if (length == 0) {
+                    try {
+                        writeLock.wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    continue;
                 }
-                message.putShort(lengthShort);
-                message.putLong(id.getMostSignificantBits());
-                message.putLong(id.getLeastSignificantBits());
-
-                message.put(write_data, off, length);
+                channel.write_buffer.put(data, off, length);
+                off += length;
+                len -= length;
 
-                channel.freeWriteAmount -= length;
-                channel.lock.notifyAll();
+                if (channel != defaultChannel && !channel.scheduled) {
+                    sendOrder.addLast(channel);
+                    channel.scheduled = true;
+                }
+                writeLock.notifyAll();
             }
+        }
+    }
 
-            try {
-                socket.getOutputStream().write(data, 0, 19 + length);
-            } catch (IOException e) {
-                handleException(e);
+    /**
+     * Waits until the writer thread has sent everything written to the channel
+     */
+    private void flush(Channel channel) throws IOException {
+        synchronized (writeLock) {
+            while ((channel.write_buffer != null && channel.write_buffer.position() > 0) || writingChannel == channel) {
+                if (!open || !channel.open) throw new IOException("Connection closed!");
+                try {
+                    writeLock.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
             }
-            return length;
         }
     }
 
-    private void flush() throws IOException {
-        synchronized (lock) {
-            if (!open) return;
-            socket.getOutputStream().flush();
+    /**
+     * Picks the channel to send data from next: the default one if it can, the others in turns.
+     * Must hold writeLock.
+     */
+    private Channel nextChannelToSend() {
+        if (defaultChannel.canSend()) {
+            return defaultChannel;
+        }
+        for (int i = sendOrder.size(); i > 0; i--) {
+            Channel channel = sendOrder.pollFirst();
+            if (!channel.open) {
+                channel.scheduled = false; // Its data can't be sent anymore
+                continue;
+            }
+            sendOrder.addLast(channel);
+            if (channel.canSend()) {
+                return channel;
+            }
         }
+        return null;
     }
 
     @Override
     public void close() throws IOException {
-        if (socket == null) {
-            return;
-        }
-        socket.close();
-        socket = null;
-        for (Channel channel : channels.values()) {
-            channel.doClose();
+        // The listener thread may be closing the channels too
+        synchronized (lock) {
+            if (socket == null) {
+                return;
+            }
+            open = false;
+            socket.close();
+            socket = null;
+            for (Channel channel : channels.values()) {
+                channel.doClose();
+            }
+            channels.clear();
         }
-        channels.clear();
+        wakeWriters();
     }
 
     public UUID newChannel() throws IOException {
         UUID id = UUID.randomUUID();
         synchronized (lock) {
-            byte[] data = new byte[19];
-            ByteBuffer message = ByteBuffer.wrap(data);
-            message.order(ByteOrder.BIG_ENDIAN);
-            message.put(MESSAGE_OPEN_CHANNEL);
-            message.putShort((short) 0);
-            message.putLong(id.getMostSignificantBits());
-            message.putLong(id.getLeastSignificantBits());
-
-            try {
-                socket.getOutputStream().write(data);
-            } catch (IOException e) {
-                handleException(e);
-                throw e;
-            }
+            if (!open) throw new IOException("Connection closed!");
+            sendControlMessage(MESSAGE_OPEN_CHANNEL, id, -1);
             channels.put(id, new Channel(this, id));
+            readRequest(id);
         }
         return id;
     }
@@ -420,6 +480,8 @@ public final class ConnectionMultiplexer implements Closeable {
     private final class ListenRunnable implements Runnable {
         InputStream input;
         OutputStream output;
+        // Big enough for any message
+        final byte[] data = new byte[HEADER_SIZE + MAX_WRITE_SIZE];
 
         ListenRunnable(BluetoothSocket socket) throws IOException {
             input = socket.getInputStream();
@@ -439,9 +501,8 @@ public final class ConnectionMultiplexer implements Closeable {
         }
 
         private void read_message() throws IOException {
-            byte[] data = new byte[BUFFER_SIZE];
-            read_buffer(data, 19);
-            ByteBuffer message = ByteBuffer.wrap(data, 0, 19).order(ByteOrder.BIG_ENDIAN);
+            read_buffer(data, HEADER_SIZE);
+            ByteBuffer message = ByteBuffer.wrap(data, 0, HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
             byte type = message.get();
             int length = message.getShort();
             //signed short -> unsigned short (as int) conversion
@@ -458,6 +519,7 @@ public final class ConnectionMultiplexer implements Closeable {
                 synchronized (lock) {
                     channels.put(channel_id, new Channel(ConnectionMultiplexer.this, channel_id));
                 }
+                readRequest(channel_id);
             } else if (type == MESSAGE_CLOSE_CHANNEL) {
                 synchronized (lock) {
                     Channel channel = channels.get(channel_id);
@@ -475,17 +537,17 @@ public final class ConnectionMultiplexer implements Closeable {
                 //signed short -> unsigned short (as int) conversion
                 if (amount < 0) amount += 0x10000;
 
+                Channel channel;
                 synchronized (lock) {
-                    Channel channel = channels.get(channel_id);
-                    if (channel == null) return;
-
-                    synchronized (channel.lock) {
-                        channel.freeWriteAmount += amount;
-                        channel.lock.notifyAll();
-                    }
+                    channel = channels.get(channel_id);
+                }
+                if (channel == null) return;
+                synchronized (writeLock) {
+                    channel.freeWriteAmount += amount;
+                    writeLock.notifyAll();
                 }
             } else if (type == MESSAGE_WRITE) {
-                if (length > BUFFER_SIZE) {
+                if (length > RECEIVE_WINDOW) {
                     throw new IOException("Message length is bigger than read size!");
                 }
                 read_buffer(data, length);
@@ -498,7 +560,7 @@ public final class ConnectionMultiplexer implements Closeable {
                             throw new IOException("No outstanding read requests of this length!");
                         }
                         channel.requestedReadAmount -= length;
-                        if (channel.read_buffer.position() + length > BUFFER_SIZE) {
+                        if (channel.read_buffer.position() + length > RECEIVE_WINDOW) {
                             throw new IOException("Shouldn't be getting more data when the buffer is too full!");
                         }
                         channel.read_buffer.put(data, 0, length);
@@ -510,10 +572,6 @@ public final class ConnectionMultiplexer implements Closeable {
                 if (length < 4) {
                     throw new IOException("Message length is invalid for 'MESSAGE_PROTOCOL_VERSION'!");
                 }
-                //We might need a larger buffer to read this
-                if (length > data.length) {
-                    data = new byte[1 << 16];
-                }
                 read_buffer(data, length);
 
                 //Check remote endpoint protocol version
@@ -524,11 +582,34 @@ public final class ConnectionMultiplexer implements Closeable {
                 //signed short -> unsigned short (as int) conversion
                 if (maximum_version < 0) maximum_version += 0x10000;
 
-                if (minimum_version > 1 || maximum_version < 1) {
+                int version = Math.min(maximum_version, PROTOCOL_VERSION_MAX);
+                if (version < Math.max(minimum_version, PROTOCOL_VERSION_MIN)) {
                     throw new IOException("Unsupported protocol version " + minimum_version + " - " + maximum_version + "!");
                 }
+                if (version >= 2) {
+                    if (length < 8) {
+                        throw new IOException("Message length is invalid for 'MESSAGE_PROTOCOL_VERSION' version 2!");
+                    }
+                    int maxWriteSize = ByteBuffer.wrap(data, 4, 4).order(ByteOrder.BIG_ENDIAN).getInt();
+                    if (maxWriteSize <= 0) {
+                        throw new IOException("Invalid maximum write size " + maxWriteSize + "!");
+                    }
+                    peerMaxWriteSize = maxWriteSize;
+                    receiveWindow = RECEIVE_WINDOW;
+                } else {
+                    receiveWindow = V1_MAX_WRITE_SIZE;
+                }
                 //We now support receiving other messages
                 receivedProtocolVersion = true;
+
+                //Now we know how much we can grant, let the other end start sending
+                ArrayList<UUID> channelIds;
+                synchronized (lock) {
+                    channelIds = new ArrayList<>(channels.keySet());
+                }
+                for (UUID id : channelIds) {
+                    readRequest(id);
+                }
             } else {
                 throw new IOException("Invalid message type " + (int) type);
             }
@@ -549,4 +630,86 @@ public final class ConnectionMultiplexer implements Closeable {
             }
         }
     }
+
+    private final class WriteRunnable implements Runnable {
+        final OutputStream output;
+        // Only used by this thread
+        final byte[] writeMessage = new byte[HEADER_SIZE + MAX_OUTGOING_WRITE_SIZE];
+
+        WriteRunnable(BluetoothSocket socket) throws IOException {
+            output = socket.getOutputStream();
+        }
+
+        /**
+         * Moves the next chunk of data from a channel into writeMessage. Must hold writeLock.
+         * @return the size of the message, or 0 if no channel can send anything now
+         */
+        private int takeWriteMessage() {
+            Channel channel = nextChannelToSend();
+            if (channel == null) {
+                return 0;
+            }
+            int length = Math.min(channel.write_buffer.position(), channel.freeWriteAmount);
+            length = Math.min(length, Math.min(peerMaxWriteSize, MAX_OUTGOING_WRITE_SIZE));
+
+            ByteBuffer message = ByteBuffer.wrap(writeMessage).order(ByteOrder.BIG_ENDIAN);
+            message.put(MESSAGE_WRITE);
+            //Convert length to signed short
+            message.putShort((short) length);
+            message.putLong(channel.id.getMostSignificantBits());
+            message.putLong(channel.id.getLeastSignificantBits());
+            channel.write_buffer.flip();
+            channel.write_buffer.get(writeMessage, HEADER_SIZE, length);
+            channel.write_buffer.compact();
+            channel.freeWriteAmount -= length;
+
+            if (channel.write_buffer.position() == 0 && channel.scheduled) {
+                sendOrder.remove(channel);
+                channel.scheduled = false;
+            }
+            writingChannel = channel;
+            writeLock.notifyAll(); // There's room in its buffer again
+            return HEADER_SIZE + length;
+        }
+
+        @Override
+        public void run() {
+            boolean flushed = true;
+            try {
+                while (true) {
+                    byte[] message;
+                    int length;
+                    synchronized (writeLock) {
+                        if (writingChannel != null) {
+                            writingChannel = null;
+                            writeLock.notifyAll(); // Someone may be flushing it
+                        }
+                        if (!open) return;
+                        message = controlMessages.pollFirst();
+                        if (message != null) {
+                            length = message.length;
+                        } else {
+                            length = takeWriteMessage();
+                            message = writeMessage;
+                        }
+                        if (length == 0 && flushed) {
+                            writeLock.wait();
+                            continue;
+                        }
+                    }
+                    if (length == 0) {
+                        // Nothing else to send for now
+                        output.flush();
+                        flushed = true;
+                    } else {
+                        output.write(message, 0, length);
+                        flushed = false;
+                    }
+                }
+            } catch (IOException e) {
+                handleException(e);
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
 }
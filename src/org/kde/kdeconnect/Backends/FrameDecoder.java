@@ -0,0 +1,128 @@
+/*
+ * SPDX-FileCopyrightText: 2023 KDE Connect contributors
+ *
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Backends;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Splits a byte stream into newline-delimited frames, which is how packets are sent on every link.
+ * <p>
+ * Data is accumulated in a single buffer and only the bytes that weren't scanned yet are searched
+ * for the delimiter, so a packet that arrives in many small reads is still parsed in linear time.
+ * Complete frames are handed over in place, without copying them or building Strings.
+ * </p><p>
+ * Not thread safe, each stream needs its own decoder.
+ * </p>
+ */
+public class FrameDecoder {
+
+    public interface Listener {
+        /**
+         * Called for each complete frame, without the trailing newline (or "\r\n"). Empty frames are skipped.
+         * The array is only valid until this method returns.
+         */
+        void onFrame(@NonNull byte[] data, int offset, int length);
+    }
+
+    public static class FrameTooLargeException extends IOException {
+        FrameTooLargeException(int maxFrameSize) {
+            super("Frame bigger than " + maxFrameSize + " bytes");
+        }
+    }
+
+    /**
+     * Packets are JSON, with anything big sent as a payload. This is way more than any packet needs.
+     */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private final int maxFrameSize;
+    private final Listener listener;
+    private byte[] frame = new byte[INITIAL_BUFFER_SIZE];
+    private int frameLength = 0; // Bytes in frame
+    private int scanned = 0; // Bytes in frame already known not to contain a newline
+
+    public FrameDecoder(@NonNull Listener listener) {
+        this(DEFAULT_MAX_FRAME_SIZE, listener);
+    }
+
+    public FrameDecoder(int maxFrameSize, @NonNull Listener listener) {
+        this.maxFrameSize = maxFrameSize;
+        this.listener = listener;
+    }
+
+    /**
+     * Consumes all the remaining bytes of data, calling the listener for every frame they complete
+     * @throws FrameTooLargeException if a frame, complete or not, is bigger than the maximum frame
+     * size. The stream can't be decoded after that.
+     */
+    public void feed(@NonNull ByteBuffer data) throws FrameTooLargeException {
+        int length = data.remaining();
+        ensureCapacity(length);
+        data.get(frame, frameLength, length);
+        frameLength += length;
+        splitFrames();
+    }
+
+    /**
+     * @see #feed(ByteBuffer)
+     */
+    public void feed(@NonNull byte[] data, int offset, int length) throws FrameTooLargeException {
+        ensureCapacity(length);
+        System.arraycopy(data, offset, frame, frameLength, length);
+        frameLength += length;
+        splitFrames();
+    }
+
+    private void ensureCapacity(int length) {
+        if (frameLength + length > frame.length) {
+            frame = Arrays.copyOf(frame, Math.max(frameLength + length, frame.length * 2));
+        }
+    }
+
+    private void splitFrames() throws FrameTooLargeException {
+        int start = 0;
+        for (int i = scanned; i < frameLength; i++) {
+            if (frame[i] == '\n') {
+                int end = i;
+                if (end > start && frame[end - 1] == '\r') {
+                    end--;
+                }
+                if (end - start > maxFrameSize) {
+                    discardAndThrow();
+                }
+                if (end > start) {
+                    listener.onFrame(frame, start, end - start);
+                }
+                start = i + 1;
+            }
+        }
+        if (start > 0) {
+            System.arraycopy(frame, start, frame, 0, frameLength - start);
+            frameLength -= start;
+        }
+        scanned = frameLength;
+        if (frameLength > maxFrameSize) {
+            discardAndThrow();
+        }
+        if (frameLength == 0 && frame.length > INITIAL_BUFFER_SIZE) {
+            frame = new byte[INITIAL_BUFFER_SIZE]; // Release the memory used by a big packet
+        }
+    }
+
+    private void discardAndThrow() throws FrameTooLargeException {
+        frameLength = 0;
+        scanned = 0;
+        frame = new byte[INITIAL_BUFFER_SIZE];
+        throw new FrameTooLargeException(maxFrameSize);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * SPDX-FileCopyrightText: 2023 KDE Connect contributors
+ *
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Backends.LanBackend;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.kde.kdeconnect.Helpers.Metrics;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the blocking work needed to set up LAN connections (connecting, exchanging identities and
+ * the TLS handshake) on a bounded number of threads.
+ * <p>
+ * Anyone on the network can send us UDP packets or open TCP connections, so both the total number
+ * of pending handshakes and the number of them coming from the same address are limited. Work
+ * over those limits is rejected right away instead of queued.
+ * </p>
+ */
+class HandshakeScheduler {
+
+    private static final String LOG_TAG = "HandshakeScheduler";
+
+    private static final Metrics.Histogram queueLengths = Metrics.histogram("link.lan.handshake.queue_length");
+    private static final Metrics.Timer queueWaitTimer = Metrics.timer("link.lan.handshake.queue_wait");
+    private static final Metrics.Counter rejectedCounter = Metrics.counter("link.lan.handshake.rejected");
+
+    private final int maxPerAddress;
+    private final ThreadPoolExecutor executor;
+    private final HashMap<InetAddress, Integer> pendingByAddress = new HashMap<>(); // Queued or running, guarded by itself
+
+    /**
+     * @param maxConcurrent how many handshakes can run at the same time
+     * @param maxQueued how many handshakes can wait for a thread
+     * @param maxPerAddress how many handshakes with the same address can be queued or running
+     */
+    HandshakeScheduler(int maxConcurrent, int maxQueued, int maxPerAddress) {
+        this.maxPerAddress = maxPerAddress;
+        this.executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(maxQueued));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the handshake with the given address in the background, unless too many are pending.
+     *
+     * @return false if the handshake was rejected, in which case the caller should close any socket it was going to use
+     */
+    boolean execute(@NonNull InetAddress address, @NonNull Runnable handshake) {
+        synchronized (pendingByAddress) {
+            Integer pending = pendingByAddress.get(address);
+            int count = pending == null ? 0 : pending;
+            if (count >= maxPerAddress) {
+                Log.w(LOG_TAG, "Too many pending handshakes with " + address + ", rejecting");
+                rejectedCounter.increment();
+                return false;
+            }
+            pendingByAddress.put(address, count + 1);
+        }
+        queueLengths.record(executor.getQueue().size());
+        long queuedAt = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                queueWaitTimer.recordSince(queuedAt);
+                try {
+                    handshake.run();
+                } finally {
+                    release(address);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.w(LOG_TAG, "Too many pending handshakes, rejecting the one with " + address);
+            rejectedCounter.increment();
+            release(address);
+            return false;
+        }
+    }
+
+    private void release(@NonNull InetAddress address) {
+        synchronized (pendingByAddress) {
+            Integer pending = pendingByAddress.get(address);
+            if (pending == null || pending <= 1) {
+                pendingByAddress.remove(address);
+            } else {
+                pendingByAddress.put(address, pending - 1);
+            }
+        }
+    }
+}
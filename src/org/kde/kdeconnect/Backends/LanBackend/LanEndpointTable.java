@@ -0,0 +1,132 @@
+/*
+ * SPDX-FileCopyrightText: 2023 KDE Connect contributors
+ *
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Backends.LanBackend;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.kde.kdeconnect.NetworkPacket;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers where we last reached each trusted device over LAN: its address, the port of its TCP
+ * server and the identity packet it sent. With that, after a network change we can connect to the
+ * device directly instead of waiting for it to answer a broadcast.
+ * <p>
+ * Entries are persisted, one JSON object per device id, so they also speed up the first
+ * connection after the app starts.
+ * </p>
+ */
+class LanEndpointTable {
+
+    private static final String LOG_TAG = "LanEndpointTable";
+
+    /**
+     * Devices we haven't connected to for longer than this are likely not on the same network anymore
+     */
+    static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(14);
+
+    static class Endpoint {
+        final @NonNull String deviceId;
+        final @NonNull InetSocketAddress address;
+        final @NonNull NetworkPacket identity;
+        final long lastSuccessMillis;
+
+        Endpoint(@NonNull String deviceId, @NonNull InetSocketAddress address, @NonNull NetworkPacket identity, long lastSuccessMillis) {
+            this.deviceId = deviceId;
+            this.address = address;
+            this.identity = identity;
+            this.lastSuccessMillis = lastSuccessMillis;
+        }
+    }
+
+    private final SharedPreferences preferences;
+
+    LanEndpointTable(@NonNull SharedPreferences preferences) {
+        this.preferences = preferences;
+    }
+
+    void put(@NonNull String deviceId, @NonNull InetAddress address, int tcpPort, @NonNull NetworkPacket identity, long nowMillis) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("address", address.getHostAddress());
+            json.put("tcpPort", tcpPort);
+            json.put("identity", identity.serialize());
+            json.put("lastSuccess", nowMillis);
+            preferences.edit().putString(deviceId, json.toString()).apply();
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Couldn't store the endpoint of " + deviceId, e);
+        }
+    }
+
+    /**
+     * @return the port of the TCP server of the device the last time we connected to it, or -1
+     */
+    int getTcpPort(@NonNull String deviceId) {
+        Endpoint endpoint = parse(deviceId, preferences.getString(deviceId, null));
+        return endpoint == null ? -1 : endpoint.address.getPort();
+    }
+
+    void remove(@NonNull String deviceId) {
+        preferences.edit().remove(deviceId).apply();
+    }
+
+    /**
+     * @return the endpoints we connected to in the last {@link #MAX_AGE_MILLIS}, most recent first.
+     * Older and unreadable entries are deleted.
+     */
+    @NonNull List<Endpoint> getRecent(long nowMillis) {
+        ArrayList<Endpoint> endpoints = new ArrayList<>();
+        ArrayList<String> stale = new ArrayList<>();
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            Object value = entry.getValue();
+            Endpoint endpoint = parse(entry.getKey(), value instanceof String ? (String) value : null);
+            if (endpoint == null || nowMillis - endpoint.lastSuccessMillis > MAX_AGE_MILLIS) {
+                stale.add(entry.getKey());
+            } else {
+                endpoints.add(endpoint);
+            }
+        }
+        if (!stale.isEmpty()) {
+            SharedPreferences.Editor editor = preferences.edit();
+            for (String deviceId : stale) {
+                editor.remove(deviceId);
+            }
+            editor.apply();
+        }
+        Collections.sort(endpoints, (a, b) -> Long.compare(b.lastSuccessMillis, a.lastSuccessMillis));
+        return endpoints;
+    }
+
+    private static Endpoint parse(@NonNull String deviceId, String serialized) {
+        if (serialized == null) {
+            return null;
+        }
+        try {
+            JSONObject json = new JSONObject(serialized);
+            // The address is always a literal, so this doesn't do a DNS lookup
+            InetAddress address = InetAddress.getByName(json.getString("address"));
+            NetworkPacket identity = NetworkPacket.unserialize(json.getString("identity"));
+            return new Endpoint(deviceId, new InetSocketAddress(address, json.getInt("tcpPort")), identity, json.getLong("lastSuccess"));
+        } catch (JSONException | UnknownHostException | IllegalArgumentException e) {
+            Log.w(LOG_TAG, "Ignoring unreadable endpoint of " + deviceId, e);
+            return null;
+        }
+    }
+}
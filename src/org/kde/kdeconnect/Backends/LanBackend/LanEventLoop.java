@@ -0,0 +1,171 @@
+/*
+ * SPDX-FileCopyrightText: 2023 KDE Connect contributors
+ *
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Backends.LanBackend;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.kde.kdeconnect.Backends.FrameDecoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Single thread that reads from every {@link LanLink} socket using a {@link Selector}, and splits
+ * the incoming data into newline-delimited packets. This way the number of threads doesn't grow
+ * with the number of connected devices, nor with how often they reconnect.
+ * <p>
+ * Listeners are called from the event loop thread, so they must not block.
+ * </p>
+ */
+class LanEventLoop {
+
+    interface Listener {
+        /**
+         * Called for each complete line received, without the trailing newline. The array is only
+         * valid until this method returns.
+         */
+        void onFrameReceived(@NonNull Connection connection, @NonNull byte[] data, int offset, int length);
+
+        /**
+         * Called exactly once, when the connection is closed by either side
+         */
+        void onClosed(@NonNull Connection connection, String reason);
+    }
+
+    private static final String LOG_TAG = "LanEventLoop";
+
+    private static LanEventLoop instance;
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+
+    static synchronized LanEventLoop getInstance() throws IOException {
+        if (instance == null) {
+            instance = new LanEventLoop();
+        }
+        return instance;
+    }
+
+    private LanEventLoop() throws IOException {
+        selector = Selector.open();
+        Thread thread = new Thread(this::run, LOG_TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts reading from the channel. The channel must already have completed its handshake.
+     */
+    Connection register(@NonNull SslChannel channel, @NonNull Listener listener) {
+        Connection connection = new Connection(channel, listener);
+        runOnLoop(() -> {
+            try {
+                connection.key = channel.getChannel().register(selector, SelectionKey.OP_READ, connection);
+            } catch (ClosedChannelException e) {
+                connection.close("Closed before it was registered");
+            }
+        });
+        return connection;
+    }
+
+    private void runOnLoop(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Select failed", e);
+                continue;
+            }
+
+            Runnable task;
+            while ((task = pendingTasks.poll()) != null) {
+                task.run();
+            }
+
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                Connection connection = (Connection) key.attachment();
+                if (!key.isValid()) {
+                    connection.close("Key cancelled");
+                } else if (key.isReadable()) {
+                    connection.onReadable();
+                }
+            }
+        }
+    }
+
+    class Connection {
+        private final SslChannel channel;
+        private final Listener listener;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private volatile SelectionKey key;
+
+        private final ByteBuffer readBuffer;
+        private final FrameDecoder frameDecoder;
+
+        private Connection(SslChannel channel, Listener listener) {
+            this.channel = channel;
+            this.listener = listener;
+            this.readBuffer = ByteBuffer.allocate(channel.getApplicationBufferSize());
+            this.frameDecoder = new FrameDecoder((data, offset, length) -> listener.onFrameReceived(this, data, offset, length));
+        }
+
+        SslChannel getChannel() {
+            return channel;
+        }
+
+        boolean isClosed() {
+            return closed.get();
+        }
+
+        // Only called from the event loop thread
+        private void onReadable() {
+            try {
+                int read;
+                while ((read = channel.read(readBuffer)) > 0) {
+                    readBuffer.flip();
+                    frameDecoder.feed(readBuffer);
+                    readBuffer.clear();
+                }
+                if (read < 0) {
+                    close("End of stream");
+                }
+            } catch (IOException e) {
+                close(e.getMessage());
+            }
+        }
+
+        /**
+         * Closes the underlying channel. Can be called from any thread.
+         */
+        void close(String reason) {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            channel.close();
+            listener.onClosed(this, reason);
+        }
+    }
+}
@@ -13,30 +13,32 @@ import org.apache.commons.io.IOUtils;
 import androidx.annotation.NonNull;
 import androidx.annotation.WorkerThread;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.kde.kdeconnect.Backends.BaseLink;
 import org.kde.kdeconnect.Backends.BaseLinkProvider;
 import org.kde.kdeconnect.Device;
 import org.kde.kdeconnect.DeviceInfo;
+import org.kde.kdeconnect.Helpers.Metrics;
+import org.kde.kdeconnect.Helpers.PayloadTransferHelper;
 import org.kde.kdeconnect.Helpers.SecurityHelpers.SslHelper;
 import org.kde.kdeconnect.Helpers.ThreadHelper;
 import org.kde.kdeconnect.NetworkPacket;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.nio.channels.NotYetConnectedException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.net.ssl.SSLHandshakeException;
-import javax.net.ssl.SSLSocket;
-
-import kotlin.text.Charsets;
 
 public class LanLink extends BaseLink {
 
@@ -44,67 +46,122 @@ public class LanLink extends BaseLink {
         Locally, Remotely
     }
 
-    private final DeviceInfo deviceInfo;
+    private volatile DeviceInfo deviceInfo;
 
-    private volatile SSLSocket socket = null;
+    // Packets written together by sendPackets() are flushed once they add up to this size
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
 
-    @Override
-    public void disconnect() {
-        Log.i("LanLink/Disconnect","socket:"+ socket.hashCode());
-        try {
-            socket.close();
-        } catch (IOException e) {
-            Log.e("LanLink", "Error", e);
-        }
-    }
+    private static final Metrics.Timer writeTimer = Metrics.timer("link.lan.write");
+    private static final Metrics.Histogram batchSizes = Metrics.histogram("link.lan.batch_bytes");
 
-    //Returns the old socket
-    public SSLSocket reset(final SSLSocket newSocket) throws IOException {
+    private volatile LanEventLoop.Connection connection = null;
 
-        SSLSocket oldSocket = socket;
-        socket = newSocket;
+    // Whether both devices agreed to send payloads over a shared connection instead of one socket per payload
+    private volatile boolean multiplexPayloads = false;
+    private final LanPayloadChannel payloadChannel;
 
-        IOUtils.close(oldSocket); //This should cancel the readThread
+    // Packets parsed by the event loop, waiting to be delivered in order from a worker thread
+    private final ArrayDeque<NetworkPacket> receivedPackets = new ArrayDeque<>();
+    private boolean dispatchingReceivedPackets = false;
 
-        //Log.e("LanLink", "Start listening");
-        //Create a thread to take care of incoming data for the new socket
-        ThreadHelper.execute(() -> {
+    private final LanEventLoop.Listener connectionListener = new LanEventLoop.Listener() {
+        @Override
+        public void onFrameReceived(@NonNull LanEventLoop.Connection from, @NonNull byte[] data, int offset, int length) {
+            NetworkPacket np;
             try {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(newSocket.getInputStream(), Charsets.UTF_8));
-                while (true) {
-                    String packet;
-                    try {
-                        packet = reader.readLine();
-                    } catch (SocketTimeoutException e) {
-                        continue;
-                    }
-                    if (packet == null) {
-                        throw new IOException("End of stream");
-                    }
-                    if (packet.isEmpty()) {
-                        continue;
-                    }
-                    NetworkPacket np = NetworkPacket.unserialize(packet);
-                    receivedNetworkPacket(np);
-                }
-            } catch (Exception e) {
-                Log.i("LanLink", "Socket closed: " + newSocket.hashCode() + ". Reason: " + e.getMessage());
+                np = NetworkPacket.unserialize(data, offset, length);
+            } catch (JSONException e) {
+                Log.e("LanLink", "Unable to parse packet, ignoring it", e);
+                return;
+            }
+            enqueueReceivedPacket(np);
+        }
+
+        @Override
+        public void onClosed(@NonNull LanEventLoop.Connection closed, String reason) {
+            Log.i("LanLink", "Socket closed: " + closed.hashCode() + ". Reason: " + reason);
+            ThreadHelper.execute(() -> {
                 try { Thread.sleep(300); } catch (InterruptedException ignored) {} // Wait a bit because we might receive a new socket meanwhile
-                boolean thereIsaANewSocket = (newSocket != socket);
+                boolean thereIsaANewSocket = (closed != connection);
                 if (!thereIsaANewSocket) {
                     Log.i("LanLink", "Socket closed and there's no new socket, disconnecting device");
+                    payloadChannel.close();
                     getLinkProvider().onConnectionLost(LanLink.this);
                 }
+            });
+        }
+    };
+
+    @Override
+    public void disconnect() {
+        Log.i("LanLink/Disconnect","socket:"+ connection.hashCode());
+        connection.close("Disconnected");
+    }
+
+    /**
+     * Replaces the connection used by this link, closing the previous one. Reading from the new one
+     * happens in the {@link LanEventLoop}, so this doesn't need a thread of its own.
+     */
+    public void reset(final SslChannel newChannel) throws IOException {
+        LanEventLoop.Connection oldConnection = connection;
+        connection = LanEventLoop.getInstance().register(newChannel, connectionListener);
+        if (oldConnection != null) {
+            oldConnection.close("Replaced by a new socket");
+        }
+    }
+
+    private void enqueueReceivedPacket(NetworkPacket np) {
+        synchronized (receivedPackets) {
+            receivedPackets.addLast(np);
+            if (dispatchingReceivedPackets) {
+                return;
             }
-        });
+            dispatchingReceivedPackets = true;
+        }
+        ThreadHelper.execute(this::dispatchReceivedPackets);
+    }
 
-        return oldSocket;
+    // Delivers packets one at a time, so plugins see them in the same order they were received
+    private void dispatchReceivedPackets() {
+        while (true) {
+            NetworkPacket np;
+            synchronized (receivedPackets) {
+                np = receivedPackets.pollFirst();
+                if (np == null) {
+                    dispatchingReceivedPackets = false;
+                    return;
+                }
+            }
+            try {
+                receivedNetworkPacket(np);
+            } catch (Exception e) {
+                Log.e("LanLink", "Exception handling packet of type " + np.getType(), e);
+            }
+        }
     }
 
-    public LanLink(@NonNull Context context, @NonNull DeviceInfo deviceInfo, @NonNull BaseLinkProvider linkProvider, @NonNull SSLSocket socket) throws IOException {
+    public LanLink(@NonNull Context context, @NonNull DeviceInfo deviceInfo, @NonNull BaseLinkProvider linkProvider, @NonNull SslChannel channel) throws IOException {
         super(context, linkProvider);
         this.deviceInfo = deviceInfo;
-        reset(socket);
+        this.payloadChannel = new LanPayloadChannel(context, deviceInfo.id);
+        reset(channel);
+    }
+
+    /**
+     * @param multiplexPayloads if true, payloads will be sent over a single connection shared by all
+     *                          transfers, see {@link PayloadMultiplexer}. Only set it if the other
+     *                          device said it supports it.
+     */
+    void setMultiplexPayloads(boolean multiplexPayloads) {
+        this.multiplexPayloads = multiplexPayloads;
+    }
+
+    /**
+     * Replaces the info of the device, with the one from the identity packet of a newer connection.
+     * Its id and certificate must be the same.
+     */
+    void setDeviceInfo(@NonNull DeviceInfo deviceInfo) {
+        this.deviceInfo = deviceInfo;
     }
 
     @Override
@@ -120,7 +177,8 @@ public class LanLink extends BaseLink {
     @WorkerThread
     @Override
     public boolean sendPacket(@NonNull NetworkPacket np, @NonNull final Device.SendPacketStatusCallback callback, boolean sendPayloadFromSameThread) {
-        if (socket == null) {
+        LanEventLoop.Connection connection = this.connection;
+        if (connection == null) {
             Log.e("KDE/sendPacket", "Not yet connected");
             callback.onFailure(new NotYetConnectedException());
             return false;
@@ -130,35 +188,45 @@ public class LanLink extends BaseLink {
 
             //Prepare socket for the payload
             final ServerSocket server;
-            if (np.hasPayload()) {
+            final int payloadStreamId;
+            if (np.hasPayload() && multiplexPayloads) {
+                server = null;
+                payloadStreamId = payloadChannel.newStreamId();
+                np.setPayloadTransferInfo(payloadChannel.createTransferInfo(payloadStreamId));
+            } else if (np.hasPayload()) {
                 server = LanLinkProvider.openServerSocketOnFreePort(LanLinkProvider.PAYLOAD_TRANSFER_MIN_PORT);
+                payloadStreamId = -1;
                 JSONObject payloadTransferInfo = new JSONObject();
                 payloadTransferInfo.put("port", server.getLocalPort());
                 np.setPayloadTransferInfo(payloadTransferInfo);
             } else {
                 server = null;
+                payloadStreamId = -1;
             }
 
             //Log.e("LanLink/sendPacket", np.getType());
 
             //Send body of the network packet
             try {
-                OutputStream writer = socket.getOutputStream();
-                writer.write(np.serialize().getBytes(Charsets.UTF_8));
-                writer.flush();
+                long start = System.nanoTime();
+                np.serializeTo(connection.getChannel().getOutputStream());
+                writeTimer.recordSince(start); // Includes the encoding, also measured on its own as packet.serialize
             } catch (Exception e) {
                 disconnect(); //main socket is broken, disconnect
+                if (payloadStreamId >= 0) {
+                    payloadChannel.abortOutgoing(payloadStreamId); // Release the stream reserved for it
+                }
                 throw e;
             }
 
             //Send payload
-            if (server != null) {
+            if (server != null || payloadStreamId >= 0) {
                 if (sendPayloadFromSameThread) {
-                    sendPayload(np, callback, server);
+                    sendPayload(np, callback, server, payloadStreamId);
                 } else {
                     ThreadHelper.execute(() -> {
                         try {
-                            sendPayload(np, callback, server);
+                            sendPayload(np, callback, server, payloadStreamId);
                         } catch (IOException e) {
                             e.printStackTrace();
                             Log.e("LanLink/sendPacket", "Async sendPayload failed for packet of type " + np.getType() + ". The Plugin was NOT notified.");
@@ -182,10 +250,83 @@ public class LanLink extends BaseLink {
         }
     }
 
+    /**
+     * Packs consecutive packets without payload into a single write, so they need as few TLS records
+     * and syscalls as possible. Packets with payload are sent with {@link #sendPacket} as usual.
+     */
+    @WorkerThread
+    @Override
+    public boolean[] sendPackets(@NonNull List<NetworkPacket> nps, @NonNull List<Device.SendPacketStatusCallback> callbacks) {
+        boolean[] sent = new boolean[nps.size()];
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        ArrayList<Integer> batched = new ArrayList<>();
+        for (int i = 0; i < nps.size(); i++) {
+            NetworkPacket np = nps.get(i);
+            if (np.hasPayload()) {
+                flushBatch(batch, batched, nps, callbacks, sent);
+                sent[i] = sendPacket(np, callbacks.get(i), false);
+                continue;
+            }
+            try {
+                np.serializeTo(batch);
+            } catch (JSONException | IOException e) {
+                callbacks.get(i).onFailure(e);
+                continue;
+            }
+            batched.add(i);
+            if (batch.size() >= MAX_BATCH_BYTES) {
+                flushBatch(batch, batched, nps, callbacks, sent);
+            }
+        }
+        flushBatch(batch, batched, nps, callbacks, sent);
+        return sent;
+    }
+
+    private void flushBatch(ByteArrayOutputStream batch, ArrayList<Integer> batched, List<NetworkPacket> nps, List<Device.SendPacketStatusCallback> callbacks, boolean[] sent) {
+        if (batched.isEmpty()) {
+            return;
+        }
+        LanEventLoop.Connection connection = this.connection;
+        Exception error = null;
+        if (connection == null) {
+            Log.e("KDE/sendPacket", "Not yet connected");
+            error = new NotYetConnectedException();
+        } else {
+            try {
+                long start = System.nanoTime();
+                batch.writeTo(connection.getChannel().getOutputStream());
+                writeTimer.recordSince(start);
+                batchSizes.record(batch.size());
+            } catch (IOException e) {
+                disconnect(); //main socket is broken, disconnect
+                error = e;
+            }
+        }
+        for (int i : batched) {
+            if (error != null) {
+                callbacks.get(i).onFailure(error);
+            } else {
+                sent[i] = true;
+                if (!nps.get(i).isCanceled()) {
+                    callbacks.get(i).onSuccess();
+                }
+            }
+        }
+        batch.reset();
+        batched.clear();
+    }
+
+    private void sendPayload(NetworkPacket np, Device.SendPacketStatusCallback callback, ServerSocket server, int payloadStreamId) throws IOException {
+        if (server != null) {
+            sendPayload(np, callback, server);
+        } else {
+            sendMultiplexedPayload(np, callback, payloadStreamId);
+        }
+    }
+
     private void sendPayload(NetworkPacket np, Device.SendPacketStatusCallback callback, ServerSocket server) throws IOException {
         Socket payloadSocket = null;
         OutputStream outputStream = null;
-        InputStream inputStream;
         try {
             if (!np.isCanceled()) {
                 //Wait a maximum of 10 seconds for the other end to establish a connection with our socket, close it afterwards
@@ -197,28 +338,7 @@ public class LanLink extends BaseLink {
                 payloadSocket = SslHelper.convertToSslSocket(context, payloadSocket, getDeviceId(), true, false);
 
                 outputStream = payloadSocket.getOutputStream();
-                inputStream = np.getPayload().getInputStream();
-
-                Log.i("KDE/LanLink", "Beginning to send payload for " + np.getType());
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                long size = np.getPayloadSize();
-                long progress = 0;
-                long timeSinceLastUpdate = -1;
-                while (!np.isCanceled() && (bytesRead = inputStream.read(buffer)) != -1) {
-                    //Log.e("ok",""+bytesRead);
-                    progress += bytesRead;
-                    outputStream.write(buffer, 0, bytesRead);
-                    if (size > 0) {
-                        if (timeSinceLastUpdate + 500 < System.currentTimeMillis()) { //Report progress every half a second
-                            long percent = ((100 * progress) / size);
-                            callback.onPayloadProgressChanged((int) percent);
-                            timeSinceLastUpdate = System.currentTimeMillis();
-                        }
-                    }
-                }
-                outputStream.flush();
-                Log.i("KDE/LanLink", "Finished sending payload (" + progress + " bytes written)");
+                copyPayload(np, callback, outputStream);
             }
         } catch(SocketTimeoutException e) {
             Log.e("LanLink", "Socket for payload in packet " + np.getType() + " timed out. The other end didn't fetch the payload.");
@@ -235,13 +355,58 @@ public class LanLink extends BaseLink {
         }
     }
 
+    private void sendMultiplexedPayload(NetworkPacket np, Device.SendPacketStatusCallback callback, int payloadStreamId) throws IOException {
+        OutputStream outputStream = null;
+        try {
+            if (np.isCanceled()) {
+                payloadChannel.abortOutgoing(payloadStreamId); // Release the stream reserved for it
+            } else {
+                outputStream = payloadChannel.openOutgoing(payloadStreamId);
+                copyPayload(np, callback, outputStream);
+                if (np.isCanceled()) {
+                    PayloadMultiplexer.abort(outputStream); // Don't let the other end think it got the whole payload
+                } else {
+                    outputStream.close();
+                }
+            }
+        } catch(SocketTimeoutException e) {
+            Log.e("LanLink", "Payload stream in packet " + np.getType() + " timed out. The other end didn't fetch the payload.");
+            PayloadMultiplexer.abort(outputStream);
+        } catch (IOException e) {
+            PayloadMultiplexer.abort(outputStream);
+            throw e;
+        } finally {
+            np.getPayload().close();
+        }
+    }
+
+    private void copyPayload(NetworkPacket np, Device.SendPacketStatusCallback callback, OutputStream outputStream) throws IOException {
+        InputStream inputStream = np.getPayload().getInputStream();
+
+        Log.i("KDE/LanLink", "Beginning to send payload for " + np.getType());
+        final long size = np.getPayloadSize();
+        long progress = PayloadTransferHelper.copy(inputStream, outputStream, size, np::isCanceled, size <= 0 ? null : bytesCopied -> {
+            long percent = ((100 * bytesCopied) / size);
+            callback.onPayloadProgressChanged((int) percent);
+        });
+        Log.i("KDE/LanLink", "Finished sending payload (" + progress + " bytes written)");
+    }
+
     private void receivedNetworkPacket(NetworkPacket np) {
 
-        if (np.hasPayloadTransferInfo()) {
+        if (np.hasPayloadTransferInfo() && LanPayloadChannel.isMultiplexed(np.getPayloadTransferInfo())) {
+            try {
+                InetSocketAddress deviceAddress = (InetSocketAddress) connection.getChannel().getRemoteSocketAddress();
+                InputStream payloadStream = payloadChannel.openIncoming(np.getPayloadTransferInfo(), deviceAddress.getAddress());
+                np.setPayload(new NetworkPacket.Payload(payloadStream, np.getPayloadSize()));
+            } catch (Exception e) {
+                Log.e("KDE/LanLink", "Exception opening multiplexed payload stream", e);
+            }
+        } else if (np.hasPayloadTransferInfo()) {
             Socket payloadSocket = new Socket();
             try {
                 int tcpPort = np.getPayloadTransferInfo().getInt("port");
-                InetSocketAddress deviceAddress = (InetSocketAddress) socket.getRemoteSocketAddress();
+                InetSocketAddress deviceAddress = (InetSocketAddress) connection.getChannel().getRemoteSocketAddress();
                 payloadSocket.connect(new InetSocketAddress(deviceAddress.getAddress(), tcpPort));
                 payloadSocket = SslHelper.convertToSslSocket(context, payloadSocket, getDeviceId(), true, true);
                 np.setPayload(new NetworkPacket.Payload(payloadSocket, np.getPayloadSize()));
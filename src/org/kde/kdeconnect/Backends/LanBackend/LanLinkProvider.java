@@ -16,12 +16,15 @@ import android.util.Log;
 import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
+import org.apache.commons.io.IOUtils;
 import org.json.JSONException;
 import org.kde.kdeconnect.Backends.BaseLink;
 import org.kde.kdeconnect.Backends.BaseLinkProvider;
 import org.kde.kdeconnect.Device;
 import org.kde.kdeconnect.DeviceInfo;
+import org.kde.kdeconnect.DeviceType;
 import org.kde.kdeconnect.Helpers.DeviceHelper;
+import org.kde.kdeconnect.Helpers.Metrics;
 import org.kde.kdeconnect.Helpers.SecurityHelpers.SslHelper;
 import org.kde.kdeconnect.Helpers.ThreadHelper;
 import org.kde.kdeconnect.Helpers.TrustedNetworkHelper;
@@ -42,17 +45,18 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.security.cert.Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
-import javax.net.SocketFactory;
-import javax.net.ssl.SSLSocket;
-
-import kotlin.text.Charsets;
-
 /**
  * This LanLinkProvider creates {@link LanLink}s to other devices on the same
  * WiFi network. The first packet sent over a socket must be an
@@ -71,6 +75,17 @@ public class LanLinkProvider extends BaseLinkProvider {
 
     final static long MILLIS_DELAY_BETWEEN_CONNECTIONS_TO_SAME_DEVICE = 500L;
 
+    // Connecting to an address we remembered should take a LAN round trip, if it takes longer the device isn't there anymore
+    final static int KNOWN_ENDPOINT_CONNECT_TIMEOUT_MILLIS = 2000;
+    final static int CONNECT_TIMEOUT_MILLIS = 5000;
+    final static int IDENTITY_TIMEOUT_MILLIS = 5000;
+
+    final static int MAX_CONCURRENT_HANDSHAKES = 8;
+    final static int MAX_QUEUED_HANDSHAKES = 32;
+    final static int MAX_HANDSHAKES_PER_ADDRESS = 4;
+
+    private static final Metrics.Timer handshakeTimer = Metrics.timer("link.lan.handshake");
+
     private final Context context;
 
     final HashMap<String, LanLink> visibleDevices = new HashMap<>(); // Links by device id
@@ -82,6 +97,13 @@ public class LanLinkProvider extends BaseLinkProvider {
 
     private MdnsDiscovery mdnsDiscovery;
 
+    private final LanEndpointTable endpointTable;
+    private final HandshakeScheduler handshakeScheduler;
+
+    // Sockets used to send UDP identity packets, by the network they are bound to (null for the default network)
+    private final HashMap<Network, DatagramSocket> udpSendSockets = new HashMap<>();
+    private volatile CachedIdentity cachedUdpIdentity;
+
     private long lastBroadcast = 0;
     private final static long delayBetweenBroadcasts = 200;
 
@@ -99,17 +121,22 @@ public class LanLinkProvider extends BaseLinkProvider {
 
         NetworkPacket networkPacket;
         try {
+            // Don't let a peer that never sends its identity hold a handshake thread
+            socket.setSoTimeout(IDENTITY_TIMEOUT_MILLIS);
             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             String message = reader.readLine();
             networkPacket = NetworkPacket.unserialize(message);
+            socket.setSoTimeout(0);
             //Log.e("TcpListener", "Received TCP packet: " + networkPacket.serialize());
         } catch (Exception e) {
             Log.e("KDE/LanLinkProvider", "Exception while receiving TCP packet", e);
+            socket.close();
             return;
         }
 
         if (!networkPacket.getType().equals(NetworkPacket.PACKET_TYPE_IDENTITY)) {
             Log.e("KDE/LanLinkProvider", "Expecting an identity packet instead of " + networkPacket.getType());
+            socket.close();
             return;
         }
 
@@ -119,12 +146,9 @@ public class LanLinkProvider extends BaseLinkProvider {
 
     //I've received their broadcast and should connect to their TCP socket and send my identity.
     @WorkerThread
-    private void udpPacketReceived(DatagramPacket packet) throws JSONException, IOException {
+    private void udpPacketReceived(InetAddress address, byte[] data) throws JSONException, IOException {
 
-        final InetAddress address = packet.getAddress();
-
-        String message = new String(packet.getData(), Charsets.UTF_8);
-        final NetworkPacket identityPacket = NetworkPacket.unserialize(message);
+        final NetworkPacket identityPacket = NetworkPacket.unserialize(data, 0, data.length);
         final String deviceId = identityPacket.getString("deviceId");
         if (!identityPacket.getType().equals(NetworkPacket.PACKET_TYPE_IDENTITY)) {
             Log.e("KDE/LanLinkProvider", "Expecting an UDP identity packet");
@@ -153,18 +177,120 @@ public class LanLinkProvider extends BaseLinkProvider {
 
         Log.i("KDE/LanLinkProvider", "Broadcast identity packet received from " + identityPacket.getString("deviceName"));
 
-        SocketFactory socketFactory = SocketFactory.getDefault();
-        Socket socket = socketFactory.createSocket(address, tcpPort);
-        configureSocket(socket);
+        Socket socket = connectAndSendIdentity(new InetSocketAddress(address, tcpPort), CONNECT_TIMEOUT_MILLIS);
+        identityPacketReceived(identityPacket, socket, LanLink.ConnectionStarted.Remotely);
+    }
 
-        DeviceInfo myDeviceInfo = DeviceHelper.getDeviceInfo(context);
-        NetworkPacket myIdentity = myDeviceInfo.toIdentityPacket();
+    /**
+     * Connects to the TCP server of another device and sends it our identity, which is what it
+     * expects after sending us its own identity over UDP.
+     *
+     * @param timeoutMillis connection timeout
+     */
+    @WorkerThread
+    private Socket connectAndSendIdentity(InetSocketAddress address, int timeoutMillis) throws JSONException, IOException {
+        // Use a channel-backed socket, so it can be read from the LanEventLoop once the link is established
+        SocketChannel channel = SocketChannel.open();
+        Socket socket = channel.socket();
+        try {
+            socket.connect(address, timeoutMillis);
+            configureSocket(socket);
+
+            DeviceInfo myDeviceInfo = DeviceHelper.getDeviceInfo(context);
+            NetworkPacket myIdentity = myDeviceInfo.toIdentityPacket();
+            addLanCapabilities(myIdentity);
+
+            OutputStream out = socket.getOutputStream();
+            myIdentity.serializeTo(out);
+            out.flush();
+        } catch (JSONException | IOException e) {
+            IOUtils.close(channel);
+            throw e;
+        }
+        return socket;
+    }
 
-        OutputStream out = socket.getOutputStream();
-        out.write(myIdentity.serialize().getBytes());
-        out.flush();
+    /**
+     * Connects in the background to the trusted devices we aren't connected to, at the address
+     * where we last reached them. Works like if they had sent us a UDP identity packet, using the
+     * identity packet we got from them last time.
+     * <p>
+     * This is much faster than waiting for them to answer a broadcast, and also works on networks
+     * where broadcasts are blocked. Broadcasts and mDNS still run in parallel, for devices that
+     * changed address. Once connected, we ask the device for its current identity, since the stored
+     * one may be outdated.
+     * </p>
+     */
+    private void connectToKnownEndpoints() {
+        ThreadHelper.execute(() -> {
+            SharedPreferences trustedDevices = context.getSharedPreferences("trusted_devices", Context.MODE_PRIVATE);
+            for (LanEndpointTable.Endpoint endpoint : endpointTable.getRecent(System.currentTimeMillis())) {
+                if (!trustedDevices.getBoolean(endpoint.deviceId, false)) {
+                    endpointTable.remove(endpoint.deviceId); // Unpaired since we stored it
+                    continue;
+                }
+                handshakeScheduler.execute(endpoint.address.getAddress(), () -> {
+                    if (!listening || visibleDevices.containsKey(endpoint.deviceId)) {
+                        return;
+                    }
+                    long now = System.currentTimeMillis();
+                    Long last = lastConnectionTime.get(endpoint.deviceId);
+                    if (last != null && (last + MILLIS_DELAY_BETWEEN_CONNECTIONS_TO_SAME_DEVICE > now)) {
+                        return;
+                    }
+                    lastConnectionTime.put(endpoint.deviceId, now);
+
+                    Socket socket;
+                    try {
+                        socket = connectAndSendIdentity(endpoint.address, KNOWN_ENDPOINT_CONNECT_TIMEOUT_MILLIS);
+                    } catch (JSONException | IOException e) {
+                        Log.d("LanLinkProvider", "Device " + endpoint.deviceId + " isn't at its last known address " + endpoint.address + ": " + e.getMessage());
+                        return;
+                    }
+                    Log.i("KDE/LanLinkProvider", "Connected to " + endpoint.deviceId + " at its last known address");
+                    try {
+                        identityPacketReceived(endpoint.identity, socket, LanLink.ConnectionStarted.Remotely);
+                    } catch (IOException e) {
+                        Log.e("LanLinkProvider", "Exception connecting to the last known address of " + endpoint.deviceId, e);
+                        return;
+                    }
+                    // The stored identity can be outdated (name, capabilities, protocol version). Send ours
+                    // to the device, so it connects back with its current one and the link gets updated.
+                    sendUdpIdentityPacket(Collections.singletonList(endpoint.address.getAddress()), null);
+                });
+            }
+        });
+    }
 
-        identityPacketReceived(identityPacket, socket, LanLink.ConnectionStarted.Remotely);
+    /**
+     * Stores where we reached a trusted device, for {@link #connectToKnownEndpoints()}
+     */
+    private void rememberEndpoint(String deviceId, NetworkPacket identityPacket, Socket socket, LanLink.ConnectionStarted connectionStarted) {
+        int tcpPort;
+        if (connectionStarted == LanLink.ConnectionStarted.Remotely) {
+            tcpPort = socket.getPort(); // We connected to their TCP server
+        } else {
+            // They connected to us, their TCP server port is only known if they included it
+            tcpPort = identityPacket.getInt("tcpPort", endpointTable.getTcpPort(deviceId));
+        }
+        if (tcpPort < MIN_PORT || tcpPort > MAX_PORT) {
+            return;
+        }
+        endpointTable.put(deviceId, socket.getInetAddress(), tcpPort, identityPacket, System.currentTimeMillis());
+    }
+
+    private boolean isMultiplexedPayloadsEnabled() {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return preferences.getBoolean(SettingsFragment.KEY_MULTIPLEXED_PAYLOADS_ENABLED, false);
+    }
+
+    /**
+     * Adds to our identity packet the optional features of the LAN backend we support
+     */
+    private void addLanCapabilities(NetworkPacket identity) {
+        if (isMultiplexedPayloadsEnabled()) {
+            identity.set(PayloadMultiplexer.IDENTITY_KEY, PayloadMultiplexer.PROTOCOL_VERSION);
+        }
     }
 
     private void configureSocket(Socket socket) {
@@ -177,7 +303,7 @@ public class LanLinkProvider extends BaseLinkProvider {
 
     /**
      * Called when a new 'identity' packet is received. Those are passed here by
-     * {@link #tcpPacketReceived(Socket)} and {@link #udpPacketReceived(DatagramPacket)}.
+     * {@link #tcpPacketReceived(Socket)} and {@link #udpPacketReceived(InetAddress, byte[])}.
      * <p>
      * Should be called on a new thread since it blocks until the handshake is completed.
      * </p><p>
@@ -219,51 +345,74 @@ public class LanLinkProvider extends BaseLinkProvider {
         String deviceName = identityPacket.getString("deviceName", "unknown");
         Log.i("KDE/LanLinkProvider", "Starting SSL handshake with " + deviceName + " trusted:" + isDeviceTrusted);
 
-        final SSLSocket sslSocket = SslHelper.convertToSslSocket(context, socket, deviceId, isDeviceTrusted, clientMode);
-        sslSocket.addHandshakeCompletedListener(event -> {
-            String mode = clientMode ? "client" : "server";
-            try {
-                Certificate certificate = event.getPeerCertificates()[0];
-                DeviceInfo deviceInfo = DeviceInfo.fromIdentityPacketAndCert(identityPacket, certificate);
-                Log.i("KDE/LanLinkProvider", "Handshake as " + mode + " successful with " + deviceName + " secured with " + event.getCipherSuite());
-                addLink(sslSocket, deviceInfo);
-            } catch (IOException e) {
-                Log.e("KDE/LanLinkProvider", "Handshake as " + mode + " failed with " + deviceName, e);
-                Device device = KdeConnect.getInstance().getDevice(deviceId);
-                if (device == null) {
-                    return;
-                }
-                device.unpair();
-            }
-        });
+        final SslChannel sslChannel = new SslChannel(socket.getChannel(), SslHelper.createSslEngine(context, deviceId, isDeviceTrusted, clientMode, (InetSocketAddress) socket.getRemoteSocketAddress()));
+        String mode = clientMode ? "client" : "server";
 
-        //Handshake is blocking, so do it on another thread and free this thread to keep receiving new connection
         Log.d("LanLinkProvider", "Starting handshake");
-        sslSocket.startHandshake();
+        long handshakeStart = System.currentTimeMillis();
+        long handshakeStartNanos = System.nanoTime();
+        try {
+            sslChannel.handshake(SslChannel.HANDSHAKE_TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            sslChannel.close();
+            throw e;
+        }
+        handshakeTimer.recordSince(handshakeStartNanos);
+        SslHelper.onHandshakeCompleted(sslChannel.getSession(), handshakeStart);
         Log.d("LanLinkProvider", "Handshake done");
+
+        try {
+            Certificate certificate = sslChannel.getPeerCertificates()[0];
+            DeviceInfo deviceInfo = DeviceInfo.fromIdentityPacketAndCert(identityPacket, certificate);
+            Log.i("KDE/LanLinkProvider", "Handshake as " + mode + " successful with " + deviceName + " secured with " + sslChannel.getSession().getCipherSuite());
+            boolean multiplexPayloads = isMultiplexedPayloadsEnabled()
+                    && identityPacket.getInt(PayloadMultiplexer.IDENTITY_KEY, 0) >= PayloadMultiplexer.PROTOCOL_VERSION;
+            addLink(sslChannel, deviceInfo, multiplexPayloads);
+            if (isDeviceTrusted) {
+                rememberEndpoint(deviceId, identityPacket, socket, connectionStarted);
+            }
+        } catch (IOException e) {
+            Log.e("KDE/LanLinkProvider", "Handshake as " + mode + " failed with " + deviceName, e);
+            sslChannel.close();
+            Device device = KdeConnect.getInstance().getDevice(deviceId);
+            if (device == null) {
+                return;
+            }
+            device.unpair();
+        }
     }
 
     /**
      * Add or update a link in the {@link #visibleDevices} map.
      *
-     * @param socket           a new Socket, which should be used to send and receive packets from the remote device
+     * @param channel          a new connection, which should be used to send and receive packets from the remote device
      * @param deviceInfo       remote device info
-     * @throws IOException if an exception is thrown by {@link LanLink#reset(SSLSocket)}
+     * @param multiplexPayloads whether both devices support sending payloads over a {@link PayloadMultiplexer}
+     * @throws IOException if an exception is thrown by {@link LanLink#reset(SslChannel)}
      */
-    private void addLink(SSLSocket socket, DeviceInfo deviceInfo) throws IOException {
+    private void addLink(SslChannel channel, DeviceInfo deviceInfo, boolean multiplexPayloads) throws IOException {
         LanLink link = visibleDevices.get(deviceInfo.id);
         if (link != null) {
             if (!link.getDeviceInfo().certificate.equals(deviceInfo.certificate)) {
                 Log.e("LanLinkProvider", "LanLink was asked to replace a socket but the certificate doesn't match, aborting");
+                channel.close();
                 return;
             }
             // Update existing link
             Log.d("KDE/LanLinkProvider", "Reusing same link for device " + deviceInfo.id);
-            final Socket oldSocket = link.reset(socket);
+            link.setDeviceInfo(deviceInfo);
+            link.setMultiplexPayloads(multiplexPayloads);
+            link.reset(channel);
+            // The identity may be newer than the one the link was created with, eg: if it was a stored one
+            Device device = KdeConnect.getInstance().getDevice(deviceInfo.id);
+            if (device != null && device.updateDeviceInfo(deviceInfo)) {
+                device.reloadPluginsFromSettings();
+            }
         } else {
             // Create a new link
             Log.d("KDE/LanLinkProvider", "Creating a new link for device " + deviceInfo.id);
-            link = new LanLink(context, deviceInfo, this, socket);
+            link = new LanLink(context, deviceInfo, this, channel);
+            link.setMultiplexPayloads(multiplexPayloads);
             visibleDevices.put(deviceInfo.id, link);
             onConnectionReceived(link);
         }
@@ -272,6 +421,8 @@ public class LanLinkProvider extends BaseLinkProvider {
     public LanLinkProvider(Context context) {
         this.context = context;
         this.mdnsDiscovery = new MdnsDiscovery(context, this);
+        this.endpointTable = new LanEndpointTable(context.getSharedPreferences("lan_endpoints", Context.MODE_PRIVATE));
+        this.handshakeScheduler = new HandshakeScheduler(MAX_CONCURRENT_HANDSHAKES, MAX_QUEUED_HANDSHAKES, MAX_HANDSHAKES_PER_ADDRESS);
     }
 
     private void setupUdpListener() {
@@ -291,13 +442,18 @@ public class LanLinkProvider extends BaseLinkProvider {
         }
         ThreadHelper.execute(() -> {
             Log.i("UdpListener", "Starting UDP listener");
+            byte[] buffer = new byte[MAX_UDP_PACKET_SIZE];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
             while (listening) {
                 try {
-                    DatagramPacket packet = new DatagramPacket(new byte[MAX_UDP_PACKET_SIZE], MAX_UDP_PACKET_SIZE);
+                    packet.setLength(buffer.length); // receive() shrinks it to the size of the last packet
                     udpServer.receive(packet);
-                    ThreadHelper.execute(() -> {
+                    InetAddress address = packet.getAddress();
+                    // Only copy what we received, the buffer is reused for the next packet right away
+                    byte[] data = Arrays.copyOf(buffer, packet.getLength());
+                    handshakeScheduler.execute(address, () -> {
                         try {
-                            udpPacketReceived(packet);
+                            udpPacketReceived(address, data);
                         } catch (JSONException | IOException e) {
                             Log.e("LanLinkProvider", "Exception receiving incoming UDP connection", e);
                         }
@@ -313,7 +469,8 @@ public class LanLinkProvider extends BaseLinkProvider {
 
     private void setupTcpListener() {
         try {
-            tcpServer = openServerSocketOnFreePort(MIN_PORT);
+            // Accepted sockets need to be backed by a channel so the LanEventLoop can read from them
+            tcpServer = openServerSocketOnFreePort(MIN_PORT, true);
         } catch (IOException e) {
             Log.e("LanLinkProvider", "Error creating tcp server", e);
             throw new RuntimeException(e);
@@ -323,13 +480,16 @@ public class LanLinkProvider extends BaseLinkProvider {
                 try {
                     Socket socket = tcpServer.accept();
                     configureSocket(socket);
-                    ThreadHelper.execute(() -> {
+                    boolean accepted = handshakeScheduler.execute(socket.getInetAddress(), () -> {
                         try {
                             tcpPacketReceived(socket);
                         } catch (IOException e) {
                             Log.e("LanLinkProvider", "Exception receiving incoming TCP connection", e);
                         }
                     });
+                    if (!accepted) {
+                        socket.close();
+                    }
                 } catch (Exception e) {
                     Log.e("LanLinkProvider", "TcpReceive exception", e);
                 }
@@ -340,14 +500,19 @@ public class LanLinkProvider extends BaseLinkProvider {
     }
 
     static ServerSocket openServerSocketOnFreePort(int minPort) throws IOException {
+        return openServerSocketOnFreePort(minPort, false);
+    }
+
+    static ServerSocket openServerSocketOnFreePort(int minPort, boolean withChannel) throws IOException {
         int tcpPort = minPort;
         while (tcpPort <= MAX_PORT) {
+            ServerSocket candidateServer = withChannel ? ServerSocketChannel.open().socket() : new ServerSocket();
             try {
-                ServerSocket candidateServer = new ServerSocket();
                 candidateServer.bind(new InetSocketAddress(tcpPort));
                 Log.i("KDE/LanLink", "Using port " + tcpPort);
                 return candidateServer;
             } catch (IOException e) {
+                IOUtils.close(candidateServer);
                 tcpPort++;
                 if (tcpPort == MAX_PORT) {
                     Log.e("KDE/LanLink", "No ports available");
@@ -399,13 +564,9 @@ public class LanLinkProvider extends BaseLinkProvider {
             return;
         }
 
-        DeviceInfo myDeviceInfo = DeviceHelper.getDeviceInfo(context);
-        NetworkPacket identity = myDeviceInfo.toIdentityPacket();
-        identity.set("tcpPort", tcpServer.getLocalPort());
-
         byte[] bytes;
         try {
-            bytes = identity.serialize().getBytes(Charsets.UTF_8);
+            bytes = getUdpIdentityBytes(tcpServer.getLocalPort());
         } catch (JSONException e) {
             Log.e("KDE/LanLinkProvider", "Failed to serialize identity packet", e);
             return;
@@ -413,6 +574,90 @@ public class LanLinkProvider extends BaseLinkProvider {
 
         DatagramSocket socket;
         try {
+            socket = getUdpSendSocket(network);
+        } catch (SocketException e) {
+            Log.e("KDE/LanLinkProvider", "Failed to create DatagramSocket", e);
+            return;
+        }
+
+        DatagramPacket packet = new DatagramPacket(bytes, bytes.length);
+        packet.setPort(MIN_PORT);
+        for (InetAddress ip : ipList) {
+            try {
+                packet.setAddress(ip);
+                socket.send(packet);
+                //Log.i("KDE/LanLinkProvider","Udp identity packet sent to address "+client);
+            } catch (IOException e) {
+                Log.e("KDE/LanLinkProvider", "Sending udp identity packet failed. Invalid address? (" + ip.toString() + ")", e);
+            }
+        }
+    }
+
+    /**
+     * Our identity packet as sent over UDP, along with what it was generated from
+     */
+    private static class CachedIdentity {
+        final String deviceId;
+        final String deviceName;
+        final DeviceType deviceType;
+        final int tcpPort;
+        final boolean multiplexPayloads;
+        final byte[] bytes;
+
+        CachedIdentity(String deviceId, String deviceName, DeviceType deviceType, int tcpPort, boolean multiplexPayloads, byte[] bytes) {
+            this.deviceId = deviceId;
+            this.deviceName = deviceName;
+            this.deviceType = deviceType;
+            this.tcpPort = tcpPort;
+            this.multiplexPayloads = multiplexPayloads;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Returns our serialized UDP identity packet, which is only serialized again if something in it
+     * changed. The capabilities aren't checked, since they can't change once the plugins are loaded.
+     */
+    private byte[] getUdpIdentityBytes(int tcpPort) throws JSONException {
+        String deviceId = DeviceHelper.getDeviceId(context);
+        String deviceName = DeviceHelper.getDeviceName(context);
+        DeviceType deviceType = DeviceHelper.getDeviceType(context);
+        boolean multiplexPayloads = isMultiplexedPayloadsEnabled();
+        CachedIdentity cached = cachedUdpIdentity;
+        if (cached != null && cached.tcpPort == tcpPort && cached.multiplexPayloads == multiplexPayloads
+                && cached.deviceType == deviceType && cached.deviceId.equals(deviceId) && cached.deviceName.equals(deviceName)) {
+            return cached.bytes;
+        }
+
+        NetworkPacket identity = DeviceHelper.getDeviceInfo(context).toIdentityPacket();
+        identity.set("tcpPort", tcpPort);
+        addLanCapabilities(identity);
+        byte[] bytes = identity.serializeToBytes();
+        cachedUdpIdentity = new CachedIdentity(deviceId, deviceName, deviceType, tcpPort, multiplexPayloads, bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns a socket to send UDP packets to the given network, which is kept open for the next time
+     */
+    private DatagramSocket getUdpSendSocket(@Nullable Network network) throws SocketException {
+        synchronized (udpSendSockets) {
+            DatagramSocket socket = udpSendSockets.get(network);
+            if (socket != null && !socket.isClosed()) {
+                return socket;
+            }
+            if (network != null) {
+                // We moved to a new network, sockets bound to the previous ones won't work anymore
+                Iterator<Map.Entry<Network, DatagramSocket>> it = udpSendSockets.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Network, DatagramSocket> entry = it.next();
+                    if (entry.getKey() != null) {
+                        entry.getValue().close();
+                        it.remove();
+                    }
+                }
+            }
+
             socket = new DatagramSocket();
             if (network != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
                 try {
@@ -424,21 +669,18 @@ public class LanLinkProvider extends BaseLinkProvider {
             }
             socket.setReuseAddress(true);
             socket.setBroadcast(true);
-        } catch (SocketException e) {
-            Log.e("KDE/LanLinkProvider", "Failed to create DatagramSocket", e);
-            return;
+            udpSendSockets.put(network, socket);
+            return socket;
         }
+    }
 
-        for (InetAddress ip : ipList) {
-            try {
-                socket.send(new DatagramPacket(bytes, bytes.length, ip, MIN_PORT));
-                //Log.i("KDE/LanLinkProvider","Udp identity packet sent to address "+client);
-            } catch (IOException e) {
-                Log.e("KDE/LanLinkProvider", "Sending udp identity packet failed. Invalid address? (" + ip.toString() + ")", e);
+    private void closeUdpSendSockets() {
+        synchronized (udpSendSockets) {
+            for (DatagramSocket socket : udpSendSockets.values()) {
+                socket.close();
             }
+            udpSendSockets.clear();
         }
-
-        socket.close();
     }
 
     @Override
@@ -451,6 +693,8 @@ public class LanLinkProvider extends BaseLinkProvider {
             setupUdpListener();
             setupTcpListener();
 
+            connectToKnownEndpoints();
+
             mdnsDiscovery.startDiscovering();
             mdnsDiscovery.startAnnouncing();
 
@@ -466,6 +710,7 @@ public class LanLinkProvider extends BaseLinkProvider {
         }
         lastBroadcast = System.currentTimeMillis();
 
+        connectToKnownEndpoints();
         broadcastUdpIdentityPacket(network);
         mdnsDiscovery.stopDiscovering();
         mdnsDiscovery.startDiscovering();
@@ -487,6 +732,7 @@ public class LanLinkProvider extends BaseLinkProvider {
         } catch (Exception e) {
             Log.e("LanLink", "Exception", e);
         }
+        closeUdpSendSockets();
     }
 
     @Override
@@ -0,0 +1,243 @@
+/*
+ * SPDX-FileCopyrightText: 2023 KDE Connect contributors
+ *
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Backends.LanBackend;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.kde.kdeconnect.Helpers.RandomHelper;
+import org.kde.kdeconnect.Helpers.SecurityHelpers.SslHelper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the {@link PayloadMultiplexer} connections used to exchange payloads with one device: one
+ * we send payloads over (the other device connects to a port we advertise in the payloadTransferInfo)
+ * and one we receive payloads from (we connect to the port they advertise).
+ * <p>
+ * Each listening socket we open gets a new session number, sent along with every payload. That
+ * way the receiving end knows when its connection is stale and it needs to connect again.
+ * </p>
+ */
+class LanPayloadChannel {
+
+    private static final int SENDER_IDLE_TIMEOUT_MILLIS = 60 * 1000;
+    // Longer than the sender's, so it's normally the sender who closes idle connections
+    private static final int RECEIVER_IDLE_TIMEOUT_MILLIS = 2 * SENDER_IDLE_TIMEOUT_MILLIS;
+    private static final int ACCEPT_TIMEOUT_MILLIS = 10 * 1000;
+
+    private static final String KEY_STREAM_ID = "multiplexId";
+    private static final String KEY_SESSION = "multiplexSession";
+    private static final String KEY_PORT = "port";
+
+    private final Context context;
+    private final String deviceId;
+
+    private final AtomicInteger nextStreamId = new AtomicInteger(0);
+    private final Object lock = new Object();
+    private final Object acceptLock = new Object();
+    private final Object connectLock = new Object();
+
+    // Sending side, guarded by lock
+    private int sendingSession = RandomHelper.secureRandom.nextInt();
+    private ServerSocket server;
+    private PayloadMultiplexer sending;
+
+    // Receiving side, guarded by lock
+    private int receivingSession;
+    private PayloadMultiplexer receiving;
+
+    private boolean closed = false;
+
+    LanPayloadChannel(@NonNull Context context, @NonNull String deviceId) {
+        this.context = context;
+        this.deviceId = deviceId;
+    }
+
+    static boolean isMultiplexed(@NonNull JSONObject payloadTransferInfo) {
+        return payloadTransferInfo.has(KEY_STREAM_ID);
+    }
+
+    int newStreamId() {
+        return nextStreamId.incrementAndGet();
+    }
+
+    /**
+     * Creates the payloadTransferInfo to send along a packet whose payload will be sent on the given stream.
+     * If there is a connection already, the stream is reserved on it so it isn't closed for being idle
+     * before {@link #openOutgoing(int)}. Otherwise this starts listening for one.
+     */
+    JSONObject createTransferInfo(int streamId) throws IOException, JSONException {
+        JSONObject payloadTransferInfo = new JSONObject();
+        payloadTransferInfo.put(KEY_STREAM_ID, streamId);
+        synchronized (lock) {
+            if (closed) {
+                throw new IOException("Link closed");
+            }
+            if (sending == null || !sending.reserveOutgoing(streamId)) {
+                if (server == null) {
+                    server = LanLinkProvider.openServerSocketOnFreePort(LanLinkProvider.PAYLOAD_TRANSFER_MIN_PORT);
+                    sendingSession++;
+                }
+                payloadTransferInfo.put(KEY_PORT, server.getLocalPort());
+            }
+            payloadTransferInfo.put(KEY_SESSION, sendingSession);
+        }
+        return payloadTransferInfo;
+    }
+
+    /**
+     * Returns the stream to write a payload to, waiting for the other end to connect if needed.
+     * Closing the returned stream marks the payload as complete, use {@link PayloadMultiplexer#abort(OutputStream)}
+     * to cancel it instead.
+     */
+    OutputStream openOutgoing(int streamId) throws IOException {
+        return getSendingMultiplexer().openOutgoing(streamId);
+    }
+
+    /**
+     * Aborts a payload whose transfer info was created but which won't be sent after all
+     */
+    void abortOutgoing(int streamId) {
+        PayloadMultiplexer sending;
+        synchronized (lock) {
+            sending = this.sending;
+        }
+        if (sending != null) {
+            sending.abortOutgoing(streamId);
+        }
+    }
+
+    private PayloadMultiplexer getSendingMultiplexer() throws IOException {
+        synchronized (acceptLock) {
+            ServerSocket server;
+            synchronized (lock) {
+                if (sending != null && !sending.isClosed()) {
+                    return sending;
+                }
+                server = this.server;
+            }
+            if (server == null) {
+                throw new IOException("The payload connection was closed before the transfer started");
+            }
+            server.setSoTimeout(ACCEPT_TIMEOUT_MILLIS);
+            Socket socket = server.accept();
+            PayloadMultiplexer multiplexer;
+            try {
+                multiplexer = new PayloadMultiplexer(SslHelper.convertToSslSocket(context, socket, deviceId, true, false), SENDER_IDLE_TIMEOUT_MILLIS, this::onMultiplexerClosed);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            Log.i("LanPayloadChannel", "Payload connection established with " + deviceId);
+            synchronized (lock) {
+                if (closed) {
+                    multiplexer.close();
+                    throw new IOException("Link closed");
+                }
+                sending = multiplexer;
+                closeServer();
+            }
+            return multiplexer;
+        }
+    }
+
+    /**
+     * Returns the stream a payload will be received on, connecting to the other end if needed.
+     */
+    InputStream openIncoming(@NonNull JSONObject payloadTransferInfo, @NonNull InetAddress address) throws IOException, JSONException {
+        int streamId = payloadTransferInfo.getInt(KEY_STREAM_ID);
+        int session = payloadTransferInfo.getInt(KEY_SESSION);
+        int port = payloadTransferInfo.optInt(KEY_PORT, -1);
+        return getReceivingMultiplexer(session, port, address).openIncoming(streamId);
+    }
+
+    private PayloadMultiplexer getReceivingMultiplexer(int session, int port, InetAddress address) throws IOException {
+        synchronized (connectLock) {
+            PayloadMultiplexer stale;
+            synchronized (lock) {
+                if (receiving != null && !receiving.isClosed() && receivingSession == session) {
+                    return receiving;
+                }
+                stale = receiving;
+            }
+            if (stale != null) {
+                stale.close();
+            }
+            if (port < 0) {
+                throw new IOException("No payload connection to reuse and no port to connect to");
+            }
+            Socket socket = new Socket();
+            PayloadMultiplexer multiplexer;
+            try {
+                socket.connect(new InetSocketAddress(address, port), ACCEPT_TIMEOUT_MILLIS);
+                multiplexer = new PayloadMultiplexer(SslHelper.convertToSslSocket(context, socket, deviceId, true, true), RECEIVER_IDLE_TIMEOUT_MILLIS, this::onMultiplexerClosed);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            synchronized (lock) {
+                if (closed) {
+                    multiplexer.close();
+                    throw new IOException("Link closed");
+                }
+                receiving = multiplexer;
+                receivingSession = session;
+            }
+            return multiplexer;
+        }
+    }
+
+    private void onMultiplexerClosed(@NonNull PayloadMultiplexer multiplexer) {
+        synchronized (lock) {
+            if (sending == multiplexer) {
+                sending = null;
+            }
+            if (receiving == multiplexer) {
+                receiving = null;
+            }
+        }
+    }
+
+    // Must hold lock
+    private void closeServer() {
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException ignored) {
+            }
+            server = null;
+        }
+    }
+
+    void close() {
+        PayloadMultiplexer sending, receiving;
+        synchronized (lock) {
+            closed = true;
+            closeServer();
+            sending = this.sending;
+            receiving = this.receiving;
+        }
+        if (sending != null) {
+            sending.close();
+        }
+        if (receiving != null) {
+            receiving.close();
+        }
+    }
+}
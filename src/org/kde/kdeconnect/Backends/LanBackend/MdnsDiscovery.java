@@ -17,6 +17,8 @@ import org.kde.kdeconnect.Helpers.DeviceHelper;
 
 import java.net.InetAddress;
 import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public class MdnsDiscovery {
 
@@ -36,6 +38,23 @@ public class MdnsDiscovery {
 
     private NsdResolveQueue mNsdResolveQueue;
 
+    // How long we trust the last address a service resolved to, before resolving it again
+    static final long RESOLVE_CACHE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    private static class ResolvedService {
+        final InetAddress address;
+        final long resolvedAtMillis;
+
+        ResolvedService(InetAddress address, long resolvedAtMillis) {
+            this.address = address;
+            this.resolvedAtMillis = resolvedAtMillis;
+        }
+    }
+
+    // Last known address by service name (ie: device id). Kept across discovery restarts, so after
+    // a network change we can reach devices we already know about without waiting for a resolve.
+    private final ConcurrentHashMap<String, ResolvedService> resolvedServices = new ConcurrentHashMap<>();
+
     public MdnsDiscovery(Context context, LanLinkProvider lanLinkProvider) {
         this.context = context;
         this.lanLinkProvider = lanLinkProvider;
@@ -169,8 +188,14 @@ public class MdnsDiscovery {
                     return;
                 }
 
-                // We use a queue because only one service can be resolved at
-                // a time, otherwise we get error 3 (already active) in onResolveFailed.
+                ResolvedService cached = resolvedServices.get(deviceId);
+                if (cached != null && System.currentTimeMillis() - cached.resolvedAtMillis < RESOLVE_CACHE_TTL_MILLIS) {
+                    Log.i(LOG_TAG, "Sending identity to last known address of " + deviceId + " while resolving it again");
+                    lanLinkProvider.sendUdpIdentityPacket(Collections.singletonList(cached.address), null);
+                }
+
+                // We still resolve it, in case the address changed. We use a queue because on older
+                // Android versions only one service can be resolved at a time.
                 mNsdResolveQueue.resolveOrEnqueue(serviceInfo, createResolveListener());
             }
 
@@ -214,8 +239,16 @@ public class MdnsDiscovery {
             public void onServiceResolved(NsdServiceInfo serviceInfo) {
                 Log.i(LOG_TAG, "MDNS successfully resolved " + serviceInfo);
 
-                // Let the LanLinkProvider handle the connection
+                String deviceId = serviceInfo.getServiceName();
                 InetAddress remoteAddress = serviceInfo.getHost();
+                resolvedServices.put(deviceId, new ResolvedService(remoteAddress, System.currentTimeMillis()));
+
+                if (lanLinkProvider.visibleDevices.containsKey(deviceId)) {
+                    Log.i(LOG_TAG, "Already connected to " + deviceId + " using its last known address");
+                    return;
+                }
+
+                // Let the LanLinkProvider handle the connection
                 lanLinkProvider.sendUdpIdentityPacket(Collections.singletonList(remoteAddress), null);
             }
         };
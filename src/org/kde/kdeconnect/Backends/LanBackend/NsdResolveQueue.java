@@ -8,20 +8,28 @@ package org.kde.kdeconnect.Backends.LanBackend;
 
 import android.net.nsd.NsdManager;
 import android.net.nsd.NsdServiceInfo;
+import android.os.Build;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.HashSet;
 
 public class NsdResolveQueue {
 
     static final String LOG_TAG = "NsdResolveQueue";
 
+    // Before Android 14, NsdManager can only resolve one service at a time, otherwise we get
+    // error 3 (already active) in onResolveFailed. The new mDNS stack doesn't have that limitation.
+    private static final int MAX_CONCURRENT_RESOLVES = Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE ? 4 : 1;
+
     final @NonNull NsdManager mNsdManager;
 
     private final Object mLock = new Object();
-    private final LinkedList<PendingResolve> mResolveRequests = new LinkedList<>();
+    private final ArrayDeque<PendingResolve> mResolveRequests = new ArrayDeque<>();
+    private final HashSet<String> mServiceNames = new HashSet<>(); // Services queued or being resolved
+    private int mActiveResolves = 0;
 
     public NsdResolveQueue(NsdManager nsdManager) {
         this.mNsdManager = nsdManager;
@@ -39,52 +47,56 @@ public class NsdResolveQueue {
 
     public void resolveOrEnqueue(@NonNull NsdServiceInfo serviceInfo, @NonNull NsdManager.ResolveListener listener) {
         synchronized (mLock) {
-            for (PendingResolve existing : mResolveRequests) {
-                if (serviceInfo.getServiceName().equals(existing.serviceInfo.getServiceName())) {
-                    Log.i(LOG_TAG, "Not enqueuing a new resolve request for the same service: " + serviceInfo.getServiceName());
-                    return;
-                }
-            }
-            mResolveRequests.addLast(new PendingResolve(serviceInfo, new ListenerWrapper(listener)));
-
-            if (mResolveRequests.size() == 1) {
-                resolveNextRequest();
+            String serviceName = serviceInfo.getServiceName();
+            if (!mServiceNames.add(serviceName)) {
+                Log.i(LOG_TAG, "Not enqueuing a new resolve request for the same service: " + serviceName);
+                return;
             }
+            mResolveRequests.addLast(new PendingResolve(serviceInfo, new ListenerWrapper(serviceName, listener)));
+            resolveNextRequests();
         }
     }
 
     private class ListenerWrapper implements NsdManager.ResolveListener {
+        private final @NonNull String mServiceName;
         private final @NonNull NsdManager.ResolveListener mListener;
 
-        private ListenerWrapper(@NonNull NsdManager.ResolveListener listener) {
+        private ListenerWrapper(@NonNull String serviceName, @NonNull NsdManager.ResolveListener listener) {
+            mServiceName = serviceName;
             mListener = listener;
         }
 
         @Override
         public void onResolveFailed(NsdServiceInfo serviceInfo, int errorCode) {
             mListener.onResolveFailed(serviceInfo, errorCode);
-
-            synchronized (mLock) {
-                mResolveRequests.pop();
-                resolveNextRequest();
-            }
+            finished(mServiceName);
         }
 
         @Override
         public void onServiceResolved(NsdServiceInfo serviceInfo) {
             mListener.onServiceResolved(serviceInfo);
+            finished(mServiceName);
+        }
+    }
 
-            synchronized (mLock) {
-                mResolveRequests.pop();
-                resolveNextRequest();
-            }
+    private void finished(@NonNull String serviceName) {
+        synchronized (mLock) {
+            mServiceNames.remove(serviceName);
+            mActiveResolves--;
+            resolveNextRequests();
         }
     }
 
-    private void resolveNextRequest() {
-        if (!mResolveRequests.isEmpty()) {
-            PendingResolve request = mResolveRequests.getFirst();
-            mNsdManager.resolveService(request.serviceInfo, request.listener);
+    private void resolveNextRequests() {
+        while (mActiveResolves < MAX_CONCURRENT_RESOLVES && !mResolveRequests.isEmpty()) {
+            PendingResolve request = mResolveRequests.pollFirst();
+            try {
+                mNsdManager.resolveService(request.serviceInfo, request.listener);
+                mActiveResolves++;
+            } catch (IllegalArgumentException e) {
+                Log.e(LOG_TAG, "Couldn't resolve " + request.serviceInfo.getServiceName(), e);
+                mServiceNames.remove(request.serviceInfo.getServiceName());
+            }
         }
     }
 
@@ -0,0 +1,618 @@
+/*
+ * SPDX-FileCopyrightText: 2023 KDE Connect contributors
+ *
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Backends.LanBackend;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.kde.kdeconnect.Helpers.ThreadHelper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Carries several payloads at the same time over a single TLS connection to a device, so that
+ * sending a payload doesn't require opening a new server socket and doing a full handshake.
+ * <p>
+ * Every frame starts with a 9 byte header: frame type, stream id and length. DATA and END frames
+ * flow from the side that sends the payloads to the side that receives them, which sends CREDIT
+ * frames back as it consumes data. A sender never has more than {@link #WINDOW_SIZE} bytes
+ * unacknowledged per stream, so a slow (or absent) reader of one stream can't block the others.
+ * Either side can abort a stream with a RESET frame.
+ * </p>
+ * <p>
+ * Streams that are announced but never opened on this side, because the packet they belong to
+ * got lost or the peer misbehaves, are aborted after {@link #STREAM_OPEN_TIMEOUT_MILLIS}.
+ * </p>
+ */
+class PayloadMultiplexer implements Closeable {
+
+    /**
+     * Sent in the identity packet, under {@link #IDENTITY_KEY}, by devices that support this
+     */
+    static final int PROTOCOL_VERSION = 1;
+    static final String IDENTITY_KEY = "multiplexedPayloadsVersion";
+
+    static final int WINDOW_SIZE = 256 * 1024;
+    private static final int MAX_FRAME_SIZE = 64 * 1024;
+    private static final int HEADER_SIZE = 9;
+    private static final int CREDIT_TIMEOUT_MILLIS = 10 * 1000;
+    static final int STREAM_OPEN_TIMEOUT_MILLIS = 30 * 1000;
+    private static final int MAX_REMEMBERED_CLOSED_STREAMS = 64;
+    private static final int MAX_INCOMING_STREAMS = 64;
+
+    private static final byte FRAME_DATA = 0;
+    private static final byte FRAME_END = 1;
+    private static final byte FRAME_CREDIT = 2;
+    private static final byte FRAME_RESET = 3;
+
+    interface Listener {
+        void onClosed(@NonNull PayloadMultiplexer multiplexer);
+    }
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out; // Guarded by itself
+    private final Listener listener;
+    private final int idleTimeoutMillis;
+
+    private final ConcurrentHashMap<Integer, OutgoingStream> outgoing = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, IncomingStream> incoming = new ConcurrentHashMap<>();
+    // Incoming streams the reader already gave up on, so late DATA frames for them are dropped. Guarded by incoming.
+    private final Map<Integer, Boolean> closedIncoming = new LinkedHashMap<Integer, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+            return size() > MAX_REMEMBERED_CLOSED_STREAMS;
+        }
+    };
+
+    private volatile boolean closed = false; // Only set while holding the monitor of this
+
+    /**
+     * @param socket            an already secured connection
+     * @param idleTimeoutMillis the connection is closed after this long without any frame if no stream is open
+     */
+    PayloadMultiplexer(@NonNull Socket socket, int idleTimeoutMillis, @NonNull Listener listener) throws IOException {
+        this.socket = socket;
+        this.listener = listener;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), MAX_FRAME_SIZE + HEADER_SIZE));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), MAX_FRAME_SIZE + HEADER_SIZE));
+        // Wake up regularly to abort the streams that are never opened
+        socket.setSoTimeout(Math.min(idleTimeoutMillis, STREAM_OPEN_TIMEOUT_MILLIS / 2));
+        ThreadHelper.execute(this::readLoop);
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Reserves a stream id for a payload that will be sent on this connection, so the connection
+     * isn't closed for being idle before {@link #openOutgoing(int)} is called.
+     *
+     * @return false if the connection is already closed
+     */
+    synchronized boolean reserveOutgoing(int streamId) {
+        if (closed) {
+            return false;
+        }
+        outgoing.putIfAbsent(streamId, new OutgoingStream(streamId));
+        return true;
+    }
+
+    /**
+     * Returns a stream to write the payload for the given stream id to. Closing it finishes the payload.
+     */
+    OutputStream openOutgoing(int streamId) throws IOException {
+        OutgoingStream stream;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Payload connection closed");
+            }
+            stream = outgoing.get(streamId);
+            if (stream == null) {
+                stream = new OutgoingStream(streamId);
+                outgoing.put(streamId, stream);
+            }
+        }
+        stream.opened = true;
+        return stream;
+    }
+
+    /**
+     * Aborts the payload with the given stream id, whether {@link #openOutgoing(int)} was called or not
+     */
+    void abortOutgoing(int streamId) {
+        OutgoingStream stream = outgoing.get(streamId);
+        if (stream != null) {
+            stream.abort();
+        }
+    }
+
+    /**
+     * Returns the stream the payload with the given id will be received on. It can be called before or after
+     * the data for that stream starts arriving.
+     */
+    InputStream openIncoming(int streamId) throws IOException {
+        synchronized (incoming) {
+            if (closedIncoming.containsKey(streamId)) {
+                throw new IOException("Payload stream " + streamId + " was already aborted");
+            }
+            IncomingStream stream = getOrCreateIncoming(streamId);
+            stream.opened = true;
+            return stream;
+        }
+    }
+
+    // Must hold the incoming lock
+    private IncomingStream getOrCreateIncoming(int streamId) {
+        IncomingStream stream = incoming.get(streamId);
+        if (stream == null) {
+            stream = new IncomingStream(streamId);
+            incoming.put(streamId, stream);
+        }
+        return stream;
+    }
+
+    /**
+     * Returns the stream a DATA or END frame is for, or null if the frame must be dropped
+     */
+    private IncomingStream getIncomingForFrame(int streamId) {
+        synchronized (incoming) {
+            if (closedIncoming.containsKey(streamId)) {
+                return null;
+            }
+            if (incoming.containsKey(streamId) || incoming.size() < MAX_INCOMING_STREAMS) {
+                return getOrCreateIncoming(streamId);
+            }
+        }
+        Log.w("PayloadMultiplexer", "Too many incoming payload streams, aborting stream " + streamId);
+        resetIncoming(streamId);
+        return null;
+    }
+
+    private void forgetIncoming(int streamId) {
+        synchronized (incoming) {
+            incoming.remove(streamId);
+            closedIncoming.put(streamId, Boolean.TRUE);
+        }
+    }
+
+    private void resetIncoming(int streamId) {
+        IncomingStream stream;
+        synchronized (incoming) {
+            stream = incoming.remove(streamId);
+            closedIncoming.put(streamId, Boolean.TRUE);
+        }
+        if (stream != null) {
+            stream.onReset();
+        }
+        try {
+            writeFrame(FRAME_RESET, streamId, null, 0, 0);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Aborts the streams the other end sent or we reserved, but which nobody opened in time
+     */
+    private void abortUnopenedStreams() {
+        long cutoff = System.currentTimeMillis() - STREAM_OPEN_TIMEOUT_MILLIS;
+        for (OutgoingStream stream : outgoing.values()) {
+            if (!stream.opened && stream.createdMillis < cutoff) {
+                Log.w("PayloadMultiplexer", "Aborting outgoing payload stream " + stream.streamId + " that was never opened");
+                stream.abort();
+            }
+        }
+        ArrayList<Integer> expired = new ArrayList<>();
+        synchronized (incoming) {
+            for (IncomingStream stream : incoming.values()) {
+                if (!stream.opened && stream.createdMillis < cutoff) {
+                    expired.add(stream.streamId);
+                }
+            }
+        }
+        for (int streamId : expired) {
+            Log.w("PayloadMultiplexer", "Aborting incoming payload stream " + streamId + " that was never opened");
+            resetIncoming(streamId);
+        }
+    }
+
+    // Marks the connection as closed if no stream is using it, atomically with reserveOutgoing()
+    private synchronized boolean closeIfIdle() {
+        if (closed || !outgoing.isEmpty() || !incoming.isEmpty()) {
+            return false;
+        }
+        closed = true;
+        return true;
+    }
+
+    private void writeFrame(byte type, int streamId, byte[] data, int offset, int length) throws IOException {
+        synchronized (out) {
+            if (closed) {
+                throw new IOException("Payload connection closed");
+            }
+            try {
+                out.writeByte(type);
+                out.writeInt(streamId);
+                out.writeInt(length);
+                if (length > 0 && data != null) {
+                    out.write(data, offset, length);
+                }
+                out.flush();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+    }
+
+    private void readLoop() {
+        long lastFrameMillis = System.currentTimeMillis();
+        long nextSweepMillis = lastFrameMillis + STREAM_OPEN_TIMEOUT_MILLIS / 2;
+        try {
+            while (!closed) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (SocketTimeoutException e) {
+                    abortUnopenedStreams();
+                    nextSweepMillis = System.currentTimeMillis() + STREAM_OPEN_TIMEOUT_MILLIS / 2;
+                    if (System.currentTimeMillis() - lastFrameMillis >= idleTimeoutMillis && closeIfIdle()) {
+                        Log.i("PayloadMultiplexer", "Closing idle payload connection");
+                        break;
+                    }
+                    continue;
+                }
+                lastFrameMillis = System.currentTimeMillis();
+                if (lastFrameMillis >= nextSweepMillis) {
+                    abortUnopenedStreams(); // The connection is busy enough that reads don't time out
+                    nextSweepMillis = lastFrameMillis + STREAM_OPEN_TIMEOUT_MILLIS / 2;
+                }
+                int streamId = in.readInt();
+                int length = in.readInt();
+                switch (type) {
+                    case FRAME_DATA: {
+                        if (length < 0 || length > MAX_FRAME_SIZE) {
+                            throw new IOException("Invalid frame length " + length);
+                        }
+                        byte[] data = new byte[length];
+                        in.readFully(data);
+                        IncomingStream stream = getIncomingForFrame(streamId);
+                        if (stream != null && !stream.onData(data)) {
+                            Log.w("PayloadMultiplexer", "The other end sent more than the window allows on stream " + streamId);
+                            resetIncoming(streamId);
+                        }
+                        break;
+                    }
+                    case FRAME_END: {
+                        IncomingStream stream = getIncomingForFrame(streamId);
+                        if (stream != null) {
+                            stream.onEnd();
+                        }
+                        break;
+                    }
+                    case FRAME_CREDIT: {
+                        OutgoingStream stream = outgoing.get(streamId);
+                        if (stream != null) {
+                            stream.onCredit(length);
+                        }
+                        break;
+                    }
+                    case FRAME_RESET: {
+                        OutgoingStream outgoingStream = outgoing.get(streamId);
+                        if (outgoingStream != null) {
+                            outgoingStream.onReset();
+                        }
+                        IncomingStream incomingStream;
+                        synchronized (incoming) {
+                            incomingStream = incoming.remove(streamId);
+                            closedIncoming.put(streamId, Boolean.TRUE);
+                        }
+                        if (incomingStream != null) {
+                            incomingStream.onReset();
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unknown frame type " + type);
+                }
+            }
+        } catch (EOFException e) {
+            Log.i("PayloadMultiplexer", "Payload connection closed by the other end");
+        } catch (IOException e) {
+            if (!closed) {
+                Log.e("PayloadMultiplexer", "Payload connection broken", e);
+            }
+        }
+        if (closed) {
+            shutDown(); // Closed for being idle
+        } else {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        shutDown();
+    }
+
+    private void shutDown() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        for (OutgoingStream stream : outgoing.values()) {
+            stream.onReset();
+        }
+        synchronized (incoming) {
+            Iterator<IncomingStream> iterator = incoming.values().iterator();
+            while (iterator.hasNext()) {
+                iterator.next().onReset();
+                iterator.remove();
+            }
+        }
+        listener.onClosed(this);
+    }
+
+    private final class OutgoingStream extends OutputStream {
+        private final int streamId;
+        private final long createdMillis = System.currentTimeMillis();
+        private volatile boolean opened = false;
+        private long credit = WINDOW_SIZE; // Guarded by this
+        private boolean reset = false; // Guarded by this
+        private boolean finished = false;
+
+        OutgoingStream(int streamId) {
+            this.streamId = streamId;
+        }
+
+        synchronized void onCredit(int bytes) {
+            credit += bytes;
+            notifyAll();
+        }
+
+        synchronized void onReset() {
+            reset = true;
+            notifyAll();
+        }
+
+        // Waits until we are allowed to send at least one byte, and returns how many
+        private synchronized int acquireCredit(int wanted) throws IOException {
+            long deadline = System.currentTimeMillis() + CREDIT_TIMEOUT_MILLIS;
+            while (credit <= 0 && !reset) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("The other end stopped reading the payload");
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (reset) {
+                throw new IOException("Payload transfer aborted");
+            }
+            int granted = (int) Math.min(Math.min(wanted, credit), MAX_FRAME_SIZE);
+            credit -= granted;
+            return granted;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int chunk = acquireCredit(len);
+                writeFrame(FRAME_DATA, streamId, b, off, chunk);
+                off += chunk;
+                len -= chunk;
+            }
+        }
+
+        /**
+         * Aborts the transfer, telling the other end the payload won't be completed
+         */
+        void abort() {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                reset = true;
+                notifyAll();
+            }
+            outgoing.remove(streamId);
+            try {
+                writeFrame(FRAME_RESET, streamId, null, 0, 0);
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+            }
+            outgoing.remove(streamId);
+            writeFrame(FRAME_END, streamId, null, 0, 0);
+        }
+    }
+
+    private final class IncomingStream extends InputStream {
+        private final int streamId;
+        private final long createdMillis = System.currentTimeMillis();
+        private boolean opened = false; // Guarded by incoming
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>(); // Guarded by this
+        private int bufferedBytes = 0; // Received and not read yet, guarded by this
+        private int chunkOffset = 0;
+        private boolean ended = false;
+        private boolean reset = false;
+        private boolean closedByReader = false;
+        private int consumedSinceLastCredit = 0;
+
+        IncomingStream(int streamId) {
+            this.streamId = streamId;
+        }
+
+        /**
+         * @return false if the other end sent more data than the window allows
+         */
+        synchronized boolean onData(byte[] data) {
+            if (closedByReader || reset) {
+                return true;
+            }
+            if (bufferedBytes + data.length > WINDOW_SIZE) {
+                return false;
+            }
+            chunks.addLast(data);
+            bufferedBytes += data.length;
+            notifyAll();
+            return true;
+        }
+
+        synchronized void onEnd() {
+            ended = true;
+            notifyAll();
+        }
+
+        synchronized void onReset() {
+            reset = true;
+            chunks.clear(); // The payload won't be complete, don't keep it around
+            bufferedBytes = 0;
+            chunkOffset = 0;
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read < 0 ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int read = 0;
+            int creditToSend = 0;
+            synchronized (this) {
+                while (chunks.isEmpty()) {
+                    if (closedByReader) {
+                        throw new IOException("Stream closed");
+                    }
+                    if (ended) {
+                        forgetIncoming(streamId);
+                        return -1;
+                    }
+                    if (reset) {
+                        throw new IOException("Payload transfer aborted by the other end");
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                while (read < len && !chunks.isEmpty()) {
+                    byte[] chunk = chunks.peekFirst();
+                    int count = Math.min(len - read, chunk.length - chunkOffset);
+                    System.arraycopy(chunk, chunkOffset, b, off + read, count);
+                    read += count;
+                    chunkOffset += count;
+                    if (chunkOffset == chunk.length) {
+                        chunks.removeFirst();
+                        chunkOffset = 0;
+                    }
+                }
+                bufferedBytes -= read;
+                consumedSinceLastCredit += read;
+                if (consumedSinceLastCredit >= WINDOW_SIZE / 2) {
+                    creditToSend = consumedSinceLastCredit;
+                    consumedSinceLastCredit = 0;
+                }
+            }
+            if (creditToSend > 0) {
+                writeFrame(FRAME_CREDIT, streamId, null, 0, creditToSend);
+            }
+            return read;
+        }
+
+        @Override
+        public synchronized int available() {
+            int available = 0;
+            for (byte[] chunk : chunks) {
+                available += chunk.length;
+            }
+            return available - chunkOffset;
+        }
+
+        @Override
+        public void close() {
+            boolean abort;
+            synchronized (this) {
+                if (closedByReader) {
+                    return;
+                }
+                closedByReader = true;
+                abort = !ended && !reset;
+                chunks.clear();
+                bufferedBytes = 0;
+                notifyAll();
+            }
+            forgetIncoming(streamId);
+            if (abort) {
+                try {
+                    writeFrame(FRAME_RESET, streamId, null, 0, 0);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Aborts a stream returned by {@link #openOutgoing(int)}, if it wasn't finished yet
+     */
+    static void abort(OutputStream stream) {
+        if (stream instanceof OutgoingStream) {
+            ((OutgoingStream) stream).abort();
+        }
+    }
+}
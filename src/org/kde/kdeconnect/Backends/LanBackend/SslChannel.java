@@ -0,0 +1,406 @@
+/*
+ * SPDX-FileCopyrightText: 2023 KDE Connect contributors
+ *
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Backends.LanBackend;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.kde.kdeconnect.Helpers.ThreadHelper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.cert.Certificate;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * A TLS connection over a non-blocking {@link SocketChannel}, driven by an {@link SSLEngine} so it
+ * can be read from the {@link LanEventLoop} instead of from a thread of its own.
+ * <p>
+ * Reads are non-blocking and must only happen from a single thread. Writes can happen from any
+ * thread: they block the caller until everything has been handed to the socket. Neither reading
+ * nor closing ever waits for a writer, so a peer that stops reading can't stall the event loop.
+ * </p>
+ */
+class SslChannel implements Closeable {
+
+    static final int HANDSHAKE_TIMEOUT_MILLIS = 10 * 1000;
+    private static final int WRITE_TIMEOUT_MILLIS = 10 * 1000;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+
+    private ByteBuffer netIn; // Encrypted bytes read from the socket and not yet unwrapped
+    private ByteBuffer pendingAppIn; // Application data that arrived together with the end of the handshake
+    private final ByteBuffer netOut; // Encrypted bytes waiting to be written, guarded by writeLock
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile Selector writeSelector; // Only used to wait until the socket is writable again, created under writeLock
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final AtomicBoolean handshakeWritePending = new AtomicBoolean(false);
+
+    SslChannel(@NonNull SocketChannel channel, @NonNull SSLEngine engine) throws IOException {
+        this.channel = channel;
+        this.engine = engine;
+        SSLSession session = engine.getSession();
+        this.netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        this.netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+        channel.configureBlocking(false);
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    SocketAddress getRemoteSocketAddress() {
+        return channel.socket().getRemoteSocketAddress();
+    }
+
+    SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    Certificate[] getPeerCertificates() throws SSLPeerUnverifiedException {
+        return engine.getSession().getPeerCertificates();
+    }
+
+    /**
+     * Size the buffers passed to {@link #read(ByteBuffer)} need to have
+     */
+    int getApplicationBufferSize() {
+        return engine.getSession().getApplicationBufferSize();
+    }
+
+    /**
+     * Performs the TLS handshake, blocking the calling thread until it finishes or times out.
+     */
+    void handshake(int timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        ByteBuffer appIn = ByteBuffer.allocate(getApplicationBufferSize());
+        try (Selector selector = Selector.open()) {
+            SelectionKey key = channel.register(selector, 0);
+            engine.beginHandshake();
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            while (status != SSLEngineResult.HandshakeStatus.FINISHED && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                switch (status) {
+                    case NEED_TASK:
+                        runDelegatedTasks();
+                        status = engine.getHandshakeStatus();
+                        break;
+                    case NEED_WRAP:
+                        status = wrapAndWrite(EMPTY);
+                        break;
+                    case NEED_UNWRAP:
+                        netIn.flip();
+                        SSLEngineResult result;
+                        try {
+                            result = engine.unwrap(netIn, appIn);
+                        } finally {
+                            netIn.compact();
+                        }
+                        status = result.getHandshakeStatus();
+                        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            throw new SSLHandshakeException("Connection closed by peer during handshake");
+                        }
+                        if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                            ensureNetInSpace();
+                            while (true) {
+                                int read = channel.read(netIn);
+                                if (read < 0) {
+                                    throw new SSLHandshakeException("Connection closed by peer during handshake");
+                                }
+                                if (read > 0) {
+                                    break;
+                                }
+                                long remaining = deadline - System.currentTimeMillis();
+                                if (remaining <= 0) {
+                                    throw new SocketTimeoutException("Handshake timed out");
+                                }
+                                key.interestOps(SelectionKey.OP_READ);
+                                selector.select(remaining);
+                                selector.selectedKeys().clear();
+                            }
+                        }
+                        break;
+                    default:
+                        throw new SSLHandshakeException("Unexpected handshake status " + status);
+                }
+            }
+            key.cancel();
+        }
+        appIn.flip();
+        if (appIn.hasRemaining()) {
+            pendingAppIn = appIn;
+        }
+    }
+
+    /**
+     * Non-blocking read of decrypted data into dst, which must have at least
+     * {@link #getApplicationBufferSize()} bytes of free space.
+     *
+     * @return the number of bytes read, 0 if no data is available right now or -1 at end of stream
+     */
+    int read(ByteBuffer dst) throws IOException {
+        if (pendingAppIn != null) {
+            int produced = Math.min(pendingAppIn.remaining(), dst.remaining());
+            ByteBuffer slice = pendingAppIn.duplicate();
+            slice.limit(slice.position() + produced);
+            dst.put(slice);
+            pendingAppIn.position(pendingAppIn.position() + produced);
+            if (!pendingAppIn.hasRemaining()) {
+                pendingAppIn = null;
+            }
+            return produced;
+        }
+        int produced = 0;
+        while (true) {
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, dst);
+            } finally {
+                netIn.compact();
+            }
+            produced += result.bytesProduced();
+            handlePostHandshakeStatus(result.getHandshakeStatus());
+
+            switch (result.getStatus()) {
+                case CLOSED:
+                    return produced > 0 ? produced : -1;
+                case BUFFER_OVERFLOW:
+                    if (produced > 0) {
+                        return produced; // Let the caller drain dst first
+                    }
+                    throw new SSLException("Read buffer too small");
+                case OK:
+                    if (result.bytesConsumed() > 0 || result.bytesProduced() > 0) {
+                        continue; // There may be more records waiting in netIn
+                    }
+                    // fall through
+                case BUFFER_UNDERFLOW:
+                    if (produced > 0) {
+                        return produced;
+                    }
+                    ensureNetInSpace();
+                    int read = channel.read(netIn);
+                    if (read < 0) {
+                        try {
+                            engine.closeInbound();
+                        } catch (SSLException ignored) {
+                            // Peer didn't send close_notify, nothing we can do about it
+                        }
+                        return -1;
+                    }
+                    if (read == 0) {
+                        return 0;
+                    }
+            }
+        }
+    }
+
+    /**
+     * Encrypts and writes all the remaining bytes in src, blocking until they have been handed to the socket.
+     */
+    void write(ByteBuffer src) throws IOException {
+        writeLock.lock();
+        try {
+            do {
+                wrapAndWrite(src);
+            } while (src.hasRemaining());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Stream view of {@link #write(ByteBuffer)}. Every call to write() is encrypted and sent straight away.
+     */
+    OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                SslChannel.this.write(ByteBuffer.wrap(new byte[]{(byte) b}));
+            }
+
+            @Override
+            public void write(@NonNull byte[] b, int off, int len) throws IOException {
+                SslChannel.this.write(ByteBuffer.wrap(b, off, len));
+            }
+        };
+    }
+
+    private SSLEngineResult.HandshakeStatus wrapAndWrite(ByteBuffer src) throws IOException {
+        writeLock.lock();
+        try {
+            if (closed.get()) {
+                throw new SSLException("Connection closed");
+            }
+            netOut.clear();
+            SSLEngineResult result = engine.wrap(src, netOut);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED && result.bytesProduced() == 0) {
+                throw new SSLException("Connection closed");
+            }
+            netOut.flip();
+            writeFully(netOut);
+            SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                status = engine.getHandshakeStatus();
+            }
+            return status;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                awaitWritable();
+            }
+        }
+    }
+
+    private void awaitWritable() throws IOException {
+        Selector selector = writeSelector;
+        try {
+            if (selector == null) {
+                selector = Selector.open();
+                writeSelector = selector;
+                if (closed.get()) {
+                    selector.close(); // close() may have run before writeSelector was set
+                    throw new SSLException("Connection closed");
+                }
+                channel.register(selector, SelectionKey.OP_WRITE);
+            }
+            int ready = selector.select(WRITE_TIMEOUT_MILLIS);
+            if (closed.get()) {
+                throw new SSLException("Connection closed");
+            }
+            if (ready == 0) {
+                throw new SocketTimeoutException("Timed out waiting for the socket to become writable");
+            }
+            selector.selectedKeys().clear();
+        } catch (ClosedSelectorException e) {
+            throw new SSLException("Connection closed");
+        }
+    }
+
+    // TLS 1.3 and renegotiations can require us to send data in response to something we read.
+    // Reads happen on the event loop, which must never wait for the socket to become writable,
+    // so the handshake messages are written from another thread.
+    private void handlePostHandshakeStatus(SSLEngineResult.HandshakeStatus status) {
+        while (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            runDelegatedTasks();
+            status = engine.getHandshakeStatus();
+        }
+        if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP && handshakeWritePending.compareAndSet(false, true)) {
+            ThreadHelper.execute(this::writeHandshakeMessages);
+        }
+    }
+
+    private void writeHandshakeMessages() {
+        writeLock.lock();
+        try {
+            handshakeWritePending.set(false);
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            while (true) {
+                switch (status) {
+                    case NEED_TASK:
+                        runDelegatedTasks();
+                        status = engine.getHandshakeStatus();
+                        break;
+                    case NEED_WRAP:
+                        status = wrapAndWrite(EMPTY);
+                        break;
+                    default:
+                        return;
+                }
+            }
+        } catch (IOException e) {
+            if (!closed.get()) {
+                Log.e("SslChannel", "Couldn't write handshake message, closing", e);
+                close();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private void ensureNetInSpace() {
+        if (!netIn.hasRemaining()) {
+            // The peer is sending records bigger than advertised, the session might have changed size
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(netIn.capacity() * 2, engine.getSession().getPacketBufferSize()));
+            netIn.flip();
+            bigger.put(netIn);
+            netIn = bigger;
+        }
+    }
+
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Closes the connection without waiting for writers, which fail with an exception instead.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        // Best effort close_notify, only if no writer is in the middle of a record
+        if (writeLock.tryLock()) {
+            try {
+                engine.closeOutbound();
+                netOut.clear();
+                engine.wrap(EMPTY, netOut);
+                netOut.flip();
+                channel.write(netOut); // Doesn't wait if the socket isn't writable
+            } catch (IOException ignored) {
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        Selector selector = writeSelector;
+        if (selector != null) {
+            try {
+                selector.close(); // Wakes up a writer waiting for the socket to become writable
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -27,6 +27,7 @@ import org.apache.commons.collections4.MultiValuedMap;
 import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
 import org.kde.kdeconnect.Backends.BaseLink;
 import org.kde.kdeconnect.Helpers.DeviceHelper;
+import org.kde.kdeconnect.Helpers.Metrics;
 import org.kde.kdeconnect.Helpers.NotificationHelper;
 import org.kde.kdeconnect.Helpers.SecurityHelpers.SslHelper;
 import org.kde.kdeconnect.Plugins.Plugin;
@@ -37,8 +38,10 @@ import org.kde.kdeconnect_tp.R;
 import java.io.IOException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Locale;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -354,29 +357,37 @@ public class Device implements BaseLink.PacketReceiver {
     @Override
     public void onPacketReceived(@NonNull NetworkPacket np) {
 
-        DeviceStats.countReceived(getDeviceId(), np.getType());
+        // pluginsByIncomingInterface may not be built yet
+        if (isPaired() && pluginsByIncomingInterface.isEmpty()) {
+            reloadPluginsFromSettings();
+        }
+
+        // The other device could make up any number of types, only count the ones we know separately
+        String statsType = np.getType();
+        if (!NetworkPacket.PACKET_TYPE_PAIR.equals(statsType) && !pluginsByIncomingInterface.containsKey(statsType)) {
+            statsType = DeviceStats.OTHER_PACKET_TYPE;
+        }
+        DeviceStats.countReceived(getDeviceId(), statsType, np.getPayloadSize());
 
         if (NetworkPacket.PACKET_TYPE_PAIR.equals(np.getType())) {
             Log.i("KDE/Device", "Pair packet");
             pairingHandler.packetReceived(np);
         } else if (isPaired()) {
-            // pluginsByIncomingInterface may not be built yet
-            if(pluginsByIncomingInterface.isEmpty()) {
-                reloadPluginsFromSettings();
-            }
-
             Collection<String> targetPlugins = pluginsByIncomingInterface.get(np.getType());
             if (!targetPlugins.isEmpty()) { // When a key doesn't exist the multivaluemap returns an empty collection, so we don't need to check for null
                 for (String pluginKey : targetPlugins) {
                     Plugin plugin = plugins.get(pluginKey);
+                    long start = System.nanoTime();
                     try {
                         plugin.onPacketReceived(np);
                     } catch (Exception e) {
                         Log.e("KDE/Device", "Exception in " + plugin.getPluginKey() + "'s onPacketReceived()", e);
                         //try { Log.e("KDE/Device", "NetworkPacket:" + np.serialize()); } catch (Exception _) { }
                     }
+                    dispatchTimer(pluginKey).recordSince(start);
                 }
             } else {
+                unhandledPackets.increment();
                 Log.w("Device", "Ignoring packet with type " + np.getType() + " because no plugin can handle it");
             }
         } else {
@@ -406,6 +417,19 @@ public class Device implements BaseLink.PacketReceiver {
         }
     }
 
+    // Not counted per type, since the other device could make up any number of types
+    private static final Metrics.Counter unhandledPackets = Metrics.counter("packet.unhandled");
+    private static final ConcurrentHashMap<String, Metrics.Timer> dispatchTimers = new ConcurrentHashMap<>();
+
+    private static Metrics.Timer dispatchTimer(String pluginKey) {
+        Metrics.Timer timer = dispatchTimers.get(pluginKey);
+        if (timer == null) {
+            timer = Metrics.timer("plugin." + pluginKey + ".dispatch");
+            dispatchTimers.put(pluginKey, timer);
+        }
+        return timer;
+    }
+
     public static abstract class SendPacketStatusCallback {
         public abstract void onSuccess();
 
@@ -475,6 +499,69 @@ public class Device implements BaseLink.PacketReceiver {
         }
     }
 
+    /**
+     * Sends several packets in order, letting links pack them together. Each packet is tried on every
+     * link until one of them sends it, as {@link #sendPacketBlocking(NetworkPacket, SendPacketStatusCallback)} does.
+     */
+    @WorkerThread
+    void sendPacketsBlocking(@NonNull List<NetworkPacket> nps, @NonNull List<SendPacketStatusCallback> callbacks) {
+        if (nps.size() == 1) {
+            sendPacketBlocking(nps.get(0), callbacks.get(0));
+            return;
+        }
+
+        List<NetworkPacket> pending = nps;
+        List<SendPacketStatusCallback> pendingCallbacks = callbacks;
+        for (final BaseLink link : links) {
+            if (link == null) continue;
+            long start = System.currentTimeMillis();
+            boolean[] sent = link.sendPackets(pending, pendingCallbacks);
+            // The packets were written together, so split the time among them instead of counting
+            // the whole batch as the send time of each one
+            long sendMillisPerPacket = (System.currentTimeMillis() - start) / pending.size();
+            ArrayList<NetworkPacket> failed = new ArrayList<>();
+            ArrayList<SendPacketStatusCallback> failedCallbacks = new ArrayList<>();
+            for (int i = 0; i < sent.length; i++) {
+                DeviceStats.countSent(getDeviceId(), pending.get(i).getType(), sent[i], pending.get(i).getPayloadSize(), sendMillisPerPacket);
+                if (!sent[i]) {
+                    failed.add(pending.get(i));
+                    failedCallbacks.add(pendingCallbacks.get(i));
+                }
+            }
+            pending = failed;
+            pendingCallbacks = failedCallbacks;
+            if (pending.isEmpty()) break;
+        }
+
+        for (NetworkPacket np : pending) {
+            Log.e("KDE/sendPacket", "No device link (of " + links.size() + " available) could send the packet. Packet " + np.getType() + " to " + deviceInfo.name + " lost!");
+        }
+    }
+
+    /**
+     * @return a human readable summary of the packets waiting to be sent and how long they waited, for diagnostics
+     */
+    public @NonNull String getPacketQueueStats() {
+        DevicePacketQueue queue = packetQueue;
+        if (queue == null) {
+            return "";
+        }
+        StringBuilder ret = new StringBuilder("Send queue\n");
+        for (DevicePacketQueue.LaneStats lane : queue.getStats()) {
+            ret.append(lane.priority.name().toLowerCase(Locale.ROOT));
+            ret.append("\n• ");
+            ret.append(lane.depth);
+            ret.append(" waiting\n• ");
+            ret.append(lane.sentCount);
+            ret.append(" sent, waited ");
+            ret.append(lane.averageWaitMillis);
+            ret.append("ms on average (max ");
+            ret.append(lane.maxWaitMillis);
+            ret.append("ms)\n");
+        }
+        return ret.toString();
+    }
+
     @WorkerThread
     public boolean sendPacketBlocking(@NonNull final NetworkPacket np, @NonNull final SendPacketStatusCallback callback) {
         return sendPacketBlocking(np, callback, false);
@@ -504,12 +591,13 @@ public class Device implements BaseLink.PacketReceiver {
         boolean success = false;
         for (final BaseLink link : links) {
             if (link == null) continue;
+            long start = System.currentTimeMillis();
             try {
                 success = link.sendPacket(np, callback, sendPayloadFromSameThread);
             } catch (IOException e) {
                 e.printStackTrace();
             }
-            DeviceStats.countSent(getDeviceId(), np.getType(), success);
+            DeviceStats.countSent(getDeviceId(), np.getType(), success, np.getPayloadSize(), System.currentTimeMillis() - start);
             if (success) break;
         }
 
@@ -8,49 +8,289 @@ package org.kde.kdeconnect;
 
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import org.kde.kdeconnect.Helpers.Metrics;
 import org.kde.kdeconnect.Helpers.ThreadHelper;
 
 import java.util.ArrayDeque;
-import java.util.Optional;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Keeps a queue of packets to send to a device, to prevent either blocking or using lots of threads
+ * <p>
+ * Packets are sorted into {@link Priority} lanes depending on the plugin that sends them. Interactive
+ * packets (eg: mouse moves) are always sent first. When both normal and bulk packets are waiting,
+ * {@link #NORMAL_PACKETS_PER_BULK_PACKET} normal packets are sent for each bulk one, so neither can
+ * starve the other. Within a lane, plugins take turns, so a plugin sending a burst of packets only
+ * delays its own.
+ * </p><p>
+ * Packets are handed to the device in batches of whatever is ready, so links can write them together.
+ * Non-interactive packets can wait a few milliseconds ({@link #DEFAULT_MAX_BATCH_DELAY_MILLIS} unless
+ * configured otherwise) for others to join them.
+ * </p>
  */
 class DevicePacketQueue {
+
+    enum Priority {
+        INTERACTIVE,
+        NORMAL,
+        BULK,
+    }
+
+    private static final HashMap<String, Priority> priorityByPlugin = new HashMap<>();
+    static {
+        priorityByPlugin.put("kdeconnect.mousepad", Priority.INTERACTIVE);
+        priorityByPlugin.put("kdeconnect.presenter", Priority.INTERACTIVE);
+        priorityByPlugin.put("kdeconnect.bigscreen", Priority.INTERACTIVE);
+        priorityByPlugin.put("kdeconnect.sms", Priority.BULK);
+        priorityByPlugin.put("kdeconnect.contacts", Priority.BULK);
+        priorityByPlugin.put("kdeconnect.share", Priority.BULK);
+        priorityByPlugin.put("kdeconnect.sftp", Priority.BULK);
+    }
+
+    private static final int NORMAL_PACKETS_PER_BULK_PACKET = 4;
+
+    /**
+     * Packets ready to be sent are handed to the links in batches, so they can write them together
+     */
+    private static final int MAX_BATCH_SIZE = 32;
+    /**
+     * How long non-interactive packets can be held waiting for more to send them together, by default
+     */
+    static final long DEFAULT_MAX_BATCH_DELAY_MILLIS = 5;
+
+    /**
+     * A packet and the callback to call once it's sent
+     */
+    private static final class Entry {
+        final NetworkPacket packet;
+        final Device.SendPacketStatusCallback callback;
+        final Priority priority;
+
+        Entry(NetworkPacket packet, Device.SendPacketStatusCallback callback) {
+            this.packet = packet;
+            this.callback = callback;
+            this.priority = getPriority(packet.getType());
+        }
+    }
+
     /**
      * Holds the packet and related stuff to keep in the queue
      */
     private static final class Item {
-        NetworkPacket packet;
+        /**
+         * The packet to send. Can be swapped for a newer one until someone takes it out of the item,
+         * either to send it or because it was removed with {@link #getAndRemoveUnsentPacket(int)}.
+         */
+        private final AtomicReference<Entry> entry;
         /**
          * Replacement ID: if positive, it can be replaced by later packets with the same ID
          */
         final int replaceID;
-        Device.SendPacketStatusCallback callback;
+        final Lane lane;
+        final String plugin;
+        final long enqueuedAtNanos = System.nanoTime();
 
-        Item(NetworkPacket packet, int replaceID, Device.SendPacketStatusCallback callback) {
-            this.packet = packet;
-            this.callback = callback;
+        Item(Entry entry, int replaceID, Lane lane, String plugin) {
+            this.entry = new AtomicReference<>(entry);
             this.replaceID = replaceID;
+            this.lane = lane;
+            this.plugin = plugin;
+            lane.pending.incrementAndGet();
+        }
+
+        /**
+         * @return false if the item was already taken, so the new entry has to be queued on its own
+         */
+        boolean replace(Entry newEntry) {
+            Entry current;
+            do {
+                current = entry.get();
+                if (current == null) {
+                    return false;
+                }
+            } while (!entry.compareAndSet(current, newEntry));
+            return true;
+        }
+
+        /**
+         * @return the entry, or null if someone else took it first
+         */
+        Entry take() {
+            Entry taken = entry.getAndSet(null);
+            if (taken != null) {
+                lane.pending.decrementAndGet();
+            }
+            return taken;
+        }
+
+        boolean isTaken() {
+            return entry.get() == null;
         }
     }
 
-    private final ArrayDeque<Item> items = new ArrayDeque<>();
+    /**
+     * Packets of one priority, grouped by plugin. Plugins are served round-robin.
+     * Only used by the sending thread, except for the pending counter.
+     */
+    private static final class Lane {
+        final Priority priority;
+        private final HashMap<String, ArrayDeque<Item>> itemsByPlugin = new HashMap<>();
+        private final ArrayDeque<String> pluginTurns = new ArrayDeque<>(); // Plugins with packets waiting
+        final AtomicInteger pending = new AtomicInteger(0); // Items added and not taken yet
+
+        long sentCount = 0;
+        long totalWaitNanos = 0;
+        long maxWaitNanos = 0;
+        final Metrics.Timer waitTimer;
+
+        Lane(Priority priority) {
+            this.priority = priority;
+            this.waitTimer = Metrics.timer("queue.wait." + priority.name().toLowerCase(Locale.ROOT));
+        }
+
+        boolean isEmpty() {
+            return pending.get() == 0;
+        }
+
+        void add(Item item) {
+            ArrayDeque<Item> items = itemsByPlugin.get(item.plugin);
+            if (items == null) {
+                items = new ArrayDeque<>();
+                itemsByPlugin.put(item.plugin, items);
+                pluginTurns.addLast(item.plugin);
+            }
+            items.addLast(item);
+        }
+
+        /**
+         * Takes the next entry in this lane
+         * @param itemsByReplaceID the item holding the entry is removed from here, if it's there
+         * @return the entry, or null if there is none
+         */
+        Entry poll(ConcurrentHashMap<Integer, Item> itemsByReplaceID) {
+            while (!pluginTurns.isEmpty()) {
+                String plugin = pluginTurns.removeFirst();
+                ArrayDeque<Item> items = itemsByPlugin.get(plugin);
+                Item item;
+                Entry entry = null;
+                while ((item = items.pollFirst()) != null && (entry = item.take()) == null) {
+                    // Skip items removed or sent while in the queue
+                }
+                if (items.isEmpty()) {
+                    itemsByPlugin.remove(plugin);
+                } else {
+                    pluginTurns.addLast(plugin);
+                }
+                if (item != null) {
+                    if (item.replaceID >= 0) {
+                        itemsByReplaceID.remove(item.replaceID, item);
+                    }
+                    long waitNanos = System.nanoTime() - item.enqueuedAtNanos;
+                    sentCount++;
+                    totalWaitNanos += waitNanos;
+                    maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+                    waitTimer.record(waitNanos);
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        Item findByReplaceID(int replaceID) {
+            for (ArrayDeque<Item> items : itemsByPlugin.values()) {
+                for (Item item : items) {
+                    if (!item.isTaken() && item.replaceID == replaceID) {
+                        return item;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Snapshot of the state of a lane, for diagnostics
+     */
+    static final class LaneStats {
+        final Priority priority;
+        final int depth;
+        final long sentCount;
+        final long averageWaitMillis;
+        final long maxWaitMillis;
+
+        LaneStats(Lane lane) {
+            this.priority = lane.priority;
+            this.depth = lane.pending.get();
+            this.sentCount = lane.sentCount;
+            this.averageWaitMillis = lane.sentCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(lane.totalWaitNanos / lane.sentCount);
+            this.maxWaitMillis = TimeUnit.NANOSECONDS.toMillis(lane.maxWaitNanos);
+        }
+    }
+
+    /*
+     * Producers never block each other nor the sending thread: they push new items to the inbox and
+     * replace packets in place through itemsByReplaceID. Only the sending thread moves items from the
+     * inbox into the lanes, holding lanesLock (which it only shares with rarely used methods).
+     */
+    private final ConcurrentLinkedQueue<Item> inbox = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<Integer, Item> itemsByReplaceID = new ConcurrentHashMap<>();
+    private final Semaphore itemsAvailable = new Semaphore(0);
+    private final Lane[] lanes = new Lane[Priority.values().length];
+    private final Object lanesLock = new Object();
+    private int normalPacketsBeforeBulk = NORMAL_PACKETS_PER_BULK_PACKET; // Guarded by lanesLock
     private final Device mDevice;
-    private final Object lock = new Object();
-    private boolean exit = false;
+    private final long maxBatchDelayMillis;
+    private volatile boolean exit = false;
 
     DevicePacketQueue(Device device) {
         this(device, true);
     }
 
     DevicePacketQueue(Device device, Boolean startThread) {
+        this(device, startThread, DEFAULT_MAX_BATCH_DELAY_MILLIS);
+    }
+
+    /**
+     * @param maxBatchDelayMillis How long non-interactive packets can be held waiting for more to
+     *                            send them together. 0 sends whatever is ready right away.
+     */
+    DevicePacketQueue(Device device, Boolean startThread, long maxBatchDelayMillis) {
         mDevice = device;
+        this.maxBatchDelayMillis = maxBatchDelayMillis;
+        for (Priority priority : Priority.values()) {
+            lanes[priority.ordinal()] = new Lane(priority);
+        }
         if (startThread) {
             ThreadHelper.execute(new SendingRunnable());
         }
     }
 
+    /**
+     * @return the plugin part of a packet type, eg: "kdeconnect.mousepad" for "kdeconnect.mousepad.request"
+     */
+    static @NonNull String getPluginOfPacketType(@NonNull String packetType) {
+        int firstDot = packetType.indexOf('.');
+        int secondDot = (firstDot < 0) ? -1 : packetType.indexOf('.', firstDot + 1);
+        return (secondDot < 0) ? packetType : packetType.substring(0, secondDot);
+    }
+
+    static @NonNull Priority getPriority(@NonNull String packetType) {
+        Priority priority = priorityByPlugin.get(getPluginOfPacketType(packetType));
+        return (priority == null) ? Priority.NORMAL : priority;
+    }
+
     /**
      * Send a packet (at some point in the future)
      * @param packet The packet
@@ -58,27 +298,43 @@ class DevicePacketQueue {
      * @param callback The callback after sending the packet
      */
     void addPacket(NetworkPacket packet, int replaceID, Device.SendPacketStatusCallback callback) {
-        synchronized (lock) {
-            if (exit) {
-                callback.onFailure(new Exception("Device disconnected!"));
-            } else {
-                boolean replaced = false;
-
-                if (replaceID >= 0) {
-                    for (Item item : items) {
-                        if (item.replaceID == replaceID) {
-                            item.packet = packet;
-                            item.callback = callback;
-                            replaced = true;
-                            break;
-                        }
-                    }
-                }
+        if (exit) {
+            callback.onFailure(new Exception("Device disconnected!"));
+            return;
+        }
 
-                if (!replaced) {
-                    items.addLast(new Item(packet, replaceID, callback));
-                    lock.notify();
+        Entry entry = new Entry(packet, callback);
+        if (replaceID < 0) {
+            enqueue(new Item(entry, replaceID, lanes[entry.priority.ordinal()], getPluginOfPacketType(packet.getType())));
+            return;
+        }
+
+        while (true) {
+            Item existing = itemsByReplaceID.get(replaceID);
+            if (existing != null) {
+                if (existing.replace(entry)) {
+                    return;
                 }
+                itemsByReplaceID.remove(replaceID, existing); // Already sent, forget about it
+                continue;
+            }
+            Item item = new Item(entry, replaceID, lanes[entry.priority.ordinal()], getPluginOfPacketType(packet.getType()));
+            if (itemsByReplaceID.putIfAbsent(replaceID, item) == null) {
+                enqueue(item);
+                return;
+            }
+            item.take(); // Somebody else queued one first, undo our pending count and replace theirs
+        }
+    }
+
+    private void enqueue(Item item) {
+        inbox.add(item);
+        itemsAvailable.release();
+        if (exit) {
+            // We might have raced with the sending thread shutting down, make sure the callback is called
+            Entry entry = item.take();
+            if (entry != null) {
+                entry.callback.onFailure(new Exception("Device disconnected!"));
             }
         }
     }
@@ -90,51 +346,169 @@ class DevicePacketQueue {
      * @return The found packet, or null
      */
     NetworkPacket getAndRemoveUnsentPacket(int replaceID) {
-        synchronized (lock) {
-            final Optional<Item> itemOptional = items.stream()
-                    .filter(item -> item.replaceID == replaceID).findFirst();
-            if (itemOptional.isPresent()) {
-                final Item item = itemOptional.get();
-                items.remove(item);
-                return item.packet;
+        if (replaceID >= 0) {
+            Item item = itemsByReplaceID.remove(replaceID);
+            Entry entry = (item == null) ? null : item.take();
+            return (entry == null) ? null : entry.packet;
+        }
+        synchronized (lanesLock) {
+            drainInbox();
+            for (Lane lane : lanes) {
+                Item item = lane.findByReplaceID(replaceID);
+                Entry entry = (item == null) ? null : item.take();
+                if (entry != null) {
+                    return entry.packet;
+                }
             }
         }
         return null;
     }
 
-    void disconnected() {
-        synchronized (lock) {
-            exit = true;
-            lock.notifyAll();
+    // Must hold lanesLock
+    private void drainInbox() {
+        Item item;
+        while ((item = inbox.poll()) != null) {
+            item.lane.add(item);
+        }
+    }
+
+    /**
+     * @return the next entry to send, or null if the queue is empty. Must hold lanesLock.
+     */
+    private Entry pollNextEntry() {
+        drainInbox();
+
+        Lane interactive = lanes[Priority.INTERACTIVE.ordinal()];
+        Lane normal = lanes[Priority.NORMAL.ordinal()];
+        Lane bulk = lanes[Priority.BULK.ordinal()];
+
+        while (true) {
+            Entry entry;
+            if (!interactive.isEmpty()) {
+                entry = interactive.poll(itemsByReplaceID);
+            } else if (!normal.isEmpty() && (bulk.isEmpty() || normalPacketsBeforeBulk > 0)) {
+                normalPacketsBeforeBulk--;
+                entry = normal.poll(itemsByReplaceID);
+            } else if (!bulk.isEmpty()) {
+                normalPacketsBeforeBulk = NORMAL_PACKETS_PER_BULK_PACKET;
+                entry = bulk.poll(itemsByReplaceID);
+            } else {
+                return null;
+            }
+            if (entry != null) {
+                return entry;
+            }
+            // The lane's pending items were taken meanwhile, or they are still on their way to the inbox
+            if (inbox.isEmpty()) {
+                return null; // The producer will wake us up once it's there
+            }
+            drainInbox();
+        }
+    }
+
+    @VisibleForTesting
+    NetworkPacket pollNextPacket() {
+        synchronized (lanesLock) {
+            Entry entry = pollNextEntry();
+            return (entry == null) ? null : entry.packet;
+        }
+    }
+
+    /**
+     * @return the current depth and the wait times so far of each priority lane
+     */
+    @NonNull List<LaneStats> getStats() {
+        ArrayList<LaneStats> stats = new ArrayList<>(lanes.length);
+        synchronized (lanesLock) {
+            for (Lane lane : lanes) {
+                stats.add(new LaneStats(lane));
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Moves entries ready to be sent to batch, until it's full
+     * @return true if any of the added entries is interactive
+     */
+    private boolean fillBatch(ArrayList<Entry> batch) {
+        boolean interactive = false;
+        synchronized (lanesLock) {
+            while (batch.size() < MAX_BATCH_SIZE) {
+                Entry entry = pollNextEntry();
+                if (entry == null) {
+                    break;
+                }
+                interactive |= (entry.priority == Priority.INTERACTIVE);
+                batch.add(entry);
+            }
+        }
+        return interactive;
+    }
+
+    /**
+     * Waits up to maxBatchDelayMillis for more entries to fill the batch, unless an interactive one arrives
+     */
+    private void lingerForBatch(ArrayList<Entry> batch) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxBatchDelayMillis);
+        while (batch.size() < MAX_BATCH_SIZE && !exit) {
+            long remaining = deadline - System.nanoTime();
+            try {
+                if (remaining <= 0 || !itemsAvailable.tryAcquire(remaining, TimeUnit.NANOSECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            itemsAvailable.drainPermits();
+            if (fillBatch(batch)) {
+                return;
+            }
         }
     }
 
+    void disconnected() {
+        exit = true;
+        itemsAvailable.release();
+    }
+
     private final class SendingRunnable implements Runnable {
         @Override
         public void run() {
-            while (true) {
-                Item item;
-                synchronized (lock) {
-                    while (items.isEmpty() && !exit) {
-                        try {
-                            lock.wait();
-                        } catch (InterruptedException ignored) {
-                        }
-                    }
-                    if (exit) {
-                        Log.i("DevicePacketQueue", "Terminating sending loop");
-                        break;
-                    }
-
-                    item = items.removeFirst();
+            ArrayList<Entry> batch = new ArrayList<>(MAX_BATCH_SIZE);
+            ArrayList<NetworkPacket> packets = new ArrayList<>(MAX_BATCH_SIZE);
+            ArrayList<Device.SendPacketStatusCallback> callbacks = new ArrayList<>(MAX_BATCH_SIZE);
+            while (!exit) {
+                boolean interactive = fillBatch(batch);
+                if (batch.isEmpty()) {
+                    // Every enqueue releases a permit after adding to the inbox, so no wakeup is lost
+                    itemsAvailable.acquireUninterruptibly();
+                    itemsAvailable.drainPermits();
+                    continue;
                 }
-
-                mDevice.sendPacketBlocking(item.packet, item.callback);
+                if (!interactive) {
+                    lingerForBatch(batch);
+                }
+                for (Entry entry : batch) {
+                    packets.add(entry.packet);
+                    callbacks.add(entry.callback);
+                }
+                mDevice.sendPacketsBlocking(packets, callbacks);
+                batch.clear();
+                packets.clear();
+                callbacks.clear();
             }
+            Log.i("DevicePacketQueue", "Terminating sending loop");
 
-            while (!items.isEmpty()) {
-                Item item = items.removeFirst();
-                item.callback.onFailure(new Exception("Device disconnected!"));
+            while (true) {
+                Entry entry;
+                synchronized (lanesLock) {
+                    entry = pollNextEntry();
+                }
+                if (entry == null) {
+                    break;
+                }
+                entry.callback.onFailure(new Exception("Device disconnected!"));
             }
         }
     }
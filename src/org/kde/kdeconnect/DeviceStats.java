@@ -6,21 +6,23 @@
 
 package org.kde.kdeconnect;
 
-import android.os.Build;
-import android.util.Log;
-
 import androidx.annotation.NonNull;
-import androidx.annotation.RequiresApi;
 import androidx.annotation.VisibleForTesting;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+/**
+ * Counts the packets exchanged with each device over the last 24 hours.
+ * <p>
+ * Instead of keeping every event, each packet type has a fixed ring of time buckets holding plain
+ * counters, so memory doesn't grow with traffic and counting a packet is a few atomic additions.
+ * </p>
+ */
 public class DeviceStats {
 
     /**
@@ -29,57 +31,193 @@ public class DeviceStats {
     private static final long EVENT_KEEP_WINDOW_MILLIS = 24 * 60 * 60 * 1000;
 
     /**
-     * Delete old (>24 hours, see EVENT_KEEP_WINDOW_MILLIS) events every 6 hours
+     * Events are counted in buckets of 15 minutes, old buckets are reused as time passes
      */
-    private static final long CLEANUP_INTERVAL_MILLIS = EVENT_KEEP_WINDOW_MILLIS/4;
+    @VisibleForTesting
+    static final long BUCKET_MILLIS = 15 * 60 * 1000;
+    private static final int BUCKET_COUNT = (int) (EVENT_KEEP_WINDOW_MILLIS / BUCKET_MILLIS);
 
-    private final static HashMap<String, PacketStats> eventsByDevice = new HashMap<>();
-    private static long nextCleanup = System.currentTimeMillis() + CLEANUP_INTERVAL_MILLIS;
+    /**
+     * Upper bounds (exclusive) of the send time histogram bins, the last bin takes anything slower
+     */
+    @VisibleForTesting
+    static final long[] SEND_MILLIS_BINS = { 1, 4, 16, 64, 256, 1024, 4096 };
+
+    private static final int RECEIVED = 0;
+    private static final int RECEIVED_BYTES = 1;
+    private static final int SENT_SUCCESSFUL = 2;
+    private static final int SENT_FAILED = 3;
+    private static final int SENT_BYTES = 4;
+    private static final int SEND_MILLIS_HISTOGRAM = 5;
+    private static final int FIELD_COUNT = SEND_MILLIS_HISTOGRAM + SEND_MILLIS_BINS.length + 1;
+
+    /**
+     * Counts the packets of types no plugin handles. Every type gets its counters for good, so
+     * callers shouldn't count made up types separately.
+     */
+    public static final String OTHER_PACKET_TYPE = "other";
+
+    private final static ConcurrentHashMap<String, PacketStats> eventsByDevice = new ConcurrentHashMap<>();
 
     static class PacketStats {
         public long createdAtMillis = System.currentTimeMillis();
-        public HashMap<String, ArrayList<Long>> receivedByType = new HashMap<>();
-        public HashMap<String, ArrayList<Long>> sentSuccessfulByType = new HashMap<>();
-        public HashMap<String, ArrayList<Long>> sentFailedByType = new HashMap<>();
+        public final ConcurrentHashMap<String, PacketTypeStats> byType = new ConcurrentHashMap<>();
 
         static class Summary {
             final @NonNull String packetType;
-            int received = 0;
-            int sentSuccessful = 0;
-            int sentFailed = 0;
-            int total = 0;
+            long received = 0;
+            long receivedBytes = 0;
+            long sentSuccessful = 0;
+            long sentFailed = 0;
+            long sentBytes = 0;
+            final long[] sendMillisHistogram = new long[SEND_MILLIS_BINS.length + 1];
+            long total = 0;
 
             Summary(@NonNull String packetType) {
                 this.packetType = packetType;
             }
+
+            /**
+             * @return the upper bound of the histogram bin the given fraction of the sends fall into,
+             * or -1 if that is the last bin (which has no upper bound)
+             */
+            long sendMillisPercentile(double fraction) {
+                long sends = 0;
+                for (long count : sendMillisHistogram) {
+                    sends += count;
+                }
+                long target = (long) Math.ceil(sends * fraction);
+                long seen = 0;
+                for (int i = 0; i < SEND_MILLIS_BINS.length; i++) {
+                    seen += sendMillisHistogram[i];
+                    if (seen >= target) {
+                        return SEND_MILLIS_BINS[i];
+                    }
+                }
+                return -1;
+            }
+        }
+
+        @NonNull PacketTypeStats forType(@NonNull String packetType) {
+            PacketTypeStats stats = byType.get(packetType);
+            if (stats == null) {
+                PacketTypeStats created = new PacketTypeStats();
+                stats = byType.putIfAbsent(packetType, created);
+                if (stats == null) {
+                    stats = created;
+                }
+            }
+            return stats;
+        }
+
+        public @NonNull ArrayList<Summary> getSummaries(long nowMillis) {
+            ArrayList<Summary> summaries = new ArrayList<>();
+            for (Map.Entry<String, PacketTypeStats> entry : byType.entrySet()) {
+                Summary summary = entry.getValue().summarize(entry.getKey(), nowMillis);
+                if (summary.total > 0) {
+                    summaries.add(summary);
+                }
+            }
+            return summaries;
+        }
+    }
+
+    /**
+     * The counters for a single packet type, laid out as {@link #BUCKET_COUNT} consecutive groups of
+     * {@link #FIELD_COUNT} longs. Each bucket remembers which period it is counting, and the first
+     * thread to use it in a new period clears it. Events counted by another thread while it's being
+     * cleared can get lost, which is fine for statistics.
+     */
+    @VisibleForTesting
+    static class PacketTypeStats {
+        private final AtomicLongArray bucketPeriods = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLongArray counters = new AtomicLongArray(BUCKET_COUNT * FIELD_COUNT);
+
+        PacketTypeStats() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                bucketPeriods.set(i, -1);
+            }
+        }
+
+        void countReceived(long nowMillis, long bytes) {
+            int offset = bucketOffset(nowMillis);
+            if (offset < 0) return;
+            counters.incrementAndGet(offset + RECEIVED);
+            if (bytes > 0) {
+                counters.addAndGet(offset + RECEIVED_BYTES, bytes);
+            }
         }
 
-        @RequiresApi(api = Build.VERSION_CODES.N)
-        public @NonNull Collection<Summary> getSummaries() {
-            HashMap<String, Summary> countsByType = new HashMap<>();
-            for (Map.Entry<String, ArrayList<Long>> entry : receivedByType.entrySet()) {
-                Summary summary = countsByType.computeIfAbsent(entry.getKey(), Summary::new);
-                summary.received += entry.getValue().size();
-                summary.total += entry.getValue().size();
+        void countSent(long nowMillis, boolean success, long bytes, long sendMillis) {
+            int offset = bucketOffset(nowMillis);
+            if (offset < 0) return;
+            if (!success) {
+                counters.incrementAndGet(offset + SENT_FAILED);
+                return;
             }
-            for (Map.Entry<String, ArrayList<Long>> entry : sentSuccessfulByType.entrySet()) {
-                Summary summary = countsByType.computeIfAbsent(entry.getKey(), Summary::new);
-                summary.sentSuccessful += entry.getValue().size();
-                summary.total += entry.getValue().size();
+            counters.incrementAndGet(offset + SENT_SUCCESSFUL);
+            if (bytes > 0) {
+                counters.addAndGet(offset + SENT_BYTES, bytes);
             }
-            for (Map.Entry<String, ArrayList<Long>> entry : sentFailedByType.entrySet()) {
-                Summary summary = countsByType.computeIfAbsent(entry.getKey(), Summary::new);
-                summary.sentFailed += entry.getValue().size();
-                summary.total += entry.getValue().size();
+            counters.incrementAndGet(offset + SEND_MILLIS_HISTOGRAM + histogramBin(sendMillis));
+        }
+
+        /**
+         * @return the index of the first counter of the bucket for the given time, or -1 if the
+         * clock went backwards past a bucket that's already counting a later period
+         */
+        private int bucketOffset(long nowMillis) {
+            long period = nowMillis / BUCKET_MILLIS;
+            int bucket = (int) (period % BUCKET_COUNT);
+            int offset = bucket * FIELD_COUNT;
+            long bucketPeriod = bucketPeriods.get(bucket);
+            if (bucketPeriod == period) {
+                return offset;
+            }
+            if (bucketPeriod > period) {
+                return -1;
+            }
+            if (bucketPeriods.compareAndSet(bucket, bucketPeriod, period)) {
+                for (int field = 0; field < FIELD_COUNT; field++) {
+                    counters.set(offset + field, 0);
+                }
             }
-            return countsByType.values();
+            return offset;
+        }
+
+        @NonNull PacketStats.Summary summarize(@NonNull String packetType, long nowMillis) {
+            PacketStats.Summary summary = new PacketStats.Summary(packetType);
+            long period = nowMillis / BUCKET_MILLIS;
+            for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                long bucketPeriod = bucketPeriods.get(bucket);
+                if (bucketPeriod > period || bucketPeriod <= period - BUCKET_COUNT) {
+                    continue; // Unused, or from more than EVENT_KEEP_WINDOW_MILLIS ago
+                }
+                int offset = bucket * FIELD_COUNT;
+                summary.received += counters.get(offset + RECEIVED);
+                summary.receivedBytes += counters.get(offset + RECEIVED_BYTES);
+                summary.sentSuccessful += counters.get(offset + SENT_SUCCESSFUL);
+                summary.sentFailed += counters.get(offset + SENT_FAILED);
+                summary.sentBytes += counters.get(offset + SENT_BYTES);
+                for (int bin = 0; bin < summary.sendMillisHistogram.length; bin++) {
+                    summary.sendMillisHistogram[bin] += counters.get(offset + SEND_MILLIS_HISTOGRAM + bin);
+                }
+            }
+            summary.total = summary.received + summary.sentSuccessful + summary.sentFailed;
+            return summary;
         }
     }
 
-    @RequiresApi(api = Build.VERSION_CODES.N)
-    public static @NonNull String getStatsForDevice(@NonNull String deviceId) {
+    @VisibleForTesting
+    static int histogramBin(long sendMillis) {
+        int bin = 0;
+        while (bin < SEND_MILLIS_BINS.length && sendMillis >= SEND_MILLIS_BINS[bin]) {
+            bin++;
+        }
+        return bin;
+    }
 
-        cleanupIfNeeded();
+    public static @NonNull String getStatsForDevice(@NonNull String deviceId) {
 
         PacketStats packetStats = eventsByDevice.get(deviceId);
         if (packetStats == null) {
@@ -88,7 +226,8 @@ public class DeviceStats {
 
         StringBuilder ret = new StringBuilder();
 
-        long timeInMillis = System.currentTimeMillis() - packetStats.createdAtMillis;
+        long now = System.currentTimeMillis();
+        long timeInMillis = now - packetStats.createdAtMillis;
         if (timeInMillis > EVENT_KEEP_WINDOW_MILLIS) {
             timeInMillis = EVENT_KEEP_WINDOW_MILLIS;
         }
@@ -100,8 +239,8 @@ public class DeviceStats {
         ret.append(minutes);
         ret.append("m\n\n");
 
-        ArrayList<PacketStats.Summary> counts = new ArrayList<>(packetStats.getSummaries());
-        Collections.sort(counts, (o1, o2) -> Integer.compare(o2.total, o1.total)); // Sort them by total number of events
+        ArrayList<PacketStats.Summary> counts = packetStats.getSummaries(now);
+        Collections.sort(counts, (o1, o2) -> Long.compare(o2.total, o1.total)); // Sort them by total number of events
 
         for (PacketStats.Summary count : counts) {
             String name = count.packetType;
@@ -111,88 +250,71 @@ public class DeviceStats {
             ret.append(name);
             ret.append("\n• ");
             ret.append(count.received);
-            ret.append(" received\n• ");
+            ret.append(" received");
+            appendBytes(ret, count.receivedBytes);
+            ret.append("\n• ");
             ret.append(count.sentSuccessful + count.sentFailed);
             ret.append(" sent (");
             ret.append(count.sentFailed);
-            ret.append(" failed)\n");
+            ret.append(" failed)");
+            appendBytes(ret, count.sentBytes);
+            if (count.sentSuccessful > 0) {
+                ret.append("\n• sent in ");
+                appendMillis(ret, count.sendMillisPercentile(0.5));
+                ret.append(" (99%: ");
+                appendMillis(ret, count.sendMillisPercentile(0.99));
+                ret.append(")");
+            }
+            ret.append("\n");
         }
 
         return ret.toString();
     }
 
-    public static void countReceived(@NonNull String deviceId, @NonNull String packetType) {
-        if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.N) {
-            return; // computeIfAbsent not present in API < 24
+    private static void appendBytes(StringBuilder ret, long bytes) {
+        if (bytes > 0) {
+            ret.append(", ");
+            ret.append((bytes + 1023) / 1024);
+            ret.append(" KiB of payloads");
         }
-        synchronized (DeviceStats.class) {
-            eventsByDevice
-                    .computeIfAbsent(deviceId, key -> new PacketStats())
-                    .receivedByType
-                    .computeIfAbsent(packetType, key -> new ArrayList<>())
-                    .add(System.currentTimeMillis());
-        }
-        cleanupIfNeeded();
     }
 
-    public static void countSent(@NonNull String deviceId, @NonNull String packetType, boolean success) {
-        if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.N) {
-            return; // computeIfAbsent not present in API < 24
-        }
-        if (success) {
-            synchronized (DeviceStats.class) {
-                eventsByDevice
-                        .computeIfAbsent(deviceId, key -> new PacketStats())
-                        .sentSuccessfulByType
-                        .computeIfAbsent(packetType, key -> new ArrayList<>())
-                        .add(System.currentTimeMillis());
-            }
+    private static void appendMillis(StringBuilder ret, long upperBoundMillis) {
+        if (upperBoundMillis < 0) {
+            ret.append("≥");
+            ret.append(SEND_MILLIS_BINS[SEND_MILLIS_BINS.length - 1]);
         } else {
-            synchronized (DeviceStats.class) {
-                eventsByDevice
-                        .computeIfAbsent(deviceId, key -> new PacketStats())
-                        .sentFailedByType
-                        .computeIfAbsent(packetType, key -> new ArrayList<>())
-                        .add(System.currentTimeMillis());
-            }
+            ret.append("<");
+            ret.append(upperBoundMillis);
         }
-        cleanupIfNeeded();
+        ret.append("ms");
     }
 
-    private static void cleanupIfNeeded() {
-        final long cutoutTimestamp = System.currentTimeMillis() - EVENT_KEEP_WINDOW_MILLIS;
-        if (System.currentTimeMillis() > nextCleanup) {
-            synchronized (DeviceStats.class) {
-                Log.i("PacketStats", "Doing periodic cleanup");
-                for (PacketStats de : eventsByDevice.values()) {
-                    removeOldEvents(de.receivedByType, cutoutTimestamp);
-                    removeOldEvents(de.sentFailedByType, cutoutTimestamp);
-                    removeOldEvents(de.sentSuccessfulByType, cutoutTimestamp);
-                }
-                nextCleanup = System.currentTimeMillis() + CLEANUP_INTERVAL_MILLIS;
+    private static @NonNull PacketStats forDevice(@NonNull String deviceId) {
+        PacketStats stats = eventsByDevice.get(deviceId);
+        if (stats == null) {
+            PacketStats created = new PacketStats();
+            stats = eventsByDevice.putIfAbsent(deviceId, created);
+            if (stats == null) {
+                stats = created;
             }
         }
+        return stats;
     }
 
-    @VisibleForTesting
-    static void removeOldEvents(HashMap<String, ArrayList<Long>> eventsByType, final long cutoutTimestamp) {
-
-        Iterator<Map.Entry<String, ArrayList<Long>>> iterator = eventsByType.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, ArrayList<Long>> entry = iterator.next();
-            ArrayList<Long> events = entry.getValue();
-
-            int index = Collections.binarySearch(events, cutoutTimestamp);
-            if (index < 0) {
-                index = -(index + 1); // Convert the negative index to insertion point
-            }
+    /**
+     * @param payloadBytes the size of the packet's payload, or a value &lt;= 0 if it has none
+     */
+    public static void countReceived(@NonNull String deviceId, @NonNull String packetType, long payloadBytes) {
+        forDevice(deviceId).forType(packetType).countReceived(System.currentTimeMillis(), payloadBytes);
+    }
 
-            if (index < events.size()) {
-                events.subList(0, index).clear();
-            } else {
-                iterator.remove(); // No element greater than the threshold
-            }
-        }
+    /**
+     * @param payloadBytes the size of the packet's payload, or a value &lt;= 0 if it has none
+     * @param sendMillis   how long the link took to send the packet (or the batch it was sent in)
+     */
+    public static void countSent(@NonNull String deviceId, @NonNull String packetType, boolean success, long payloadBytes, long sendMillis) {
+        forDevice(deviceId).forType(packetType).countSent(System.currentTimeMillis(), success, payloadBytes, sendMillis);
     }
 
 }
@@ -37,6 +37,11 @@ public class ContactsHelper {
 
     static final String LOG_TAG = "ContactsHelper";
 
+    /**
+     * Maximum number of parameters in one query, SQLite refuses more than 999
+     */
+    private static final int MAX_SELECTION_ARGS = 500;
+
     /**
      * Lookup the name and photoID of a contact given a phone number
      */
@@ -139,6 +144,10 @@ public class ContactsHelper {
      * There is a faster API specified using ContactsContract.Contacts.CONTENT_MULTI_VCARD_URI,
      * but there does not seem to be a way to figure out which ID resulted in which VCard using that API
      *
+     * Building the VCards ourselves from ContactsContract.Data would take a single query, but it
+     * would mean writing our own exporter for every kind of data, custom label and type the system
+     * exporter knows about, or silently losing some of them.
+     *
      * @param context    android.content.Context running the request
      * @param IDs        collection of uIDs to look up
      * @return Mapping of uIDs to the corresponding VCard
@@ -154,8 +163,9 @@ public class ContactsHelper {
                 if (input == null) {
                     throw new NullPointerException("ContentResolver did not give us a stream for the VCard for uID " + ID);
                 }
-                final List<String> lines = IOUtils.readLines(input, Charsets.UTF_8);
-                toReturn.put(ID, new VCardBuilder(StringUtils.join(lines, '\n')));
+                // VCardBuilder uses "\n" to end lines, so use it everywhere
+                String vcard = IOUtils.toString(input, Charsets.UTF_8).replace("\r\n", "\n");
+                toReturn.put(ID, new VCardBuilder(vcard));
             } catch (IOException | NullPointerException e) {
                 // If you are experiencing this, please open a bug report indicating how you got here
                 Log.e("Contacts", "Exception while fetching vcards", e);
@@ -200,31 +210,44 @@ public class ContactsHelper {
     }
 
     /**
-     * Get the last-modified timestamp for the specified contact
+     * Get the last-modified timestamp for each of the specified contacts, with as few queries as possible
      *
-     * @param context   android.content.Context running the request
-     * @param contactID Contact uID to read
-     * @throws ContactNotFoundException If the given ID for some reason does not match a contact
-     * @return          Last-modified timestamp of the contact
+     * @param context    android.content.Context running the request
+     * @param contactIDs Contact uIDs to read
+     * @return Mapping of contact uID to last-modified timestamp. Contacts which weren't found are missing.
      */
-    public static Long getContactTimestamp(Context context, uID contactID) throws ContactNotFoundException {
+    public static Map<uID, Long> getContactTimestamps(Context context, Collection<uID> contactIDs) {
         String[] projection = { uID.COLUMN, ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP };
-        String selection = uID.COLUMN + " = ?";
-        String[] selectionArgs = { contactID.toString() };
-
-        Map<uID, Map<String, String>> databaseValue = accessContactsDatabase(context, projection, selection, selectionArgs, null);
-
-        if (databaseValue.size() == 0) {
-            throw new ContactNotFoundException("Querying for contact with id " + contactID + " returned no results.");
-        }
+        List<uID> IDs = new ArrayList<>(contactIDs);
+
+        Map<uID, Long> timestamps = new HashMap<>(IDs.size());
+        for (int start = 0; start < IDs.size(); start += MAX_SELECTION_ARGS) {
+            List<uID> chunk = IDs.subList(start, Math.min(start + MAX_SELECTION_ARGS, IDs.size()));
+            String selection = uID.COLUMN + " IN (" + StringUtils.repeat("?", ",", chunk.size()) + ")";
+            String[] selectionArgs = new String[chunk.size()];
+            for (int i = 0; i < chunk.size(); i++) {
+                selectionArgs[i] = chunk.get(i).toString();
+            }
 
-        if (databaseValue.size() != 1) {
-            Log.w(LOG_TAG, "Received an improper number of return values from the database in getContactTimestamp: " + databaseValue.size());
+            try (Cursor contactsCursor = context.getContentResolver().query(
+                    ContactsContract.Contacts.CONTENT_URI,
+                    projection,
+                    selection,
+                    selectionArgs,
+                    null
+            )) {
+                if (contactsCursor == null) {
+                    continue;
+                }
+                int uIDIndex = contactsCursor.getColumnIndexOrThrow(uID.COLUMN);
+                int timestampIndex = contactsCursor.getColumnIndexOrThrow(ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP);
+                while (contactsCursor.moveToNext()) {
+                    timestamps.put(new uID(contactsCursor.getString(uIDIndex)), contactsCursor.getLong(timestampIndex));
+                }
+            }
         }
 
-        Long timestamp = Long.parseLong(databaseValue.get(contactID).get(ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP));
-
-        return timestamp;
+        return timestamps;
     }
 
     /**
@@ -368,17 +391,4 @@ public class ContactsHelper {
             return contactLookupKey.equals(other);
         }
     }
-
-    /**
-     * Exception to indicate that a specified contact was not found
-     */
-    public static class ContactNotFoundException extends Exception {
-        public ContactNotFoundException(uID contactID) {
-            super("Unable to find contact with ID " + contactID);
-        }
-
-        public ContactNotFoundException(String message) {
-            super(message);
-        }
-    }
 }
@@ -0,0 +1,108 @@
+/*
+ * SPDX-FileCopyrightText: 2023 KDE Connect contributors
+ *
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+ */
+
+package org.kde.kdeconnect.Helpers;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.telephony.SubscriptionManager.OnSubscriptionsChangedListener;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashSet;
+
+/**
+ * Remembers the phone numbers of this device, already canonicalized, so we can quickly tell which
+ * addresses of a message are our own.
+ * <p>
+ * Getting the numbers requires asking the telephony service, so it's only done again after the
+ * active subscriptions (SIM cards) change.
+ * </p>
+ */
+class LocalPhoneNumberCache {
+
+    private static final String LOG_TAG = "LocalPhoneNumberCache";
+
+    private static volatile HashSet<String> canonicalNumbers = null; // Never modified once set
+    private static boolean listening = false;
+
+    /**
+     * Checks if the address is one of the phone numbers of this device, see
+     * {@link TelephonyHelper.LocalPhoneNumber#isMatchingPhoneNumber(String)}
+     *
+     * Make sure that you have the READ_PHONE_STATE permission!
+     */
+    static boolean isLocalPhoneNumber(@NonNull Context context, @Nullable String address) throws SecurityException {
+        if (address == null || address.isEmpty()) {
+            return false;
+        }
+        HashSet<String> localNumbers = getCanonicalNumbers(context);
+        String canonicalAddress = TelephonyHelper.canonicalizePhoneNumber(address);
+        if (localNumbers.contains(canonicalAddress)) {
+            return true;
+        }
+        // The numbers can still match if one of them is missing a prefix, like the country code.
+        // Devices rarely have more than two numbers, so this is quick.
+        for (String localNumber : localNumbers) {
+            if (TelephonyHelper.isMatchingCanonicalPhoneNumber(localNumber, canonicalAddress)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static @NonNull HashSet<String> getCanonicalNumbers(@NonNull Context context) throws SecurityException {
+        HashSet<String> numbers = canonicalNumbers;
+        if (numbers != null) {
+            return numbers;
+        }
+        synchronized (LocalPhoneNumberCache.class) {
+            if (canonicalNumbers != null) {
+                return canonicalNumbers;
+            }
+            listenForChanges(context);
+            numbers = new HashSet<>();
+            for (TelephonyHelper.LocalPhoneNumber localPhoneNumber : TelephonyHelper.getAllPhoneNumbers(context)) {
+                if (localPhoneNumber == null || localPhoneNumber.number == null) {
+                    continue;
+                }
+                String canonicalNumber = TelephonyHelper.canonicalizePhoneNumber(localPhoneNumber.number);
+                if (!canonicalNumber.isEmpty()) {
+                    numbers.add(canonicalNumber);
+                }
+            }
+            canonicalNumbers = numbers;
+            return numbers;
+        }
+    }
+
+    private static synchronized void invalidate() {
+        canonicalNumbers = null;
+    }
+
+    /**
+     * Starts listening for changes of the active subscriptions, for as long as the app runs
+     */
+    private static synchronized void listenForChanges(@NonNull Context context) {
+        if (listening || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP_MR1) {
+            return;
+        }
+        listening = true;
+        Context applicationContext = context.getApplicationContext();
+        // The listener is called on the looper of the thread which registers it, so use one we know has a looper
+        new Handler(Looper.getMainLooper()).post(() -> {
+            TelephonyHelper.SubscriptionCallback onChange = subscriptionID -> invalidate();
+            OnSubscriptionsChangedListener listener = TelephonyHelper.listenActiveSubscriptionIDs(applicationContext, onChange, onChange);
+            if (listener == null) {
+                Log.w(LOG_TAG, "Couldn't listen for subscription changes, phone numbers won't be read again");
+            }
+        });
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * SPDX-FileCopyrightText: 2023 KDE Connect contributors
+ *
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+ */
+
+package org.kde.kdeconnect.Helpers;
+
+import android.database.Cursor;
+import android.provider.Telephony;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the fields of messages from the current row of a cursor over the SMS, the MMS or the
+ * combined messages database.
+ * <p>
+ * The index of every column is looked up once, when the reader is created, and numbers are read
+ * with the typed getters of the cursor. Columns which weren't queried read as missing.
+ * </p>
+ */
+class MessageCursorReader {
+
+    private final Cursor cursor;
+    private final int transportTypeColumn;
+    private final int addressColumn;
+    private final int bodyColumn;
+    private final int dateColumn;
+    private final int typeColumn;
+    private final int readColumn;
+    private final int threadIDColumn;
+    private final int uIDColumn;
+    private final int subscriptionIDColumn;
+    private final int messageBoxColumn;
+
+    MessageCursorReader(@NonNull Cursor cursor) {
+        this.cursor = cursor;
+        transportTypeColumn = cursor.getColumnIndex(SMSHelper.getTransportTypeDiscriminatorColumn());
+        addressColumn = cursor.getColumnIndex(Telephony.Sms.ADDRESS);
+        bodyColumn = cursor.getColumnIndex(SMSHelper.Message.BODY);
+        dateColumn = cursor.getColumnIndex(SMSHelper.Message.DATE);
+        typeColumn = cursor.getColumnIndex(SMSHelper.Message.TYPE);
+        readColumn = cursor.getColumnIndex(SMSHelper.Message.READ);
+        threadIDColumn = cursor.getColumnIndex(SMSHelper.Message.THREAD_ID);
+        uIDColumn = cursor.getColumnIndex(SMSHelper.Message.U_ID);
+        subscriptionIDColumn = cursor.getColumnIndex(SMSHelper.Message.SUBSCRIPTION_ID);
+        messageBoxColumn = cursor.getColumnIndex(Telephony.Mms.MESSAGE_BOX);
+    }
+
+    /**
+     * @return The type of the message in the current row, or null if it's of an unknown type
+     */
+    @Nullable SMSHelper.TransportType getTransportType() {
+        if (transportTypeColumn < 0) {
+            // The column didn't actually exist. See https://issuetracker.google.com/issues/134592631
+            // Try to determine using other information
+            // MessageBoxColumn is defined for MMS only
+            if (!isNull(messageBoxColumn)) {
+                return SMSHelper.TransportType.MMS;
+            } else {
+                // There is room here for me to have made an assumption and we'll guess wrong
+                // The penalty is the user will potentially get some garbled data, so that's not too bad.
+                return SMSHelper.TransportType.SMS;
+            }
+        }
+        String transportTypeString = cursor.getString(transportTypeColumn);
+        if ("mms".equals(transportTypeString)) {
+            return SMSHelper.TransportType.MMS;
+        } else if ("sms".equals(transportTypeString)) {
+            return SMSHelper.TransportType.SMS;
+        } else {
+            Log.w("SMSHelper", "Skipping message with unknown TransportType: " + transportTypeString);
+            return null;
+        }
+    }
+
+    long getUID() {
+        return getLong(uIDColumn, 0);
+    }
+
+    /**
+     * @return The date as stored, which is in milliseconds for SMS but in seconds for MMS
+     */
+    long getRawDate() {
+        return getLong(dateColumn, 0);
+    }
+
+    int getRead() {
+        return getInt(readColumn, 0);
+    }
+
+    @NonNull SMSHelper.ThreadID getThreadID() {
+        return new SMSHelper.ThreadID(getLong(threadIDColumn, SMSHelper.ThreadID.invalidThreadId.threadID));
+    }
+
+    int getSubscriptionID() {
+        return getInt(subscriptionIDColumn, 0);
+    }
+
+    int getMessageBox() {
+        return getInt(messageBoxColumn, 0);
+    }
+
+    /**
+     * Reads the current row as an SMS
+     */
+    @NonNull SMSHelper.Message readSMS() {
+        // Examine all the required SMS columns and emit a log if something seems amiss
+        if (isNull(addressColumn) || isNull(bodyColumn) || isNull(dateColumn) || isNull(typeColumn)
+                || isNull(readColumn) || isNull(threadIDColumn) || isNull(uIDColumn)) {
+            Log.e("parseSMS", "Some fields were invalid. This indicates either a corrupted SMS database or an unsupported device.");
+        }
+
+        List<SMSHelper.Address> address = Collections.singletonList(new SMSHelper.Address(getString(addressColumn)));
+        String body = getString(bodyColumn);
+
+        return new SMSHelper.Message(
+                address,
+                body != null ? body : "",
+                getRawDate(),
+                getInt(typeColumn, 0),
+                getRead(),
+                getThreadID(),
+                getUID(),
+                SMSHelper.Message.EVENT_TEXT_MESSAGE,
+                getSubscriptionID(),
+                null
+        );
+    }
+
+    private boolean isNull(int column) {
+        return column < 0 || cursor.isNull(column);
+    }
+
+    private @Nullable String getString(int column) {
+        return column < 0 ? null : cursor.getString(column);
+    }
+
+    private long getLong(int column, long defaultValue) {
+        return isNull(column) ? defaultValue : cursor.getLong(column);
+    }
+
+    private int getInt(int column, int defaultValue) {
+        return isNull(column) ? defaultValue : cursor.getInt(column);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * SPDX-FileCopyrightText: 2023 KDE Connect contributors
+ *
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Helpers;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide counters, histograms and timers for the packet pipeline, so we can tell which stage,
+ * link or plugin is slow.
+ * <p>
+ * Metrics are created on first use and live until the process dies. Recording a value is a few
+ * atomic operations and never blocks, so it's fine on hot paths. Code that wants a metric in a
+ * loop should keep the instance instead of looking it up by name every time.
+ * </p><p>
+ * Names are dot-separated, from the most general to the most specific part, eg:
+ * "plugin.kdeconnect.mousepad.dispatch".
+ * </p>
+ */
+public class Metrics {
+
+    public static class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * Counts values in power-of-two bins: bin i holds values below 2^i (and at least 2^(i-1)), so
+     * percentiles are exact within a factor of two.
+     */
+    public static class Histogram {
+        private static final int BIN_COUNT = 64;
+
+        private final AtomicLongArray bins = new AtomicLongArray(BIN_COUNT);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            bins.incrementAndGet(Math.min(BIN_COUNT - 1, 64 - Long.numberOfLeadingZeros(value)));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long currentMax;
+            while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+                // Someone else updated max, try again
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getSum() {
+            return sum.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @return an upper bound of the values the given fraction of the recorded values doesn't exceed
+         */
+        public long getPercentile(double fraction) {
+            long target = (long) Math.ceil(count.get() * fraction);
+            long seen = 0;
+            for (int i = 0; i < BIN_COUNT; i++) {
+                seen += bins.get(i);
+                if (seen >= target) {
+                    return Math.min((1L << i) - 1, max.get());
+                }
+            }
+            return max.get();
+        }
+    }
+
+    /**
+     * A histogram of durations, in nanoseconds
+     */
+    public static class Timer extends Histogram {
+        /**
+         * Records the time elapsed since startNanos, a value returned by {@link System#nanoTime()}
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Receives every metric, in no particular order. See {@link #visit(Visitor)}.
+     */
+    public interface Visitor {
+        void counter(@NonNull String name, @NonNull Counter counter);
+        void histogram(@NonNull String name, @NonNull Histogram histogram);
+        void timer(@NonNull String name, @NonNull Timer timer);
+    }
+
+    private static final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<>();
+
+    public static @NonNull Counter counter(@NonNull String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public static @NonNull Histogram histogram(@NonNull String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    public static @NonNull Timer timer(@NonNull String name) {
+        Timer timer = timers.get(name);
+        if (timer == null) {
+            Timer created = new Timer();
+            timer = timers.putIfAbsent(name, created);
+            if (timer == null) {
+                timer = created;
+            }
+        }
+        return timer;
+    }
+
+    /**
+     * Walks all the metrics, to export them in a format other than {@link #writeTo(Writer)}'s
+     */
+    public static void visit(@NonNull Visitor visitor) {
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            visitor.counter(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            visitor.histogram(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+            visitor.timer(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Writes a snapshot of all the metrics as text, one per line, sorted by name. Times are in microseconds.
+     */
+    public static void writeTo(@NonNull Writer writer) throws IOException {
+        ArrayList<String> lines = new ArrayList<>();
+        visit(new Visitor() {
+            @Override
+            public void counter(@NonNull String name, @NonNull Counter counter) {
+                lines.add(name + " count=" + counter.get());
+            }
+
+            @Override
+            public void histogram(@NonNull String name, @NonNull Histogram histogram) {
+                lines.add(name + " " + describe(histogram, 1));
+            }
+
+            @Override
+            public void timer(@NonNull String name, @NonNull Timer timer) {
+                lines.add(name + "_us " + describe(timer, TimeUnit.MICROSECONDS.toNanos(1)));
+            }
+        });
+        Collections.sort(lines);
+        for (String line : lines) {
+            writer.write(line);
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    private static String describe(Histogram histogram, long unit) {
+        long count = histogram.getCount();
+        return String.format(Locale.ROOT, "count=%d mean=%d p50<=%d p90<=%d p99<=%d max=%d",
+                count,
+                count == 0 ? 0 : histogram.getSum() / count / unit,
+                histogram.getPercentile(0.5) / unit,
+                histogram.getPercentile(0.9) / unit,
+                histogram.getPercentile(0.99) / unit,
+                histogram.getMax() / unit);
+    }
+
+    public static void dumpToLog() {
+        StringWriter writer = new StringWriter();
+        try {
+            writeTo(writer);
+        } catch (IOException e) {
+            throw new AssertionError(e); // StringWriter doesn't throw
+        }
+        for (String line : writer.toString().split("\n")) {
+            Log.i("KDE/Metrics", line);
+        }
+    }
+
+    public static void dumpToFile(@NonNull File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(file))) {
+            writer.println("# Metrics at " + System.currentTimeMillis());
+            writeTo(writer);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * SPDX-FileCopyrightText: 2023 KDE Connect contributors
+ *
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+ */
+
+package org.kde.kdeconnect.Helpers;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the addresses of the most recently read MMS, by message ID, so reading the same
+ * messages again doesn't need to load and parse their PDUs.
+ * <p>
+ * The addresses of an MMS don't change once it's stored, but IDs can be reused after a message
+ * is deleted, so entries must be removed when the messages database changes. Hits and misses are
+ * counted in the "sms.mms_addresses.hit" and "sms.mms_addresses.miss" {@link Metrics}.
+ * </p>
+ */
+class MmsAddressCache {
+
+    static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    static class Entry {
+        final @Nullable SMSHelper.Address from;
+        final @Nullable List<SMSHelper.Address> to;
+
+        Entry(@Nullable SMSHelper.Address from, @Nullable List<SMSHelper.Address> to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private static final Metrics.Counter hitCounter = Metrics.counter("sms.mms_addresses.hit");
+    private static final Metrics.Counter missCounter = Metrics.counter("sms.mms_addresses.miss");
+
+    private final LinkedHashMap<Long, Entry> entries; // In access order, guarded by itself
+
+    MmsAddressCache(int maxEntries) {
+        entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return The addresses of the MMS with the given ID, or null if they aren't cached
+     */
+    @Nullable Entry get(long uID) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(uID);
+        }
+        (entry != null ? hitCounter : missCounter).increment();
+        return entry;
+    }
+
+    void put(long uID, @NonNull Entry entry) {
+        synchronized (entries) {
+            entries.put(uID, entry);
+        }
+    }
+
+    void remove(long uID) {
+        synchronized (entries) {
+            entries.remove(uID);
+        }
+    }
+
+    void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * SPDX-FileCopyrightText: 2023 KDE Connect contributors
+ *
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect.Helpers;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies payloads between streams as fast as the link allows.
+ * <p>
+ * The buffer starts at {@link #MIN_BUFFER_SIZE} and doubles up to {@link #MAX_BUFFER_SIZE} while the
+ * source keeps filling it, so small payloads don't pay for a big allocation and big ones need few
+ * writes. File-backed sources are read through their {@link FileChannel}.
+ * </p><p>
+ * Progress isn't computed in the copy loop: a shared timer samples the number of bytes copied every
+ * {@link #PROGRESS_INTERVAL_MILLIS} and reports it if it changed.
+ * </p>
+ */
+public class PayloadTransferHelper {
+
+    public interface CancelSignal {
+        boolean isCanceled();
+    }
+
+    public interface ProgressListener {
+        /**
+         * Called periodically from a timer thread while the copy is running, and a last time from
+         * the copying thread once it finishes. Never called after {@link #copy} returns.
+         */
+        void onProgress(long bytesCopied);
+    }
+
+    static final int MIN_BUFFER_SIZE = 64 * 1024;
+    static final int MAX_BUFFER_SIZE = 1024 * 1024;
+    private static final long PROGRESS_INTERVAL_MILLIS = 500;
+
+    private static final ScheduledExecutorService progressSampler = createProgressSampler();
+
+    private static ScheduledExecutorService createProgressSampler() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "PayloadProgress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * Copies input to output until the end of input or until cancel says so. Neither stream is closed.
+     *
+     * @param expectedSize the payload size if known, or a negative value. Only used to size the buffer.
+     * @return the number of bytes copied
+     */
+    public static long copy(@NonNull InputStream input, @NonNull OutputStream output, long expectedSize,
+                            @NonNull CancelSignal cancel, @Nullable ProgressListener listener) throws IOException {
+        Transfer transfer = new Transfer(listener);
+        ScheduledFuture<?> sampling = null;
+        if (listener != null) {
+            sampling = progressSampler.scheduleAtFixedRate(transfer::report, PROGRESS_INTERVAL_MILLIS, PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        try {
+            FileChannel channel = (input instanceof FileInputStream) ? ((FileInputStream) input).getChannel() : null;
+            byte[] buffer = new byte[initialBufferSize(expectedSize)];
+            long copied = 0;
+            while (!cancel.isCanceled()) {
+                int read = (channel != null) ? readFrom(channel, buffer) : readFrom(input, buffer);
+                if (read < 0) {
+                    break;
+                }
+                output.write(buffer, 0, read);
+                copied += read;
+                transfer.copied = copied;
+                if (read == buffer.length && buffer.length < MAX_BUFFER_SIZE && (expectedSize < 0 || expectedSize - copied > buffer.length)) {
+                    buffer = new byte[buffer.length * 2];
+                }
+            }
+            output.flush();
+            return copied;
+        } finally {
+            if (sampling != null) {
+                sampling.cancel(false);
+            }
+            transfer.finish();
+        }
+    }
+
+    static int initialBufferSize(long expectedSize) {
+        if (expectedSize < 0 || expectedSize >= MIN_BUFFER_SIZE) {
+            return MIN_BUFFER_SIZE;
+        }
+        return (int) Math.max(expectedSize, 1);
+    }
+
+    private static int readFrom(FileChannel channel, byte[] buffer) throws IOException {
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+        int read;
+        do {
+            read = channel.read(wrapped);
+        } while (read >= 0 && wrapped.hasRemaining());
+        return (wrapped.position() > 0) ? wrapped.position() : read;
+    }
+
+    /**
+     * Blocks for the first bytes only, then keeps reading whatever is already available so we
+     * write in big chunks without adding latency.
+     */
+    private static int readFrom(InputStream input, byte[] buffer) throws IOException {
+        int total = input.read(buffer);
+        if (total <= 0) {
+            return total;
+        }
+        while (total < buffer.length && input.available() > 0) {
+            int read = input.read(buffer, total, buffer.length - total);
+            if (read <= 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static class Transfer {
+        private final ProgressListener listener;
+        volatile long copied = 0;
+        private long reported = -1;
+        private boolean finished = false;
+
+        Transfer(ProgressListener listener) {
+            this.listener = listener;
+        }
+
+        synchronized void report() {
+            if (finished) {
+                return;
+            }
+            long copied = this.copied;
+            if (copied != reported) {
+                reported = copied;
+                listener.onProgress(copied);
+            }
+        }
+
+        synchronized void finish() {
+            if (listener != null) {
+                report();
+            }
+            finished = true;
+        }
+    }
+}
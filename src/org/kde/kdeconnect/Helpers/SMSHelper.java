@@ -8,21 +8,18 @@
 package org.kde.kdeconnect.Helpers;
 
 import android.annotation.SuppressLint;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
-import android.graphics.Bitmap;
-import android.media.MediaMetadataRetriever;
-import android.media.ThumbnailUtils;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Looper;
 import android.provider.Telephony;
 import android.telephony.PhoneNumberUtils;
 import android.util.Log;
-import android.util.Pair;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -36,41 +33,38 @@ import com.google.android.mms.util_alt.PduCacheEntry;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.math.NumberUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.kde.kdeconnect.Plugins.SMSPlugin.MimeType;
+import org.kde.kdeconnect.Plugins.SMSPlugin.MmsThumbnailCache;
 import org.kde.kdeconnect.Plugins.SMSPlugin.SmsMmsUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
 
 import kotlin.text.Charsets;
 
 @SuppressLint("InlinedApi")
 public class SMSHelper {
 
-    private static final int THUMBNAIL_HEIGHT = 100;
-    private static final int THUMBNAIL_WIDTH = 100;
+    private static final MmsAddressCache mmsAddressCache = new MmsAddressCache(MmsAddressCache.DEFAULT_MAX_ENTRIES);
 
     /**
      * Get a URI for querying SMS messages
@@ -123,7 +117,7 @@ public class SMSHelper {
      * content://mms-sms/conversations/<threadID> which gives us the complete conversation matching
      * that threadID, so at least it's partially useful to us.
      */
-    private static String getTransportTypeDiscriminatorColumn() {
+    static String getTransportTypeDiscriminatorColumn() {
         return Telephony.MmsSms.TYPE_DISCRIMINATOR_COLUMN;
     }
 
@@ -168,16 +162,8 @@ public class SMSHelper {
         Uri smsUri = getSMSUri();
         Uri mmsUri = getMMSUri();
 
-        List<String> allSmsColumns = new ArrayList<>(Arrays.asList(Message.smsColumns));
-        List<String> allMmsColumns = new ArrayList<>(Arrays.asList(Message.mmsColumns));
-
-        if (getSubscriptionIdSupport(smsUri, context)) {
-            allSmsColumns.addAll(Arrays.asList(Message.multiSIMColumns));
-        }
-
-        if (getSubscriptionIdSupport(mmsUri, context)) {
-            allMmsColumns.addAll(Arrays.asList(Message.multiSIMColumns));
-        }
+        List<String> allSmsColumns = getMessageColumns(context, TransportType.SMS);
+        List<String> allMmsColumns = getMessageColumns(context, TransportType.MMS);
 
         String selection;
 
@@ -199,32 +185,193 @@ public class SMSHelper {
             mmsSelectionArgs.add(threadID.toString());
         }
 
-        String sortOrder = Message.DATE + " DESC";
+        // Suppose we were requested to return N values and suppose a user sends only one MMS per
+        // week and N SMS per day. If we just returned N of each we would return some very old MMS
+        // messages which would be very confusing. So merge both databases by date, only reading
+        // the messages we return.
+        List<Message> toReturn = new ArrayList<>();
+        try (SortedRows smsRows = new SortedRows(context, smsUri, allSmsColumns, selection, smsSelectionArgs.toArray(new String[0]), 1);
+             SortedRows mmsRows = new SortedRows(context, mmsUri, allMmsColumns, selection, mmsSelectionArgs.toArray(new String[0]), 1000)
+        ) {
+            while ((numberToGet == null || toReturn.size() < numberToGet) && (smsRows.hasRow || mmsRows.hasRow)) {
+                SortedRows newest;
+                if (!mmsRows.hasRow || (smsRows.hasRow && smsRows.getDate() >= mmsRows.getDate())) {
+                    newest = smsRows;
+                } else {
+                    newest = mmsRows;
+                }
+                Message message = readMessage(context, newest.reader, true);
+                if (message != null) {
+                    toReturn.add(message);
+                }
+                newest.moveToNext();
+            }
+        }
 
-        List<Message> allMessages = getMessages(smsUri, context, allSmsColumns, selection, smsSelectionArgs.toArray(new String[0]), sortOrder, numberToGet);
-        allMessages.addAll(getMessages(mmsUri, context, allMmsColumns, selection, mmsSelectionArgs.toArray(new String[0]), sortOrder, numberToGet));
+        return toReturn;
+    }
 
-        // Need to now only return the requested number of messages:
-        // Suppose we were requested to return N values and suppose a user sends only one MMS per
-        // week and N SMS per day. We have requested the same N for each, so if we just return everything
-        // we would return some very old MMS messages which would be very confusing.
-        SortedMap<Long, Collection<Message>> sortedMessages = new TreeMap<>(Comparator.reverseOrder());
-        for (Message message : allMessages) {
-            Collection<Message> existingMessages = sortedMessages.computeIfAbsent(message.date,
-                    key -> new ArrayList<>());
-            existingMessages.add(message);
+    /**
+     * The rows of the SMS or the MMS database which match a selection, from the most recent to the
+     * oldest, read one at a time
+     */
+    private static class SortedRows implements AutoCloseable {
+        private final @NonNull Context context;
+        private final @NonNull Uri uri;
+        private final @Nullable Cursor cursor;
+        private final long dateMultiplier;
+        final @Nullable MessageCursorReader reader;
+        boolean hasRow;
+
+        /**
+         * @param dateMultiplier What to multiply the date column by to get milliseconds
+         */
+        SortedRows(
+                @NonNull Context context,
+                @NonNull Uri uri,
+                @NonNull Collection<String> fetchColumns,
+                @Nullable String selection,
+                @Nullable String[] selectionArgs,
+                long dateMultiplier
+        ) {
+            this.context = context;
+            this.uri = uri;
+            this.dateMultiplier = dateMultiplier;
+            try {
+                cursor = context.getContentResolver().query(
+                        uri,
+                        fetchColumns.toArray(ArrayUtils.EMPTY_STRING_ARRAY),
+                        selection,
+                        selectionArgs,
+                        Message.DATE + " DESC");
+            } catch (SQLiteException | IllegalArgumentException e) {
+                throw getAccessException(context, uri, e);
+            }
+            try {
+                hasRow = cursor != null && cursor.moveToFirst();
+            } catch (SQLiteException | IllegalArgumentException e) {
+                cursor.close();
+                throw getAccessException(context, uri, e);
+            }
+            reader = cursor != null ? new MessageCursorReader(cursor) : null;
         }
 
-        List<Message> toReturn = new ArrayList<>(allMessages.size());
+        /**
+         * @return The date of the current row, in milliseconds
+         */
+        long getDate() {
+            return reader.getRawDate() * dateMultiplier;
+        }
 
-        for (Collection<Message> messages : sortedMessages.values()) {
-            toReturn.addAll(messages);
-            if (numberToGet != null && toReturn.size() >= numberToGet) {
-                break;
+        void moveToNext() {
+            try {
+                hasRow = cursor.moveToNext();
+            } catch (SQLiteException | IllegalArgumentException e) {
+                throw getAccessException(context, uri, e);
             }
         }
 
-        return toReturn;
+        @Override
+        public void close() {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Get the messages with the given IDs from the SMS or the MMS database
+     *
+     * @param context android.content.Context running the request
+     * @param transportType Database to read from, since SMS and MMS IDs are independent
+     * @param uIDs IDs of the messages to get
+     * @return The messages which still exist, in ascending ID order
+     */
+    public static @NonNull List<Message> getMessagesWithIDs(
+            @NonNull Context context,
+            @NonNull TransportType transportType,
+            @NonNull Collection<Long> uIDs
+    ) {
+        return getMessagesWithIDs(context, transportType, uIDs, true);
+    }
+
+    /**
+     * Get the messages with the given IDs from the SMS or the MMS database
+     *
+     * @param context android.content.Context running the request
+     * @param transportType Database to read from, since SMS and MMS IDs are independent
+     * @param uIDs IDs of the messages to get
+     * @param generateThumbnails If false, MMS attachments only get a thumbnail if it was already cached
+     * @return The messages which still exist, in ascending ID order
+     */
+    public static @NonNull List<Message> getMessagesWithIDs(
+            @NonNull Context context,
+            @NonNull TransportType transportType,
+            @NonNull Collection<Long> uIDs,
+            boolean generateThumbnails
+    ) {
+        if (uIDs.isEmpty()) {
+            return new ArrayList<>();
+        }
+        // The IDs are numbers, so it's safe to put them in the selection, and this way we don't
+        // hit SQLite's limit on the number of arguments
+        String selection = Message.U_ID + " IN (" + StringUtils.join(uIDs, ',') + ")";
+        return getMessages(getUri(transportType), context, getMessageColumns(context, transportType), selection, null, Message.U_ID + " ASC", null, generateThumbnails);
+    }
+
+    /**
+     * Get a cheap summary of each message in the SMS or the MMS database, which changes whenever
+     * anything we send about the message changes, but doesn't require parsing the message.
+     *
+     * @param context android.content.Context running the request
+     * @param transportType Database to read from
+     * @param minUID Only return messages with an ID greater than or equal to this
+     * @param numberToGet Number of messages to return, starting from the most recent. Pass null for "all"
+     * @return Map of message ID to fingerprint, from the most recent message to the oldest
+     */
+    public static @NonNull Map<Long, Long> getMessageFingerprints(
+            @NonNull Context context,
+            @NonNull TransportType transportType,
+            long minUID,
+            @Nullable Long numberToGet
+    ) {
+        String[] columns = transportType == TransportType.SMS ? Message.smsFingerprintColumns : Message.mmsFingerprintColumns;
+        Map<Long, Long> fingerprints = new LinkedHashMap<>();
+        Uri uri = getUri(transportType);
+        try (Cursor cursor = context.getContentResolver().query(
+                uri,
+                columns,
+                Message.U_ID + " >= ?",
+                new String[]{Long.toString(minUID)},
+                Message.U_ID + " DESC")
+        ) {
+            while (cursor != null && (numberToGet == null || fingerprints.size() < numberToGet) && cursor.moveToNext()) {
+                long fingerprint = 0;
+                for (int i = 0; i < columns.length; i++) {
+                    String value = cursor.getString(i);
+                    fingerprint = 31 * fingerprint + (value == null ? 0 : value.hashCode());
+                }
+                fingerprints.put(cursor.getLong(0), fingerprint);
+            }
+        } catch (SQLiteException | IllegalArgumentException e) {
+            throw new MessageAccessException(uri, e);
+        }
+        return fingerprints;
+    }
+
+    private static @NonNull Uri getUri(@NonNull TransportType transportType) {
+        return transportType == TransportType.SMS ? getSMSUri() : getMMSUri();
+    }
+
+    /**
+     * Get the columns to read from the SMS or the MMS database to build a Message
+     */
+    private static @NonNull List<String> getMessageColumns(@NonNull Context context, @NonNull TransportType transportType) {
+        List<String> columns = new ArrayList<>(Arrays.asList(transportType == TransportType.SMS ? Message.smsColumns : Message.mmsColumns));
+        if (getSubscriptionIdSupport(getUri(transportType), context)) {
+            columns.addAll(Arrays.asList(Message.multiSIMColumns));
+        }
+        return columns;
     }
 
     /**
@@ -265,6 +412,7 @@ public class SMSHelper {
      * @param selectionArgs Parameters for selection. May be null.
      * @param sortOrder Sort ordering passed to Android's content resolver. May be null for unspecified
      * @param numberToGet Number of things to get from the result. Pass null to get all
+     * @param generateThumbnails If false, MMS attachments only get a thumbnail if it was already cached
      * @return Returns List<Message> of all messages in the return set, either in the order of sortOrder or in an unspecified order
      */
     private static @NonNull List<Message> getMessages(
@@ -274,14 +422,11 @@ public class SMSHelper {
             @Nullable String selection,
             @Nullable String[] selectionArgs,
             @Nullable String sortOrder,
-            @Nullable Long numberToGet
+            @Nullable Long numberToGet,
+            boolean generateThumbnails
     ) {
         List<Message> toReturn = new ArrayList<>();
 
-        // Get all the active phone numbers so we can filter the user out of the list of targets
-        // of any MMSes
-        List<TelephonyHelper.LocalPhoneNumber> userPhoneNumbers = TelephonyHelper.getAllPhoneNumbers(context);
-
         try (Cursor myCursor = context.getContentResolver().query(
                 uri,
                 fetchColumns.toArray(ArrayUtils.EMPTY_STRING_ARRAY),
@@ -290,75 +435,73 @@ public class SMSHelper {
                 sortOrder)
         ) {
             if (myCursor != null && myCursor.moveToFirst()) {
+                MessageCursorReader reader = new MessageCursorReader(myCursor);
                 do {
-                    int transportTypeColumn = myCursor.getColumnIndex(getTransportTypeDiscriminatorColumn());
-
-                    TransportType transportType;
-                    if (transportTypeColumn < 0) {
-                        // The column didn't actually exist. See https://issuetracker.google.com/issues/134592631
-                        // Try to determine using other information
-                        int messageBoxColumn = myCursor.getColumnIndex(Telephony.Mms.MESSAGE_BOX);
-                        // MessageBoxColumn is defined for MMS only
-                        boolean messageBoxExists = !myCursor.isNull(messageBoxColumn);
-                        if (messageBoxExists) {
-                            transportType = TransportType.MMS;
-                        } else {
-                            // There is room here for me to have made an assumption and we'll guess wrong
-                            // The penalty is the user will potentially get some garbled data, so that's not too bad.
-                            transportType = TransportType.SMS;
-                        }
-                    } else {
-                        String transportTypeString = myCursor.getString(transportTypeColumn);
-                        if ("mms".equals(transportTypeString)) {
-                            transportType = TransportType.MMS;
-                        } else if ("sms".equals(transportTypeString)) {
-                            transportType = TransportType.SMS;
-                        } else {
-                            Log.w("SMSHelper", "Skipping message with unknown TransportType: " + transportTypeString);
-                            continue;
-                        }
-                    }
-
-                    HashMap<String, String> messageInfo = new HashMap<>();
-                    for (int columnIdx = 0; columnIdx < myCursor.getColumnCount(); columnIdx++) {
-                        String colName = myCursor.getColumnName(columnIdx);
-                        String body = myCursor.getString(columnIdx);
-                        messageInfo.put(colName, body);
-                    }
-
-                    try {
-                        switch (transportType) {
-                            case SMS:
-                                toReturn.add(parseSMS(context, messageInfo));
-                                break;
-                            case MMS:
-                                toReturn.add(parseMMS(context, messageInfo, userPhoneNumbers));
-                                break;
-                        }
-                    } catch (Exception e) {
-                        // Swallow exceptions in case we get an error reading one message so that we
-                        // might be able to read some of them
-                        Log.e("SMSHelper", "Got an error reading a message of type " + transportType, e);
+                    Message message = readMessage(context, reader, generateThumbnails);
+                    if (message != null) {
+                        toReturn.add(message);
                     }
                 } while ((numberToGet == null || toReturn.size() < numberToGet) && myCursor.moveToNext());
             }
         } catch (SQLiteException | IllegalArgumentException e) {
-            String[] unfilteredColumns = {};
-            try (Cursor unfilteredColumnsCursor = context.getContentResolver().query(uri, null, null, null, null)) {
-                if (unfilteredColumnsCursor != null) {
-                    unfilteredColumns = unfilteredColumnsCursor.getColumnNames();
-                }
-            }
-            if (unfilteredColumns.length == 0) {
-                throw new MessageAccessException(uri, e);
-            } else {
-                throw new MessageAccessException(unfilteredColumns, uri, e);
-            }
+            throw getAccessException(context, uri, e);
         }
 
         return toReturn;
     }
 
+    /**
+     * Reads the message in the current row of a cursor
+     *
+     * @return The message, or null if it couldn't be read
+     */
+    private static @Nullable Message readMessage(
+            @NonNull Context context,
+            @NonNull MessageCursorReader reader,
+            boolean generateThumbnails
+    ) {
+        TransportType transportType = reader.getTransportType();
+        if (transportType == null) {
+            return null;
+        }
+
+        try {
+            switch (transportType) {
+                case SMS:
+                    return reader.readSMS();
+                case MMS:
+                    return parseMMS(context, reader, generateThumbnails);
+            }
+        } catch (Exception e) {
+            // Swallow exceptions in case we get an error reading one message so that we
+            // might be able to read some of them
+            Log.e("SMSHelper", "Got an error reading a message of type " + transportType, e);
+        }
+        return null;
+    }
+
+    /**
+     * Describes an error reading the given messages database, including the columns it actually
+     * has since the most common error is a column missing on some devices
+     */
+    private static @NonNull MessageAccessException getAccessException(
+            @NonNull Context context,
+            @NonNull Uri uri,
+            @NonNull Exception e
+    ) {
+        String[] unfilteredColumns = {};
+        try (Cursor unfilteredColumnsCursor = context.getContentResolver().query(uri, null, null, null, null)) {
+            if (unfilteredColumnsCursor != null) {
+                unfilteredColumns = unfilteredColumnsCursor.getColumnNames();
+            }
+        }
+        if (unfilteredColumns.length == 0) {
+            return new MessageAccessException(uri, e);
+        } else {
+            return new MessageAccessException(unfilteredColumns, uri, e);
+        }
+    }
+
     /**
      * Gets messages which match the selection
      *
@@ -391,7 +534,7 @@ public class SMSHelper {
             allColumns.add(getTransportTypeDiscriminatorColumn());
         }
 
-        return getMessages(uri, context, allColumns, selection, selectionArgs, sortOrder, numberToGet);
+        return getMessages(uri, context, allColumns, selection, selectionArgs, sortOrder, numberToGet, true);
     }
 
     /**
@@ -414,121 +557,150 @@ public class SMSHelper {
         return getMessages(getCompleteConversationsUri(), context, selection, selectionArgs, sortOrder, numberToGet);
     }
 
+    /**
+     * Number of conversations whose latest message is read at once by getConversations
+     */
+    private static final int CONVERSATIONS_PAGE_SIZE = 100;
+
+    /**
+     * The latest message of a thread, before it's read from the database
+     */
+    private static class ThreadHead {
+        final @NonNull TransportType transportType;
+        final long uID;
+        final long date;
+
+        ThreadHead(@NonNull TransportType transportType, long uID, long date) {
+            this.transportType = transportType;
+            this.uID = uID;
+            this.date = date;
+        }
+    }
+
     /**
      * Get the last message from each conversation. Can use the thread_ids in those messages to look
      * up more messages in those conversations
      *
-     * Returns values ordered from most-recently-touched conversation to oldest, if possible.
-     * Otherwise ordering is undefined.
+     * Returns values ordered from most-recently-touched conversation to oldest.
+     *
+     * The latest message of every thread is found by reading only the ID, thread and date of all
+     * messages, in one query to the SMS database and one to the MMS database. Then those messages
+     * are read CONVERSATIONS_PAGE_SIZE at a time, as the caller iterates.
      *
      * @param context android.content.Context running the request
+     * @param generateThumbnails If false, MMS attachments only get a thumbnail if it was already cached,
+     *                           since creating them is slow and most conversations aren't looked at
      * @return Non-blocking iterable of the first message in each conversation
      */
     public static Iterable<Message> getConversations(
-            @NonNull Context context
+            @NonNull Context context,
+            boolean generateThumbnails
     ) {
-        Uri uri = SMSHelper.getConversationUri();
+        // Step 1: Find the latest message in each thread
+        Map<Long, ThreadHead> threadHeads = new HashMap<>();
+        findThreadHeads(context, TransportType.SMS, threadHeads);
+        findThreadHeads(context, TransportType.MMS, threadHeads);
 
-        // Used to avoid spewing logs in case there is an overall problem with fetching thread IDs
-        boolean warnedForNullThreadIDs = false;
+        List<ThreadHead> sortedThreadHeads = new ArrayList<>(threadHeads.values());
+        // Sort most-recent to least-recent (largest to smallest)
+        Collections.sort(sortedThreadHeads, (left, right) -> Long.compare(right.date, left.date));
 
-        // Used to avoid spewing logs in case the date column doesn't return anything.
-        boolean warnedForUnorderedOutputs = false;
+        // Step 2: Get the actual message objects, a page at a time
+        // Do this in an iterator, so that the caller can choose to interrupt us as frequently as
+        // desired
+        return () -> new Iterator<Message>() {
+            int threadHeadsIndex = 0;
+            final ArrayDeque<Message> page = new ArrayDeque<>();
 
-        // Step 1: Populate the list of all known threadIDs
-        // This is basically instantaneous even with lots of conversations because we only make one
-        // query. If someone wanted to squeeze better UI performance out of this method, they could
-        // iterate over the threadIdCursor instead of getting all the threads before beginning to
-        // return conversations, but I doubt anyone will ever find it necessary.
-        List<ThreadID> threadIds;
-        try (Cursor threadIdCursor = context.getContentResolver().query(
-                uri,
-                null,
-                null,
-                null,
-                null)) {
-            List<Pair<ThreadID, Long>> threadTimestampPair = new ArrayList<>();
-            while (threadIdCursor != null && threadIdCursor.moveToNext()) {
-                // The "_id" column returned from the `content://sms-mms/conversations?simple=true` URI
-                // is actually what the rest of the world calls a thread_id.
-                // In my limited experimentation, the other columns are not populated, so don't bother
-                // looking at them here.
-                int idColumn = threadIdCursor.getColumnIndex("_id");
-                int dateColumn = threadIdCursor.getColumnIndex("date");
-
-                ThreadID threadID = null;
-                long messageDate = -1;
-                if (!threadIdCursor.isNull(idColumn)) {
-                    threadID = new ThreadID(threadIdCursor.getLong(idColumn));
+            @Override
+            public boolean hasNext() {
+                while (page.isEmpty() && threadHeadsIndex < sortedThreadHeads.size()) {
+                    int pageEnd = Math.min(threadHeadsIndex + CONVERSATIONS_PAGE_SIZE, sortedThreadHeads.size());
+                    readPage(sortedThreadHeads.subList(threadHeadsIndex, pageEnd));
+                    threadHeadsIndex = pageEnd;
                 }
-                if (!threadIdCursor.isNull(dateColumn)) {
-                    // I think the presence of the "date" column depends on the specifics of the
-                    // device. If it's there, we'll use it to return threads in a sorted order.
-                    // If it's not there, we'll return them unsorted (maybe you get lucky and the
-                    // conversations URI returns sorted anyway).
-                    messageDate = threadIdCursor.getLong(dateColumn);
+                return !page.isEmpty();
+            }
+
+            @Override
+            public Message next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
                 }
+                return page.removeFirst();
+            }
 
-                if (messageDate <= 0) {
-                    if (!warnedForUnorderedOutputs) {
-                        Log.w("SMSHelper", "Got no value for date of thread. Return order of results is undefined.");
-                        warnedForUnorderedOutputs = true;
+            private void readPage(List<ThreadHead> heads) {
+                List<Long> smsIDs = new ArrayList<>();
+                List<Long> mmsIDs = new ArrayList<>();
+                for (ThreadHead head : heads) {
+                    (head.transportType == TransportType.SMS ? smsIDs : mmsIDs).add(head.uID);
+                }
+                Map<Long, Message> smsMessages = new HashMap<>();
+                for (Message message : getMessagesWithIDs(context, TransportType.SMS, smsIDs, generateThumbnails)) {
+                    smsMessages.put(message.uID, message);
+                }
+                Map<Long, Message> mmsMessages = new HashMap<>();
+                for (Message message : getMessagesWithIDs(context, TransportType.MMS, mmsIDs, generateThumbnails)) {
+                    mmsMessages.put(message.uID, message);
+                }
+                for (ThreadHead head : heads) {
+                    Message message = (head.transportType == TransportType.SMS ? smsMessages : mmsMessages).get(head.uID);
+                    if (message == null) {
+                        // Deleted since we looked, or we failed to parse it
+                        Log.w("SMSHelper", "Couldn't read the latest message of a thread, skipping it");
+                        continue;
                     }
+                    page.addLast(message);
                 }
+            }
+        };
+    }
 
-                if (threadID == null) {
+    /**
+     * Finds the most recent message of each thread in the SMS or the MMS database, and stores it in
+     * threadHeads if it's more recent than the one already there
+     *
+     * @param threadHeads Latest message by thread ID
+     */
+    private static void findThreadHeads(
+            @NonNull Context context,
+            @NonNull TransportType transportType,
+            @NonNull Map<Long, ThreadHead> threadHeads
+    ) {
+        Uri uri = getUri(transportType);
+        // Used to avoid spewing logs in case there is an overall problem with fetching thread IDs
+        boolean warnedForNullThreadIDs = false;
+        try (Cursor cursor = context.getContentResolver().query(
+                uri,
+                new String[]{Message.U_ID, Message.THREAD_ID, Message.DATE},
+                null,
+                null,
+                null)
+        ) {
+            while (cursor != null && cursor.moveToNext()) {
+                if (cursor.isNull(1)) {
                     if (!warnedForNullThreadIDs) {
                         Log.w("SMSHelper", "Got null for some thread IDs. If these were valid threads, they will not be returned.");
                         warnedForNullThreadIDs = true;
                     }
                     continue;
                 }
-
-                threadTimestampPair.add(new Pair<>(threadID, messageDate));
+                long uID = cursor.getLong(0);
+                long threadID = cursor.getLong(1);
+                long date = cursor.getLong(2);
+                if (transportType == TransportType.MMS) {
+                    // SMS uses epoch milliseconds, MMS uses epoch seconds
+                    date *= 1000;
+                }
+                ThreadHead current = threadHeads.get(threadID);
+                if (current == null || date > current.date) {
+                    threadHeads.put(threadID, new ThreadHead(transportType, uID, date));
+                }
             }
-
-            threadIds = threadTimestampPair.stream()
-                    .sorted((left, right) -> right.second.compareTo(left.second)) // Sort most-recent to least-recent (largest to smallest)
-                    .map(threadTimestampPairElement -> threadTimestampPairElement.first).collect(Collectors.toList());
+        } catch (SQLiteException | IllegalArgumentException e) {
+            throw new MessageAccessException(uri, e);
         }
-
-        // Step 2: Get the actual message object from each thread ID
-        // Do this in an iterator, so that the caller can choose to interrupt us as frequently as
-        // desired
-        return new Iterable<Message>() {
-            @NonNull
-            @Override
-            public Iterator<Message> iterator() {
-                return new Iterator<Message>() {
-                    int threadIdsIndex = 0;
-
-                    @Override
-                    public boolean hasNext() {
-                        return threadIdsIndex < threadIds.size();
-                    }
-
-                    @Override
-                    public Message next() {
-                        ThreadID nextThreadId = threadIds.get(threadIdsIndex);
-                        threadIdsIndex++;
-
-                        List<Message> firstMessage = getMessagesInThread(context, nextThreadId, 1L);
-
-                        if (firstMessage.size() > 1) {
-                            Log.w("SMSHelper", "getConversations got two messages for the same ThreadID: " + nextThreadId);
-                        }
-
-                        if (firstMessage.size() == 0)
-                        {
-                            Log.e("SMSHelper", "ThreadID: " + nextThreadId + " did not return any messages");
-                            // This is a strange issue, but I don't know how to say what is wrong, so just continue along
-                            return this.next();
-                        }
-                        return firstMessage.get(0);
-                    }
-                };
-            }
-        };
     }
 
     private static int addEventFlag(
@@ -538,74 +710,27 @@ public class SMSHelper {
         return oldEvent | eventFlag;
     }
 
-    /**
-     * Parse all parts of an SMS into a Message
-     */
-    private static @NonNull Message parseSMS(
-            @NonNull Context context,
-            @NonNull Map<String, String> messageInfo
-    ) {
-        int event = Message.EVENT_UNKNOWN;
-        event = addEventFlag(event, Message.EVENT_TEXT_MESSAGE);
-
-        @NonNull List<Address> address = Collections.singletonList(new Address(messageInfo.get(Telephony.Sms.ADDRESS)));
-        @Nullable String maybeBody = messageInfo.getOrDefault(Message.BODY, "");
-        @NonNull String body = maybeBody != null ? maybeBody : "";
-        long date = NumberUtils.toLong(messageInfo.getOrDefault(Message.DATE, null));
-        int type = NumberUtils.toInt(messageInfo.getOrDefault(Message.TYPE, null));
-        int read = NumberUtils.toInt(messageInfo.getOrDefault(Message.READ, null));
-        @NonNull ThreadID threadID = new ThreadID(NumberUtils.toLong(messageInfo.getOrDefault(Message.THREAD_ID, null), ThreadID.invalidThreadId.threadID));
-        long uID = NumberUtils.toLong(messageInfo.getOrDefault(Message.U_ID, null));
-        int subscriptionID = NumberUtils.toInt(messageInfo.getOrDefault(Message.SUBSCRIPTION_ID, null));
-
-        // Examine all the required SMS columns and emit a log if something seems amiss
-        boolean anyNulls = Arrays.stream(new String[] {
-                        Telephony.Sms.ADDRESS,
-                        Message.BODY,
-                        Message.DATE,
-                        Message.TYPE,
-                        Message.READ,
-                        Message.THREAD_ID,
-                        Message.U_ID })
-                .map(key -> messageInfo.getOrDefault(key, null))
-                .anyMatch(Objects::isNull);
-        if (anyNulls)
-        {
-            Log.e("parseSMS", "Some fields were invalid. This indicates either a corrupted SMS database or an unsupported device.");
-        }
-
-        return new Message(
-                address,
-                body,
-                date,
-                type,
-                read,
-                threadID,
-                uID,
-                event,
-                subscriptionID,
-                null
-        );
-    }
-
     /**
      * Parse all parts of the MMS message into a message
      * Original implementation from https://stackoverflow.com/a/6446831/3723163
+     *
+     * @param row Reader positioned on the row of the message in the MMS database
+     * @param generateThumbnails If false, image and video attachments only get a thumbnail if it was already cached
      */
     private static @NonNull Message parseMMS(
             @NonNull Context context,
-            @NonNull Map<String, String> messageInfo,
-            @NonNull List<TelephonyHelper.LocalPhoneNumber> userPhoneNumbers
+            @NonNull MessageCursorReader row,
+            boolean generateThumbnails
     ) {
         int event = Message.EVENT_UNKNOWN;
 
         @NonNull String body = "";
         long date;
         int type;
-        int read = NumberUtils.toInt(messageInfo.get(Message.READ));
-        @NonNull ThreadID threadID = new ThreadID(NumberUtils.toLong(messageInfo.getOrDefault(Message.THREAD_ID, null), ThreadID.invalidThreadId.threadID));
-        long uID = NumberUtils.toLong(messageInfo.get(Message.U_ID));
-        int subscriptionID = NumberUtils.toInt(messageInfo.get(Message.SUBSCRIPTION_ID));
+        int read = row.getRead();
+        @NonNull ThreadID threadID = row.getThreadID();
+        long uID = row.getUID();
+        int subscriptionID = row.getSubscriptionID();
         List<Attachment> attachments = new ArrayList<>();
 
         String[] columns = {
@@ -616,7 +741,7 @@ public class SMSHelper {
                 Telephony.Mms.Part.CHARSET,      // Charset of the plain text body
         };
 
-        String mmsID = messageInfo.get(Message.U_ID);
+        String mmsID = Long.toString(uID);
         String selection = Telephony.Mms.Part.MSG_ID + " = ?";
         String[] selectionArgs = {mmsID};
 
@@ -647,26 +772,10 @@ public class SMSHelper {
                             body = cursor.getString(textColumn);
                         }
                         event = addEventFlag(event, Message.EVENT_TEXT_MESSAGE);
-                    } else if (MimeType.isTypeImage(contentType)) {
-                        String fileName = data.substring(data.lastIndexOf('/') + 1);
-
-                        // Get the actual image from the mms database convert it into thumbnail and encode to Base64
-                        Bitmap image = SmsMmsUtils.getMmsImage(context, partID);
-                        Bitmap thumbnailImage = ThumbnailUtils.extractThumbnail(image, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT);
-                        String encodedThumbnail = SmsMmsUtils.bitMapToBase64(thumbnailImage);
-
-                        attachments.add(new Attachment(partID, contentType, encodedThumbnail, fileName));
-                    } else if (MimeType.isTypeVideo(contentType)) {
+                    } else if (MmsThumbnailCache.hasThumbnail(contentType)) {
                         String fileName = data.substring(data.lastIndexOf('/') + 1);
 
-                        // Can't use try-with-resources since MediaMetadataRetriever's close method was only added in API 29
-                        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-                        retriever.setDataSource(context, ContentUris.withAppendedId(getMMSPartUri(), partID));
-                        Bitmap videoThumbnail = retriever.getFrameAtTime();
-
-                        String encodedThumbnail = SmsMmsUtils.bitMapToBase64(
-                                Bitmap.createScaledBitmap(videoThumbnail, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT, true)
-                        );
+                        String encodedThumbnail = MmsThumbnailCache.getThumbnail(context, partID, fileName, contentType, generateThumbnails);
 
                         attachments.add(new Attachment(partID, contentType, encodedThumbnail, fileName));
                     } else if (MimeType.isTypeAudio(contentType)) {
@@ -683,7 +792,7 @@ public class SMSHelper {
         }
 
         // Determine whether the message was in- our out- bound
-        long messageBox = NumberUtils.toLong(messageInfo.get(Telephony.Mms.MESSAGE_BOX));
+        int messageBox = row.getMessageBox();
         if (messageBox == Telephony.Mms.MESSAGE_BOX_INBOX) {
             type = Telephony.Sms.MESSAGE_TYPE_INBOX;
         } else if (messageBox == Telephony.Mms.MESSAGE_BOX_SENT) {
@@ -693,17 +802,17 @@ public class SMSHelper {
             // are the same as Sms.MESSAGE_TYPE_* of the same type. So by default let's just use
             // the value we've got.
             // This includes things like drafts, which are a far-distant plan to support
-            type = NumberUtils.toInt(messageInfo.get(Telephony.Mms.MESSAGE_BOX));
+            type = messageBox;
         }
 
         // Get address(es) of the message
-        MultimediaMessagePdu msg = getMessagePdu(context, uID);
-        Address from = SmsMmsUtils.getMmsFrom(msg);
-        List<Address> to = SmsMmsUtils.getMmsTo(msg);
+        MmsAddressCache.Entry mmsAddresses = getMmsAddresses(context, uID);
+        Address from = mmsAddresses.from;
+        List<Address> to = mmsAddresses.to;
 
         List<Address> addresses = new ArrayList<>();
         if (from != null) {
-            boolean isLocalPhoneNumber = userPhoneNumbers.stream().anyMatch(localPhoneNumber -> localPhoneNumber.isMatchingPhoneNumber(from.address));
+            boolean isLocalPhoneNumber = LocalPhoneNumberCache.isLocalPhoneNumber(context, from.address);
 
             if (!isLocalPhoneNumber && !from.toString().equals("insert-address-token")) {
                 addresses.add(from);
@@ -712,7 +821,7 @@ public class SMSHelper {
 
         if (to != null) {
             for (Address toAddress : to) {
-                boolean isLocalPhoneNumber = userPhoneNumbers.stream().anyMatch(localPhoneNumber -> localPhoneNumber.isMatchingPhoneNumber(toAddress.address));
+                boolean isLocalPhoneNumber = LocalPhoneNumberCache.isLocalPhoneNumber(context, toAddress.address);
 
                 if (!isLocalPhoneNumber && !toAddress.toString().equals("insert-address-token")) {
                     addresses.add(toAddress);
@@ -731,7 +840,7 @@ public class SMSHelper {
 
         // Canonicalize the date field
         // SMS uses epoch milliseconds, MMS uses epoch seconds. Standardize on milliseconds.
-        long rawDate = NumberUtils.toLong(messageInfo.get(Message.DATE));
+        long rawDate = row.getRawDate();
         date = rawDate * 1000;
 
         return new Message(
@@ -748,6 +857,22 @@ public class SMSHelper {
         );
     }
 
+    /**
+     * Get the sender and the recipients of an MMS, from its PDU unless they're cached
+     */
+    private static @NonNull MmsAddressCache.Entry getMmsAddresses(@NonNull Context context, long uID) {
+        MmsAddressCache.Entry addresses = mmsAddressCache.get(uID);
+        if (addresses == null) {
+            MultimediaMessagePdu msg = getMessagePdu(context, uID);
+            addresses = new MmsAddressCache.Entry(SmsMmsUtils.getMmsFrom(msg), SmsMmsUtils.getMmsTo(msg));
+            if (msg != null) {
+                // Don't remember failures, the PDU might be readable next time
+                mmsAddressCache.put(uID, addresses);
+            }
+        }
+        return addresses;
+    }
+
     private static MultimediaMessagePdu getMessagePdu(Context context, long uID) {
         Uri uri = ContentUris.appendId(getMMSUri().buildUpon(), uID).build();
         MultimediaMessagePdu toReturn;
@@ -794,6 +919,11 @@ public class SMSHelper {
 
     /**
      * Register a ContentObserver for the Messages database
+     * <p>
+     * The observer is registered on the SMS and on the MMS databases, instead of on the combined
+     * one, since an observer is only told about the URIs of the authority it registered on. This
+     * way the URI passed to it says which of the two databases changed, and often which message.
+     * </p>
      *
      * @param observer ContentObserver to alert on Message changes
      */
@@ -801,11 +931,44 @@ public class SMSHelper {
             @NonNull ContentObserver observer,
             @NonNull Context context
     ) {
-        context.getContentResolver().registerContentObserver(
-                SMSHelper.getConversationUri(),
-                true,
-                observer
-        );
+        ContentResolver contentResolver = context.getContentResolver();
+        contentResolver.registerContentObserver(Telephony.Sms.CONTENT_URI, true, observer);
+        contentResolver.registerContentObserver(Telephony.Mms.CONTENT_URI, true, observer);
+    }
+
+    /**
+     * Forget what we remember about the messages which changed. Should be called by the observers
+     * registered with registerObserver.
+     *
+     * @param uri The URI which changed, or null if unknown
+     */
+    public static void onMessagesChanged(@Nullable Uri uri) {
+        String authority = uri == null ? null : uri.getAuthority();
+        if ("sms".equals(authority)) {
+            // We only remember things about MMS
+            return;
+        }
+        long uID = -1;
+        if ("mms".equals(authority)) {
+            List<String> segments = uri.getPathSegments();
+            if (!segments.isEmpty() && "part".equals(segments.get(0))) {
+                // Attachments don't change who sent or received a message
+                return;
+            }
+            // The URI of a single message is content://mms/<id> or content://mms/<box>/<id>
+            if (segments.size() == 1 || segments.size() == 2) {
+                try {
+                    uID = ContentUris.parseId(uri);
+                } catch (NumberFormatException e) {
+                    // Not the URI of a single message, eg: content://mms/<id>/addr
+                }
+            }
+        }
+        if (uID >= 0) {
+            mmsAddressCache.remove(uID);
+        } else {
+            mmsAddressCache.clear();
+        }
     }
 
     /**
@@ -1074,6 +1237,28 @@ public class SMSHelper {
                 Telephony.Mms.MESSAGE_BOX, // Compare with Telephony.BaseMmsColumns.MESSAGE_BOX_*
         };
 
+        /**
+         * Columns which make up the fingerprint of a message, see getMessageFingerprints.
+         * The ID must be the first one.
+         */
+        static final String[] smsFingerprintColumns = new String[]{
+                Message.U_ID,
+                Telephony.Sms.THREAD_ID,
+                Telephony.Sms.DATE,
+                Telephony.Sms.TYPE,
+                Telephony.Sms.READ,
+                Telephony.Sms.BODY,
+        };
+
+        static final String[] mmsFingerprintColumns = new String[]{
+                Message.U_ID,
+                Telephony.Mms.THREAD_ID,
+                Telephony.Mms.DATE,
+                Telephony.Mms.READ,
+                Telephony.Mms.MESSAGE_BOX,
+                Telephony.Mms.MESSAGE_TYPE, // Changes once a notified MMS is downloaded
+        };
+
         /**
          * These columns are for determining what SIM card the message belongs to, and therefore
          * are only defined on Android versions with multi-sim capabilities
@@ -1115,6 +1300,25 @@ public class SMSHelper {
             this.attachments = attachments;
         }
 
+        /**
+         * Rough size of the message once serialized, to keep packets of many messages bounded
+         */
+        public int estimateSerializedSize() {
+            // The other fields are small and of a fixed size
+            int size = 200 + (body == null ? 0 : body.length());
+            for (Address address : addresses) {
+                // Some messages, eg: drafts, have no address
+                size += 20 + (address.address == null ? 0 : address.address.length());
+            }
+            if (attachments != null) {
+                for (Attachment attachment : attachments) {
+                    String thumbnail = attachment.getBase64EncodedFile();
+                    size += 200 + (thumbnail == null ? 0 : thumbnail.length());
+                }
+            }
+            return size;
+        }
+
         public JSONObject toJSONObject() throws JSONException {
             JSONObject json = new JSONObject();
 
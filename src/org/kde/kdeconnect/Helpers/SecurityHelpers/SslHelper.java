@@ -25,11 +25,13 @@ import org.bouncycastle.operator.ContentSigner;
 import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 import org.bouncycastle.util.Arrays;
 import org.kde.kdeconnect.Helpers.DeviceHelper;
+import org.kde.kdeconnect.Helpers.Metrics;
 import org.kde.kdeconnect.Helpers.RandomHelper;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.security.KeyStore;
@@ -48,9 +50,13 @@ import java.time.ZoneId;
 import java.util.Date;
 import java.util.Formatter;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
@@ -62,6 +68,27 @@ public class SslHelper {
 
     public static Certificate certificate; //my device's certificate
     private static CertificateFactory factory;
+
+    // Port passed to the SSLContext instead of the peer's, so sessions are looked up by address only and
+    // can be resumed across the control connection and the payload connections, which all use different ports
+    private static final int SESSION_CACHE_PORT = 1716;
+    private static final int SESSION_CACHE_SIZE = 10;
+    private static final int SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+    private static final ConcurrentHashMap<String, CachedSslContext> sslContextCache = new ConcurrentHashMap<>();
+    private static final Metrics.Counter fullHandshakes = Metrics.counter("link.lan.tls.full");
+    private static final Metrics.Counter resumedHandshakes = Metrics.counter("link.lan.tls.resumed");
+
+    private static class CachedSslContext {
+        // The certificate we trusted when creating the context, "" if we accept any certificate
+        final String pinnedCertificate;
+        final SSLContext sslContext;
+
+        CachedSslContext(String pinnedCertificate, SSLContext sslContext) {
+            this.pinnedCertificate = pinnedCertificate;
+            this.sslContext = sslContext;
+        }
+    }
     static {
         try {
             factory = CertificateFactory.getInstance("X.509");
@@ -154,6 +181,7 @@ public class SslHelper {
                 ContentSigner contentSigner = new JcaContentSignerBuilder(signatureAlgorithm).build(privateKey);
                 byte[] certificateBytes = certificateBuilder.build(contentSigner).getEncoded();
                 certificate = parseCertificate(certificateBytes);
+                sslContextCache.clear(); // Cached contexts present the old certificate
 
                 SharedPreferences.Editor edit = settings.edit();
                 edit.putString("certificate", Base64.encodeToString(certificateBytes, 0));
@@ -189,8 +217,34 @@ public class SslHelper {
         return parseCertificate(certificateBytes);
     }
 
+    /**
+     * Returns the SSLContext to talk to a device. It's cached per device, so the sessions it stores can be
+     * resumed, sparing a full handshake on every reconnection and payload transfer. A new one is created
+     * whenever the certificate we trust for the device changes, so sessions are never resumed across changes
+     * in trust.
+     */
     private static SSLContext getSslContextForDevice(Context context, String deviceId, boolean isDeviceTrusted) {
-        //TODO: Cache
+        String pinnedCertificate = "";
+        if (isDeviceTrusted) {
+            SharedPreferences devicePreferences = context.getSharedPreferences(deviceId, Context.MODE_PRIVATE);
+            pinnedCertificate = devicePreferences.getString("certificate", "");
+        }
+        CachedSslContext cached = sslContextCache.get(deviceId);
+        if (cached != null && cached.pinnedCertificate.equals(pinnedCertificate)) {
+            return cached.sslContext;
+        }
+        SSLContext tlsContext = createSslContextForDevice(context, deviceId, isDeviceTrusted);
+        if (tlsContext != null) {
+            tlsContext.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+            tlsContext.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            tlsContext.getServerSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+            tlsContext.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            sslContextCache.put(deviceId, new CachedSslContext(pinnedCertificate, tlsContext));
+        }
+        return tlsContext;
+    }
+
+    private static SSLContext createSslContextForDevice(Context context, String deviceId, boolean isDeviceTrusted) {
         try {
             // Get device private key
             PrivateKey privateKey = RsaHelper.getPrivateKey(context);
@@ -232,26 +286,59 @@ public class SslHelper {
 
     private static void configureSslSocket(SSLSocket socket, boolean isDeviceTrusted, boolean isClient) throws SocketException {
        socket.setSoTimeout(10000);
-        if (isClient) {
-            socket.setUseClientMode(true);
-        } else {
-            socket.setUseClientMode(false);
-            if (isDeviceTrusted) {
-                socket.setNeedClientAuth(true);
-            } else {
-                socket.setWantClientAuth(true);
-            }
+        socket.setUseClientMode(isClient);
+        if (!isClient) {
+            socket.setSSLParameters(withClientAuth(socket.getSSLParameters(), isDeviceTrusted));
         }
+    }
 
+    /**
+     * As a server, we require the client to authenticate if we trust it already, so we can check it's
+     * still the same device. Otherwise we only ask for its certificate, so we can pair with it.
+     */
+    private static SSLParameters withClientAuth(SSLParameters parameters, boolean isDeviceTrusted) {
+        if (isDeviceTrusted) {
+            parameters.setNeedClientAuth(true);
+        } else {
+            parameters.setWantClientAuth(true);
+        }
+        return parameters;
     }
 
     public static SSLSocket convertToSslSocket(Context context, Socket socket, String deviceId, boolean isDeviceTrusted, boolean clientMode) throws IOException {
         SSLSocketFactory sslsocketFactory = SslHelper.getSslContextForDevice(context, deviceId, isDeviceTrusted).getSocketFactory();
-        SSLSocket sslsocket = (SSLSocket) sslsocketFactory.createSocket(socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+        SSLSocket sslsocket = (SSLSocket) sslsocketFactory.createSocket(socket, socket.getInetAddress().getHostAddress(), SESSION_CACHE_PORT, true);
         SslHelper.configureSslSocket(sslsocket, isDeviceTrusted, clientMode);
+        final long handshakeStart = System.currentTimeMillis();
+        sslsocket.addHandshakeCompletedListener(event -> onHandshakeCompleted(event.getSession(), handshakeStart));
         return sslsocket;
     }
 
+    public static SSLEngine createSslEngine(Context context, String deviceId, boolean isDeviceTrusted, boolean clientMode, InetSocketAddress peerAddress) {
+        SSLContext tlsContext = SslHelper.getSslContextForDevice(context, deviceId, isDeviceTrusted);
+        SSLEngine engine = tlsContext.createSSLEngine(peerAddress.getAddress().getHostAddress(), SESSION_CACHE_PORT);
+        engine.setUseClientMode(clientMode);
+        if (!clientMode) {
+            engine.setSSLParameters(withClientAuth(engine.getSSLParameters(), isDeviceTrusted));
+        }
+        return engine;
+    }
+
+    /**
+     * Must be called once each handshake completes, to keep count of how many sessions were resumed
+     * in the "link.lan.tls.full" and "link.lan.tls.resumed" {@link Metrics}.
+     *
+     * @param handshakeStart the time in millis right before the handshake started
+     */
+    public static void onHandshakeCompleted(SSLSession session, long handshakeStart) {
+        // A resumed session keeps the creation time of the handshake that created it
+        if (session.getCreationTime() < handshakeStart) {
+            resumedHandshakes.increment();
+        } else {
+            fullHandshakes.increment();
+        }
+    }
+
     public static String getCertificateHash(Certificate certificate) {
         byte[] hash;
         try {
@@ -349,6 +349,34 @@ public class TelephonyHelper {
         return toReturn;
     }
 
+    /**
+     * Do some basic fuzzy matching on two canonicalized phone numbers to determine whether they match
+     *
+     * @see LocalPhoneNumber#isMatchingPhoneNumber(String)
+     */
+    static boolean isMatchingCanonicalPhoneNumber(String mPhoneNumber, String oPhoneNumber) {
+        if (mPhoneNumber.isEmpty() || oPhoneNumber.isEmpty()) {
+            // The empty string is not a valid phone number so does not match anything
+            return false;
+        }
+
+        // To decide if a phone number matches:
+        // 1. Are they similar lengths? If two numbers are very different, probably one is junk data and should be ignored
+        // 2. Is one a superset of the other? Phone number digits get more specific the further towards the end of the string,
+        //    so if one phone number ends with the other, it is probably just a more-complete version of the same thing
+        String longerNumber = mPhoneNumber.length() >= oPhoneNumber.length() ? mPhoneNumber : oPhoneNumber;
+        String shorterNumber = mPhoneNumber.length() < oPhoneNumber.length() ? mPhoneNumber : oPhoneNumber;
+
+        // If the numbers are vastly different in length, assume they are not the same
+        if (shorterNumber.length() < 0.75 * longerNumber.length()) {
+            return false;
+        }
+
+        boolean matchingPhoneNumber = longerNumber.endsWith(shorterNumber);
+
+        return matchingPhoneNumber;
+    }
+
     /**
      * Light copy of https://developer.android.com/reference/android/telephony/data/ApnSetting so
      * that we can support older API versions. Delete this when API 28 becomes our supported version.
@@ -435,29 +463,7 @@ public class TelephonyHelper {
          * @return True if the phone numbers appear to be the same, false otherwise
          */
         public boolean isMatchingPhoneNumber(String potentialMatchingPhoneNumber) {
-           String mPhoneNumber = canonicalizePhoneNumber(this.number);
-           String oPhoneNumber = canonicalizePhoneNumber(potentialMatchingPhoneNumber);
-
-            if (mPhoneNumber.isEmpty() || oPhoneNumber.isEmpty()) {
-                // The empty string is not a valid phone number so does not match anything
-                return false;
-            }
-
-            // To decide if a phone number matches:
-            // 1. Are they similar lengths? If two numbers are very different, probably one is junk data and should be ignored
-            // 2. Is one a superset of the other? Phone number digits get more specific the further towards the end of the string,
-            //    so if one phone number ends with the other, it is probably just a more-complete version of the same thing
-            String longerNumber = mPhoneNumber.length() >= oPhoneNumber.length() ? mPhoneNumber : oPhoneNumber;
-            String shorterNumber = mPhoneNumber.length() < oPhoneNumber.length() ? mPhoneNumber : oPhoneNumber;
-
-            // If the numbers are vastly different in length, assume they are not the same
-            if (shorterNumber.length() < 0.75 * longerNumber.length()) {
-                return false;
-            }
-
-            boolean matchingPhoneNumber = longerNumber.endsWith(shorterNumber);
-
-            return matchingPhoneNumber;
+            return isMatchingCanonicalPhoneNumber(canonicalizePhoneNumber(this.number), canonicalizePhoneNumber(potentialMatchingPhoneNumber));
         }
     }
 }
@@ -6,20 +6,26 @@
 
 package org.kde.kdeconnect;
 
+import android.util.Log;
+
 import org.apache.commons.io.IOUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.kde.kdeconnect.Helpers.Metrics;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import kotlin.text.Charsets;
+
 public class NetworkPacket {
 
     public final static String PACKET_TYPE_IDENTITY = "kdeconnect.identity";
@@ -33,9 +39,12 @@ public class NetworkPacket {
         add(PACKET_TYPE_PAIR);
     }};
 
+    private static final Metrics.Timer unserializeTimer = Metrics.timer("packet.unserialize");
+
     private long mId;
     String mType;
-    private JSONObject mBody;
+    private volatile JSONObject mBody;
+    private byte[] mRawBody; // Body as received, only parsed into mBody when first accessed
     private Payload mPayload;
     private JSONObject mPayloadTransferInfo;
     private volatile boolean canceled;
@@ -63,107 +72,128 @@ public class NetworkPacket {
         return mId;
     }
 
+    private JSONObject body() {
+        JSONObject body = mBody;
+        if (body == null) {
+            synchronized (this) {
+                body = mBody;
+                if (body == null) {
+                    try {
+                        body = NetworkPacketCodec.parseObject(mRawBody);
+                    } catch (JSONException e) {
+                        // unserialize() already validated the raw body, so this should never happen
+                        Log.e("NetworkPacket", "Couldn't parse the body of a " + mType + " packet", e);
+                        body = new JSONObject();
+                    }
+                    mRawBody = null;
+                    mBody = body;
+                }
+            }
+        }
+        return body;
+    }
+
     //Most commons getters and setters defined for convenience
     public String getString(String key) {
-        return mBody.optString(key, "");
+        return body().optString(key, "");
     }
 
     public String getString(String key, String defaultValue) {
-        return mBody.optString(key, defaultValue);
+        return body().optString(key, defaultValue);
     }
 
     public void set(String key, String value) {
         if (value == null) return;
         try {
-            mBody.put(key, value);
+            body().put(key, value);
         } catch (Exception ignored) {
         }
     }
 
     public int getInt(String key) {
-        return mBody.optInt(key, -1);
+        return body().optInt(key, -1);
     }
 
     public int getInt(String key, int defaultValue) {
-        return mBody.optInt(key, defaultValue);
+        return body().optInt(key, defaultValue);
     }
 
     public void set(String key, int value) {
         try {
-            mBody.put(key, value);
+            body().put(key, value);
         } catch (Exception ignored) {
         }
     }
 
     public long getLong(String key) {
-        return mBody.optLong(key, -1);
+        return body().optLong(key, -1);
     }
 
     public long getLong(String key, long defaultValue) {
-        return mBody.optLong(key, defaultValue);
+        return body().optLong(key, defaultValue);
     }
 
     public void set(String key, long value) {
         try {
-            mBody.put(key, value);
+            body().put(key, value);
         } catch (Exception ignored) {
         }
     }
 
     public boolean getBoolean(String key) {
-        return mBody.optBoolean(key, false);
+        return body().optBoolean(key, false);
     }
 
     public boolean getBoolean(String key, boolean defaultValue) {
-        return mBody.optBoolean(key, defaultValue);
+        return body().optBoolean(key, defaultValue);
     }
 
     public void set(String key, boolean value) {
         try {
-            mBody.put(key, value);
+            body().put(key, value);
         } catch (Exception ignored) {
         }
     }
 
     public double getDouble(String key) {
-        return mBody.optDouble(key, Double.NaN);
+        return body().optDouble(key, Double.NaN);
     }
 
     public double getDouble(String key, double defaultValue) {
-        return mBody.optDouble(key, defaultValue);
+        return body().optDouble(key, defaultValue);
     }
 
     public void set(String key, double value) {
         try {
-            mBody.put(key, value);
+            body().put(key, value);
         } catch (Exception ignored) {
         }
     }
 
     public JSONArray getJSONArray(String key) {
-        return mBody.optJSONArray(key);
+        return body().optJSONArray(key);
     }
 
     public void set(String key, JSONArray value) {
         try {
-            mBody.put(key, value);
+            body().put(key, value);
         } catch (Exception ignored) {
         }
     }
 
     public JSONObject getJSONObject(String key) {
-        return mBody.optJSONObject(key);
+        return body().optJSONObject(key);
     }
 
     public void set(String key, JSONObject value) {
         try {
-            mBody.put(key, value);
+            body().put(key, value);
         } catch (JSONException ignored) {
         }
     }
 
     public Set<String> getStringSet(String key) {
-        JSONArray jsonArray = mBody.optJSONArray(key);
+        JSONArray jsonArray = body().optJSONArray(key);
         if (jsonArray == null) return null;
         Set<String> list = new HashSet<>();
         int length = jsonArray.length();
@@ -178,7 +208,7 @@ public class NetworkPacket {
     }
 
     public Set<String> getStringSet(String key, Set<String> defaultValue) {
-        if (mBody.has(key)) return getStringSet(key);
+        if (body().has(key)) return getStringSet(key);
         else return defaultValue;
     }
 
@@ -188,13 +218,13 @@ public class NetworkPacket {
             for (String str : value) {
                 jsonArray.put(str);
             }
-            mBody.put(key, jsonArray);
+            body().put(key, jsonArray);
         } catch (Exception ignored) {
         }
     }
 
     public List<String> getStringList(String key) {
-        JSONArray jsonArray = mBody.optJSONArray(key);
+        JSONArray jsonArray = body().optJSONArray(key);
         if (jsonArray == null) return null;
         List<String> list = new ArrayList<>();
         int length = jsonArray.length();
@@ -209,7 +239,7 @@ public class NetworkPacket {
     }
 
     public List<String> getStringList(String key, List<String> defaultValue) {
-        if (mBody.has(key)) return getStringList(key);
+        if (body().has(key)) return getStringList(key);
         else return defaultValue;
     }
 
@@ -219,38 +249,134 @@ public class NetworkPacket {
             for (String str : value) {
                 jsonArray.put(str);
             }
-            mBody.put(key, jsonArray);
+            body().put(key, jsonArray);
         } catch (Exception ignored) {
         }
     }
 
     public boolean has(String key) {
-        return mBody.has(key);
+        return body().has(key);
     }
 
     public String serialize() throws JSONException {
-        JSONObject jo = new JSONObject();
-        jo.put("id", mId);
-        jo.put("type", mType);
-        jo.put("body", mBody);
+        return NetworkPacketCodec.encodeToString(this);
+    }
+
+    public byte[] serializeToBytes() throws JSONException {
+        return NetworkPacketCodec.encodeToBytes(this);
+    }
+
+    /**
+     * Writes the serialized packet to the stream with a single write() call, without building intermediate Strings.
+     */
+    public void serializeTo(OutputStream out) throws JSONException, IOException {
+        NetworkPacketCodec.encodeTo(this, out);
+    }
+
+    void encode(NetworkPacketCodec.Encoder encoder) throws JSONException {
+        //QJson does not escape slashes, and neither does our encoder, so no conversion is needed.
+        encoder.writeAscii("{\"id\":");
+        encoder.writeLong(mId);
+        encoder.writeAscii(",\"type\":");
+        encoder.writeString(mType);
+        encoder.writeAscii(",\"body\":");
+        byte[] rawBody = null;
+        if (mBody == null) {
+            synchronized (this) {
+                rawBody = mRawBody;
+            }
+        }
+        if (rawBody != null) {
+            encoder.writeRaw(rawBody);
+        } else {
+            encoder.writeObject(body());
+        }
         if (hasPayload()) {
-            jo.put("payloadSize", mPayload.payloadSize);
-            jo.put("payloadTransferInfo", mPayloadTransferInfo);
+            encoder.writeAscii(",\"payloadSize\":");
+            encoder.writeLong(mPayload.payloadSize);
+            encoder.writeAscii(",\"payloadTransferInfo\":");
+            encoder.writeObject(mPayloadTransferInfo);
         }
-        //QJSon does not escape slashes, but Java JSONObject does. Converting to QJson format.
-        return jo.toString().replace("\\/", "/") + "\n";
+        encoder.writeAscii("}\n");
     }
 
     static public NetworkPacket unserialize(String s) throws JSONException {
+        byte[] bytes = s.getBytes(Charsets.UTF_8);
+        return unserialize(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Parses a single packet from its UTF-8 representation. Only the envelope is decoded here, the
+     * body is validated but only parsed the first time one of the getters is called.
+     */
+    static public NetworkPacket unserialize(byte[] data, int offset, int length) throws JSONException {
+        long start = System.nanoTime();
+        NetworkPacket np = decode(data, offset, length);
+        unserializeTimer.recordSince(start);
+        return np;
+    }
+
+    private static NetworkPacket decode(byte[] data, int offset, int length) throws JSONException {
+        NetworkPacketCodec.Decoder decoder = NetworkPacketCodec.decoder(data, offset, length);
 
         NetworkPacket np = new NetworkPacket();
-        JSONObject jo = new JSONObject(s);
-        np.mId = jo.getLong("id");
-        np.mType = jo.getString("type");
-        np.mBody = jo.getJSONObject("body");
-        if (jo.has("payloadSize")) {
-            np.mPayloadTransferInfo = jo.getJSONObject("payloadTransferInfo");
-            np.mPayload = new Payload(jo.getLong("payloadSize"));
+        boolean hasId = false;
+        long payloadSize = 0;
+        boolean hasPayloadSize = false;
+        byte[] rawPayloadTransferInfo = null;
+
+        decoder.expect('{');
+        if (!decoder.consumeIf('}')) {
+            do {
+                String name = decoder.nextString();
+                decoder.expect(':');
+                switch (name) {
+                    case "id":
+                        np.mId = decoder.nextLong();
+                        hasId = true;
+                        break;
+                    case "type":
+                        np.mType = decoder.nextString();
+                        break;
+                    case "body":
+                        if (!decoder.nextIsObject()) {
+                            throw new JSONException("Value at body is not a JSONObject");
+                        }
+                        np.mRawBody = decoder.nextRawValue();
+                        break;
+                    case "payloadSize":
+                        payloadSize = decoder.nextLong();
+                        hasPayloadSize = true;
+                        break;
+                    case "payloadTransferInfo":
+                        if (!decoder.nextIsObject()) {
+                            throw new JSONException("Value at payloadTransferInfo is not a JSONObject");
+                        }
+                        rawPayloadTransferInfo = decoder.nextRawValue();
+                        break;
+                    default:
+                        decoder.skipValue();
+                }
+            } while (decoder.consumeIf(','));
+            decoder.expect('}');
+        }
+        decoder.expectEnd();
+
+        if (!hasId) {
+            throw new JSONException("No value for id");
+        }
+        if (np.mType == null) {
+            throw new JSONException("No value for type");
+        }
+        if (np.mRawBody == null) {
+            throw new JSONException("No value for body");
+        }
+        if (hasPayloadSize) {
+            if (rawPayloadTransferInfo == null) {
+                throw new JSONException("No value for payloadTransferInfo");
+            }
+            np.mPayloadTransferInfo = NetworkPacketCodec.parseObject(rawPayloadTransferInfo);
+            np.mPayload = new Payload(payloadSize);
         } else {
             np.mPayloadTransferInfo = new JSONObject();
             np.mPayload = new Payload(0);
@@ -0,0 +1,600 @@
+/*
+ * SPDX-FileCopyrightText: 2023 KDE Connect contributors
+ *
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+*/
+
+package org.kde.kdeconnect;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.kde.kdeconnect.Helpers.Metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import kotlin.text.Charsets;
+
+/**
+ * Streaming (de)serializer for {@link NetworkPacket}s.
+ * <p>
+ * Outgoing packets are written as UTF-8 straight into a reusable per-thread buffer, in the same
+ * format QJson produces (in particular, slashes are not escaped). Incoming packets are read with a
+ * small pull parser that only decodes the envelope: the body is validated and kept as raw bytes,
+ * and only turned into a {@link JSONObject} the first time somebody reads from it.
+ * </p>
+ */
+final class NetworkPacketCodec {
+
+    private NetworkPacketCodec() { }
+
+    private static final Metrics.Timer encodeTimer = Metrics.timer("packet.serialize");
+
+    private static final ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>() {
+        @Override
+        protected Encoder initialValue() {
+            return new Encoder();
+        }
+    };
+
+    static String encodeToString(NetworkPacket np) throws JSONException {
+        Encoder encoder = encoders.get();
+        try {
+            encode(np, encoder);
+            return new String(encoder.buf, 0, encoder.count, Charsets.UTF_8);
+        } finally {
+            encoder.reset();
+        }
+    }
+
+    static byte[] encodeToBytes(NetworkPacket np) throws JSONException {
+        Encoder encoder = encoders.get();
+        try {
+            encode(np, encoder);
+            return Arrays.copyOf(encoder.buf, encoder.count);
+        } finally {
+            encoder.reset();
+        }
+    }
+
+    static void encodeTo(NetworkPacket np, OutputStream out) throws JSONException, IOException {
+        Encoder encoder = encoders.get();
+        try {
+            encode(np, encoder);
+            out.write(encoder.buf, 0, encoder.count);
+        } finally {
+            encoder.reset();
+        }
+    }
+
+    private static void encode(NetworkPacket np, Encoder encoder) throws JSONException {
+        long start = System.nanoTime();
+        np.encode(encoder);
+        encodeTimer.recordSince(start);
+    }
+
+    static Decoder decoder(byte[] data, int offset, int length) {
+        return new Decoder(data, offset, length);
+    }
+
+    static JSONObject parseObject(byte[] raw) throws JSONException {
+        return new JSONObject(new String(raw, Charsets.UTF_8));
+    }
+
+    /**
+     * Growable UTF-8 output buffer. One instance is kept per thread and reused for every packet.
+     */
+    static final class Encoder {
+        private static final int INITIAL_CAPACITY = 1024;
+        // Don't keep the memory of an occasional huge packet (eg: an SMS conversation dump) around forever
+        private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+        private static final byte[] HEX = "0123456789abcdef".getBytes(Charsets.UTF_8);
+
+        private byte[] buf = new byte[INITIAL_CAPACITY];
+        private int count = 0;
+
+        private void reset() {
+            count = 0;
+            if (buf.length > MAX_RETAINED_CAPACITY) {
+                buf = new byte[INITIAL_CAPACITY];
+            }
+        }
+
+        private void ensureCapacity(int extra) {
+            int needed = count + extra;
+            if (needed > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(needed, buf.length * 2));
+            }
+        }
+
+        void writeByte(char c) {
+            ensureCapacity(1);
+            buf[count++] = (byte) c;
+        }
+
+        void writeRaw(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buf, count, bytes.length);
+            count += bytes.length;
+        }
+
+        /**
+         * Writes a string known to only contain ASCII characters that don't need escaping
+         */
+        void writeAscii(String s) {
+            int length = s.length();
+            ensureCapacity(length);
+            for (int i = 0; i < length; i++) {
+                buf[count++] = (byte) s.charAt(i);
+            }
+        }
+
+        void writeLong(long value) {
+            if (value == Long.MIN_VALUE) {
+                writeAscii(Long.toString(value));
+                return;
+            }
+            ensureCapacity(20);
+            if (value < 0) {
+                buf[count++] = '-';
+                value = -value;
+            }
+            int start = count;
+            do {
+                buf[count++] = (byte) ('0' + (value % 10));
+                value /= 10;
+            } while (value != 0);
+            // Digits were written backwards
+            for (int i = start, j = count - 1; i < j; i++, j--) {
+                byte tmp = buf[i];
+                buf[i] = buf[j];
+                buf[j] = tmp;
+            }
+        }
+
+        void writeString(String s) {
+            int length = s.length();
+            ensureCapacity(length + 2);
+            buf[count++] = '"';
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                ensureCapacity(6);
+                if (c < 0x80) {
+                    switch (c) {
+                        case '"':
+                        case '\\':
+                            buf[count++] = '\\';
+                            buf[count++] = (byte) c;
+                            break;
+                        case '\t':
+                            buf[count++] = '\\';
+                            buf[count++] = 't';
+                            break;
+                        case '\b':
+                            buf[count++] = '\\';
+                            buf[count++] = 'b';
+                            break;
+                        case '\n':
+                            buf[count++] = '\\';
+                            buf[count++] = 'n';
+                            break;
+                        case '\r':
+                            buf[count++] = '\\';
+                            buf[count++] = 'r';
+                            break;
+                        case '\f':
+                            buf[count++] = '\\';
+                            buf[count++] = 'f';
+                            break;
+                        default:
+                            if (c < 0x20) {
+                                buf[count++] = '\\';
+                                buf[count++] = 'u';
+                                buf[count++] = '0';
+                                buf[count++] = '0';
+                                buf[count++] = HEX[c >> 4];
+                                buf[count++] = HEX[c & 0xF];
+                            } else {
+                                buf[count++] = (byte) c;
+                            }
+                    }
+                } else if (c < 0x800) {
+                    buf[count++] = (byte) (0xC0 | (c >> 6));
+                    buf[count++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                    buf[count++] = (byte) (0xF0 | (codePoint >> 18));
+                    buf[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buf[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buf[count++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    buf[count++] = '?'; // Unpaired surrogate, same replacement String.getBytes() uses
+                } else {
+                    buf[count++] = (byte) (0xE0 | (c >> 12));
+                    buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buf[count++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            ensureCapacity(1);
+            buf[count++] = '"';
+        }
+
+        void writeObject(JSONObject object) throws JSONException {
+            writeByte('{');
+            Iterator<String> keys = object.keys();
+            boolean first = true;
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (!first) {
+                    writeByte(',');
+                }
+                first = false;
+                writeString(key);
+                writeByte(':');
+                writeValue(object.opt(key));
+            }
+            writeByte('}');
+        }
+
+        void writeArray(JSONArray array) throws JSONException {
+            writeByte('[');
+            int length = array.length();
+            for (int i = 0; i < length; i++) {
+                if (i > 0) {
+                    writeByte(',');
+                }
+                writeValue(array.opt(i));
+            }
+            writeByte(']');
+        }
+
+        // Mirrors what JSONStringer.value() does with each kind of value
+        void writeValue(Object value) throws JSONException {
+            if (value == null || value == JSONObject.NULL) {
+                writeAscii("null");
+            } else if (value instanceof String) {
+                writeString((String) value);
+            } else if (value instanceof Boolean) {
+                writeAscii((Boolean) value ? "true" : "false");
+            } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+                writeLong(((Number) value).longValue());
+            } else if (value instanceof Number) {
+                writeAscii(JSONObject.numberToString((Number) value));
+            } else if (value instanceof JSONObject) {
+                writeObject((JSONObject) value);
+            } else if (value instanceof JSONArray) {
+                writeArray((JSONArray) value);
+            } else {
+                writeString(value.toString());
+            }
+        }
+    }
+
+    /**
+     * Minimal pull parser over UTF-8 bytes. It decodes strings and numbers on demand and can skip
+     * over (while still validating) values the caller isn't interested in.
+     */
+    static final class Decoder {
+        private static final int MAX_DEPTH = 512;
+
+        private final byte[] in;
+        private final int end;
+        private int pos;
+
+        private Decoder(byte[] in, int offset, int length) {
+            this.in = in;
+            this.pos = offset;
+            this.end = offset + length;
+        }
+
+        private JSONException syntaxError(String message) {
+            return new JSONException(message + " at character " + pos);
+        }
+
+        private int peek() throws JSONException {
+            while (pos < end) {
+                byte b = in[pos];
+                if (b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                    pos++;
+                } else {
+                    return b;
+                }
+            }
+            throw syntaxError("End of input");
+        }
+
+        void expectEnd() throws JSONException {
+            while (pos < end) {
+                byte b = in[pos];
+                if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                    throw syntaxError("Unexpected data after the end");
+                }
+                pos++;
+            }
+        }
+
+        void expect(char c) throws JSONException {
+            if (peek() != c) {
+                throw syntaxError("Expected '" + c + "'");
+            }
+            pos++;
+        }
+
+        boolean consumeIf(char c) throws JSONException {
+            if (peek() == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        boolean nextIsObject() throws JSONException {
+            return peek() == '{';
+        }
+
+        String nextString() throws JSONException {
+            expect('"');
+            int start = pos;
+            while (pos < end) {
+                byte b = in[pos];
+                if (b == '"') {
+                    String s = new String(in, start, pos - start, Charsets.UTF_8);
+                    pos++;
+                    return s;
+                }
+                if (b == '\\') {
+                    return nextEscapedString(start);
+                }
+                pos++;
+            }
+            throw syntaxError("Unterminated string");
+        }
+
+        private String nextEscapedString(int start) throws JSONException {
+            StringBuilder sb = new StringBuilder();
+            int segmentStart = start;
+            while (pos < end) {
+                byte b = in[pos];
+                if (b == '"') {
+                    sb.append(new String(in, segmentStart, pos - segmentStart, Charsets.UTF_8));
+                    pos++;
+                    return sb.toString();
+                }
+                if (b != '\\') {
+                    pos++;
+                    continue;
+                }
+                sb.append(new String(in, segmentStart, pos - segmentStart, Charsets.UTF_8));
+                if (pos + 1 >= end) {
+                    break;
+                }
+                byte escaped = in[pos + 1];
+                pos += 2;
+                switch (escaped) {
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        if (pos + 4 > end) {
+                            throw syntaxError("Unterminated escape sequence");
+                        }
+                        int c = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(in[pos++], 16);
+                            if (digit < 0) {
+                                throw syntaxError("Invalid escape sequence");
+                            }
+                            c = (c << 4) | digit;
+                        }
+                        sb.append((char) c);
+                        break;
+                    default:
+                        sb.append((char) escaped); // Covers \" \\ and \/
+                }
+                segmentStart = pos;
+            }
+            throw syntaxError("Unterminated string");
+        }
+
+        private void skipString() throws JSONException {
+            expect('"');
+            while (pos < end) {
+                byte b = in[pos++];
+                if (b == '"') {
+                    return;
+                }
+                if (b == '\\') {
+                    if (pos < end && in[pos] == 'u') {
+                        pos++;
+                        for (int i = 0; i < 4; i++) {
+                            if (pos >= end || Character.digit(in[pos++], 16) < 0) {
+                                throw syntaxError("Invalid escape sequence");
+                            }
+                        }
+                    } else {
+                        pos++;
+                    }
+                }
+            }
+            throw syntaxError("Unterminated string");
+        }
+
+        private boolean isNumberChar(byte b) {
+            return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E';
+        }
+
+        long nextLong() throws JSONException {
+            if (peek() == '"') {
+                String s = nextString();
+                try {
+                    return (long) Double.parseDouble(s);
+                } catch (NumberFormatException e) {
+                    throw new JSONException("Value " + s + " cannot be converted to long");
+                }
+            }
+            int start = pos;
+            boolean negative = false;
+            boolean simple = true;
+            long value = 0;
+            if (pos < end && in[pos] == '-') {
+                negative = true;
+                pos++;
+            }
+            while (pos < end && isNumberChar(in[pos])) {
+                byte b = in[pos++];
+                if (b < '0' || b > '9' || pos - start > 18) {
+                    simple = false;
+                } else if (simple) {
+                    value = value * 10 + (b - '0');
+                }
+            }
+            if (pos == start || (negative && pos == start + 1)) {
+                throw syntaxError("Expected a number");
+            }
+            if (simple) {
+                return negative ? -value : value;
+            }
+            String s = new String(in, start, pos - start, Charsets.US_ASCII);
+            try {
+                return Long.parseLong(s);
+            } catch (NumberFormatException e) {
+                try {
+                    return (long) Double.parseDouble(s);
+                } catch (NumberFormatException e2) {
+                    throw syntaxError("Invalid number " + s);
+                }
+            }
+        }
+
+        /**
+         * Skips over the next value, checking that it's well formed.
+         * @return a copy of the raw bytes of the skipped value
+         */
+        byte[] nextRawValue() throws JSONException {
+            peek();
+            int start = pos;
+            skipValue(0);
+            return Arrays.copyOfRange(in, start, pos);
+        }
+
+        void skipValue() throws JSONException {
+            skipValue(0);
+        }
+
+        private void skipValue(int depth) throws JSONException {
+            if (depth > MAX_DEPTH) {
+                throw syntaxError("Nesting too deep");
+            }
+            int c = peek();
+            switch (c) {
+                case '{':
+                    pos++;
+                    if (!consumeIf('}')) {
+                        do {
+                            skipString();
+                            expect(':');
+                            skipValue(depth + 1);
+                        } while (consumeIf(','));
+                        expect('}');
+                    }
+                    break;
+                case '[':
+                    pos++;
+                    if (!consumeIf(']')) {
+                        do {
+                            skipValue(depth + 1);
+                        } while (consumeIf(','));
+                        expect(']');
+                    }
+                    break;
+                case '"':
+                    skipString();
+                    break;
+                case 't':
+                    skipLiteral("true");
+                    break;
+                case 'f':
+                    skipLiteral("false");
+                    break;
+                case 'n':
+                    skipLiteral("null");
+                    break;
+                default:
+                    if (c != '-' && (c < '0' || c > '9')) {
+                        throw syntaxError("Unexpected character '" + (char) c + "'");
+                    }
+                    skipNumber();
+            }
+        }
+
+        /**
+         * Skips over a number, which must follow the JSON grammar so that it parses the same once
+         * the body is turned into a {@link JSONObject}.
+         */
+        private void skipNumber() throws JSONException {
+            int start = pos;
+            boolean simple = true;
+            if (in[pos] == '-') {
+                pos++;
+            }
+            if (pos < end && in[pos] == '0') {
+                pos++;
+            } else if (!skipDigits()) {
+                throw syntaxError("Expected a number");
+            }
+            if (pos < end && in[pos] == '.') {
+                pos++;
+                simple = false;
+                if (!skipDigits()) {
+                    throw syntaxError("Expected a digit after the decimal point");
+                }
+            }
+            if (pos < end && (in[pos] == 'e' || in[pos] == 'E')) {
+                pos++;
+                simple = false;
+                if (pos < end && (in[pos] == '+' || in[pos] == '-')) {
+                    pos++;
+                }
+                if (!skipDigits()) {
+                    throw syntaxError("Expected a digit in the exponent");
+                }
+            }
+            if (pos < end && isNumberChar(in[pos])) {
+                throw syntaxError("Invalid number");
+            }
+            // JSONObject stores numbers that don't fit in a long as doubles, and rejects infinite ones
+            if (!simple || pos - start > 18) {
+                double value = Double.parseDouble(new String(in, start, pos - start, Charsets.US_ASCII));
+                if (Double.isInfinite(value)) {
+                    throw syntaxError("Number out of range");
+                }
+            }
+        }
+
+        private boolean skipDigits() {
+            int start = pos;
+            while (pos < end && in[pos] >= '0' && in[pos] <= '9') {
+                pos++;
+            }
+            return pos > start;
+        }
+
+        private void skipLiteral(String literal) throws JSONException {
+            int length = literal.length();
+            if (pos + length > end) {
+                throw syntaxError("Unexpected end of input");
+            }
+            for (int i = 0; i < length; i++) {
+                if (in[pos + i] != literal.charAt(i)) {
+                    throw syntaxError("Unexpected literal");
+                }
+            }
+            pos += length;
+        }
+    }
+}
@@ -16,7 +16,6 @@ import androidx.annotation.NonNull;
 import androidx.fragment.app.DialogFragment;
 
 import org.kde.kdeconnect.Helpers.ContactsHelper;
-import org.kde.kdeconnect.Helpers.ContactsHelper.ContactNotFoundException;
 import org.kde.kdeconnect.Helpers.ContactsHelper.VCardBuilder;
 import org.kde.kdeconnect.Helpers.ContactsHelper.uID;
 import org.kde.kdeconnect.NetworkPacket;
@@ -69,6 +68,18 @@ public class ContactsPlugin extends Plugin {
      */
     private static final String PACKET_TYPE_CONTACTS_RESPONSE_VCARDS = "kdeconnect.contacts.response_vcards";
 
+    /**
+     * Maximum number of vcards sent in one PACKET_TYPE_CONTACTS_RESPONSE_VCARDS packet, which is
+     * also how many are read from the database at a time
+     */
+    private static final int VCARDS_PER_PACKET = 100;
+
+    /**
+     * A packet is sent once its vcards add up to about this many characters, since photos can make
+     * them big
+     */
+    private static final int MAX_VCARDS_PACKET_SIZE = 512 * 1024;
+
     @Override
     public @NonNull String getDisplayName() {
         return context.getResources().getString(R.string.pref_plugin_contacts);
@@ -153,10 +164,10 @@ public class ContactsPlugin extends Plugin {
      *
      * @param vcard vcard to apply metadata to
      * @param uID   uID to which the vcard corresponds
-     * @throws ContactNotFoundException If the given ID for some reason does not match a contact
+     * @param timestamp Last-modified timestamp of the contact
      * @return The same VCard as was passed in, but now with KDE Connect-specific fields
      */
-    private VCardBuilder addVCardMetadata(VCardBuilder vcard, uID uID) throws ContactNotFoundException {
+    private VCardBuilder addVCardMetadata(VCardBuilder vcard, uID uID, long timestamp) {
         // Append the device ID line
         // Unclear if the deviceID forms a valid name per the vcard spec. Worry about that later..
         vcard.appendLine("X-KDECONNECT-ID-DEV-" + device.getDeviceId(),
@@ -164,9 +175,8 @@ public class ContactsPlugin extends Plugin {
 
         // Build the timestamp line
         // Maybe one day this should be changed into the vcard-standard REV key
-        Long timestamp = ContactsHelper.getContactTimestamp(context, uID);
         vcard.appendLine("X-KDECONNECT-TIMESTAMP",
-                timestamp.toString());
+                Long.toString(timestamp));
 
         return vcard;
     }
@@ -217,35 +227,52 @@ public class ContactsPlugin extends Plugin {
             uIDs.add(new uID(uID));
         }
 
-        Map<uID, VCardBuilder> uIDsToVCards = ContactsHelper.getVCardsForContactIDs(context, uIDs);
-
-        // ContactsHelper.getVCardsForContactIDs(..) is allowed to reply without
-        // some of the requested uIDs if they were not in the database, so update our list
-        uIDsAsStrings = new ArrayList<>(uIDsToVCards.size());
+        // Get all the timestamps at once, instead of one query per contact
+        Map<uID, Long> timestamps = ContactsHelper.getContactTimestamps(context, uIDs);
 
+        // Read and send the vcards a few at a time, so a big address book doesn't end up in a
+        // single huge packet
+        List<uID> requestedUIDs = new ArrayList<>(uIDs);
+        List<String> replyUIDs = new ArrayList<>();
         NetworkPacket reply = new NetworkPacket(PACKET_TYPE_CONTACTS_RESPONSE_VCARDS);
+        int replySize = 0;
+        boolean sentAny = false;
+        for (int start = 0; start < requestedUIDs.size(); start += VCARDS_PER_PACKET) {
+            List<uID> chunk = requestedUIDs.subList(start, Math.min(start + VCARDS_PER_PACKET, requestedUIDs.size()));
+
+            // ContactsHelper.getVCardsForContactIDs(..) is allowed to reply without
+            // some of the requested uIDs if they were not in the database
+            Map<uID, VCardBuilder> uIDsToVCards = ContactsHelper.getVCardsForContactIDs(context, chunk);
+
+            for (uID uID : uIDsToVCards.keySet()) {
+                Long timestamp = timestamps.get(uID);
+                if (timestamp == null) {
+                    Log.w("ContactsPlugin", "Couldn't find the timestamp of a contact, skipping it");
+                    continue;
+                }
+                String vcard = this.addVCardMetadata(uIDsToVCards.get(uID), uID, timestamp).toString();
+
+                if (!replyUIDs.isEmpty() && (replyUIDs.size() >= VCARDS_PER_PACKET || replySize + vcard.length() > MAX_VCARDS_PACKET_SIZE)) {
+                    reply.set("uids", replyUIDs);
+                    device.sendPacket(reply);
+                    sentAny = true;
+                    replyUIDs = new ArrayList<>();
+                    reply = new NetworkPacket(PACKET_TYPE_CONTACTS_RESPONSE_VCARDS);
+                    replySize = 0;
+                }
 
-        // Add the vcards to the packet
-        for (uID uID : uIDsToVCards.keySet()) {
-            VCardBuilder vcard = uIDsToVCards.get(uID);
-
-            try {
-                vcard = this.addVCardMetadata(vcard, uID);
-
-                // Store this as a valid uID
-                uIDsAsStrings.add(uID.toString());
                 // Add the uid -> vcard pairing to the packet
-                reply.set(uID.toString(), vcard.toString());
-
-            } catch (ContactsHelper.ContactNotFoundException e) {
-                e.printStackTrace();
+                reply.set(uID.toString(), vcard);
+                replyUIDs.add(uID.toString());
+                replySize += vcard.length();
             }
         }
 
-        // Add the valid uIDs to the packet
-        reply.set("uids", uIDsAsStrings);
-
-        device.sendPacket(reply);
+        if (!replyUIDs.isEmpty() || !sentAny) {
+            // Add the valid uIDs to the packet
+            reply.set("uids", replyUIDs);
+            device.sendPacket(reply);
+        }
 
         return true;
     }
@@ -0,0 +1,207 @@
+/*
+ * SPDX-FileCopyrightText: 2023 KDE Connect contributors
+ *
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+ */
+
+package org.kde.kdeconnect.Plugins.SMSPlugin;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.klinker.android.logger.Log;
+
+import org.kde.kdeconnect.Helpers.SMSHelper;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Finds the messages which were added or modified since the last time we looked, so we only send
+ * those to the desktop when the messages database changes.
+ * <p>
+ * For each of the SMS and MMS databases we keep the highest message ID we have seen and a
+ * fingerprint of the most recent messages, which are the ones likely to change (eg: when they are
+ * sent or read). Bursts of changes are coalesced into a single scan, and the changed URI tells us
+ * which of the two databases needs to be scanned.
+ * </p><p>
+ * The databases are only read on the thread of the handler, which is also the only one touching
+ * what we know about them. The lock only guards the flags, so {@link #onChange(Uri)} can be called
+ * from the main thread without waiting for a scan.
+ * </p>
+ */
+class MessageChangeTracker {
+
+    interface Listener {
+        /**
+         * Called on the thread of the handler
+         */
+        void onMessagesChanged(@NonNull List<SMSHelper.Message> messages);
+    }
+
+    /**
+     * How many of the most recent messages of each database we check for modifications
+     */
+    static final int WINDOW_SIZE = 20;
+
+    /**
+     * Changes within this time of the first one are handled together
+     */
+    static final long COALESCE_DELAY_MILLIS = 300;
+
+    private static class DatabaseState {
+        final SMSHelper.TransportType transportType;
+        long highestUID = -1; // Only used on the thread of the handler
+        final TreeMap<Long, Long> recentFingerprints = new TreeMap<>(); // By message ID, only used on the thread of the handler
+        boolean dirty = false; // Guarded by the tracker
+
+        DatabaseState(SMSHelper.TransportType transportType) {
+            this.transportType = transportType;
+        }
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private final Listener listener;
+    private final DatabaseState smsState = new DatabaseState(SMSHelper.TransportType.SMS);
+    private final DatabaseState mmsState = new DatabaseState(SMSHelper.TransportType.MMS);
+    private boolean started = false; // Guarded by this
+    private boolean scanScheduled = false; // Guarded by this
+    private final Runnable scanRunnable = this::scan;
+
+    /**
+     * @param handler Handler used to run the scans, they can be slow so it shouldn't be the main thread's
+     */
+    MessageChangeTracker(@NonNull Context context, @NonNull Handler handler, @NonNull Listener listener) {
+        this.context = context;
+        this.handler = handler;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts tracking changes, from the current state of the databases. Until this is called changes
+     * are ignored, since nobody asked for messages yet.
+     * <p>
+     * The databases are read in the background, scans for the changes that happen meanwhile run
+     * after that.
+     * </p>
+     */
+    synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        smsState.dirty = false;
+        mmsState.dirty = false;
+        handler.post(this::initialize);
+    }
+
+    private void initialize() {
+        try {
+            initialize(smsState);
+            initialize(mmsState);
+        } catch (RuntimeException e) {
+            Log.e("MessageChangeTracker", "Couldn't read the messages databases", e);
+            synchronized (this) {
+                started = false; // Try again the next time we're started
+            }
+        }
+    }
+
+    private void initialize(DatabaseState state) {
+        Map<Long, Long> fingerprints = SMSHelper.getMessageFingerprints(context, state.transportType, 0, (long) WINDOW_SIZE);
+        state.recentFingerprints.clear();
+        state.recentFingerprints.putAll(fingerprints);
+        state.highestUID = state.recentFingerprints.isEmpty() ? -1 : state.recentFingerprints.lastKey();
+    }
+
+    /**
+     * Schedules a scan of the databases affected by a change to the given URI
+     *
+     * @param uri The URI which changed, or null if unknown
+     */
+    synchronized void onChange(@Nullable Uri uri) {
+        String authority = uri == null ? null : uri.getAuthority();
+        if ("sms".equals(authority)) {
+            smsState.dirty = true;
+        } else if ("mms".equals(authority)) {
+            mmsState.dirty = true;
+        } else {
+            smsState.dirty = true;
+            mmsState.dirty = true;
+        }
+        if (started && !scanScheduled) {
+            scanScheduled = true;
+            handler.postDelayed(scanRunnable, COALESCE_DELAY_MILLIS);
+        }
+    }
+
+    private void scan() {
+        List<DatabaseState> dirty = new ArrayList<>(2);
+        synchronized (this) {
+            scanScheduled = false;
+            if (!started) {
+                return;
+            }
+            for (DatabaseState state : new DatabaseState[]{smsState, mmsState}) {
+                if (state.dirty) {
+                    state.dirty = false;
+                    dirty.add(state);
+                }
+            }
+        }
+        List<SMSHelper.Message> changed = new ArrayList<>();
+        try {
+            for (DatabaseState state : dirty) {
+                changed.addAll(scanDatabase(state));
+            }
+        } catch (RuntimeException e) {
+            Log.e("MessageChangeTracker", "Couldn't read the changed messages", e);
+        }
+        if (!changed.isEmpty()) {
+            listener.onMessagesChanged(changed);
+        }
+    }
+
+    private List<SMSHelper.Message> scanDatabase(DatabaseState state) {
+        long minUID = state.highestUID + 1;
+        if (!state.recentFingerprints.isEmpty()) {
+            minUID = Math.min(minUID, state.recentFingerprints.firstKey());
+        }
+        Map<Long, Long> fingerprints = SMSHelper.getMessageFingerprints(context, state.transportType, minUID, null);
+
+        List<Long> changedUIDs = new ArrayList<>();
+        for (Map.Entry<Long, Long> entry : fingerprints.entrySet()) {
+            Long previous = state.recentFingerprints.get(entry.getKey());
+            // We knew about every message from minUID on, so an unknown one is a new one
+            if (previous == null || !previous.equals(entry.getValue())) {
+                changedUIDs.add(entry.getKey());
+            }
+        }
+
+        // Forget deleted messages and only keep the most recent ones
+        Iterator<Long> it = state.recentFingerprints.tailMap(minUID).keySet().iterator();
+        while (it.hasNext()) {
+            if (!fingerprints.containsKey(it.next())) {
+                it.remove();
+            }
+        }
+        state.recentFingerprints.putAll(fingerprints);
+        while (state.recentFingerprints.size() > WINDOW_SIZE) {
+            state.recentFingerprints.pollFirstEntry();
+        }
+        if (!state.recentFingerprints.isEmpty()) {
+            state.highestUID = Math.max(state.highestUID, state.recentFingerprints.lastKey());
+        }
+
+        // Few messages change at once, and their thumbnails are cached once created
+        return SMSHelper.getMessagesWithIDs(context, state.transportType, changedUIDs, true);
+    }
+}
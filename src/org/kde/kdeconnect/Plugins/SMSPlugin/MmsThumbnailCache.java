@@ -0,0 +1,215 @@
+/*
+ * SPDX-FileCopyrightText: 2023 KDE Connect contributors
+ *
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+ */
+
+package org.kde.kdeconnect.Plugins.SMSPlugin;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaMetadataRetriever;
+import android.media.ThumbnailUtils;
+import android.net.Uri;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.klinker.android.logger.Log;
+
+import org.apache.commons.io.FileUtils;
+import org.kde.kdeconnect.Helpers.SMSHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kotlin.text.Charsets;
+
+/**
+ * Creates the thumbnails of MMS image and video attachments, and keeps them on disk so each one is
+ * only created once.
+ * <p>
+ * Images are decoded subsampled to about the size of the thumbnail, so a big photo doesn't need
+ * to be decoded at full resolution. Thumbnails are stored already base64-encoded, the way we send
+ * them, in the app's cache directory. Android may clear it when it needs the space, in which case
+ * the thumbnails are just created again.
+ * </p>
+ */
+public class MmsThumbnailCache {
+
+    public static final int THUMBNAIL_WIDTH = 100;
+    public static final int THUMBNAIL_HEIGHT = 100;
+
+    private static final String CACHE_DIRECTORY = "mms_thumbnails";
+    private static final int MAX_ENTRIES = 2000;
+    private static final int WRITES_BETWEEN_TRIMS = 64;
+
+    private static final AtomicInteger writesSinceTrim = new AtomicInteger(WRITES_BETWEEN_TRIMS);
+
+    public static boolean hasThumbnail(@NonNull String mimeType) {
+        return MimeType.isTypeImage(mimeType) || MimeType.isTypeVideo(mimeType);
+    }
+
+    /**
+     * Gets the base64-encoded thumbnail of an image or video MMS part
+     *
+     * @param partID ID of the part in the MMS part database
+     * @param fileName Name of the file of the part, part IDs can be reused once a part is deleted
+     * @param mimeType Type of the part, see {@link #hasThumbnail(String)}
+     * @param create If false, only return the thumbnail if it's already cached, since creating it is slow
+     * @return The thumbnail, or null if it isn't cached and create is false, or it couldn't be created
+     */
+    public static @Nullable String getThumbnail(
+            @NonNull Context context,
+            long partID,
+            @NonNull String fileName,
+            @NonNull String mimeType,
+            boolean create
+    ) {
+        File file = new File(getCacheDirectory(context), partID + "_" + Integer.toHexString(fileName.hashCode()));
+        if (file.exists()) {
+            try {
+                return FileUtils.readFileToString(file, Charsets.UTF_8);
+            } catch (IOException e) {
+                Log.w("MmsThumbnailCache", "Couldn't read cached thumbnail, creating it again", e);
+            }
+        }
+        if (!create) {
+            return null;
+        }
+
+        Bitmap thumbnail;
+        if (MimeType.isTypeImage(mimeType)) {
+            thumbnail = createImageThumbnail(context, partID);
+        } else if (MimeType.isTypeVideo(mimeType)) {
+            thumbnail = createVideoThumbnail(context, partID);
+        } else {
+            return null;
+        }
+        if (thumbnail == null) {
+            return null;
+        }
+        String encodedThumbnail = SmsMmsUtils.bitMapToBase64(thumbnail);
+        thumbnail.recycle();
+        if (encodedThumbnail != null) {
+            store(file, encodedThumbnail);
+        }
+        return encodedThumbnail;
+    }
+
+    private static File getCacheDirectory(Context context) {
+        return new File(context.getCacheDir(), CACHE_DIRECTORY);
+    }
+
+    private static void store(File file, String encodedThumbnail) {
+        // Write to a temporary file first, so a reader never sees a half-written thumbnail
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            FileUtils.writeStringToFile(tempFile, encodedThumbnail, Charsets.UTF_8);
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Couldn't rename " + tempFile);
+            }
+        } catch (IOException e) {
+            Log.w("MmsThumbnailCache", "Couldn't cache thumbnail", e);
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            return;
+        }
+        if (writesSinceTrim.incrementAndGet() >= WRITES_BETWEEN_TRIMS) {
+            writesSinceTrim.set(0);
+            trim(file.getParentFile());
+        }
+    }
+
+    /**
+     * Deletes the least recently created thumbnails, if there are too many
+     */
+    private static void trim(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null || files.length <= MAX_ENTRIES) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < files.length - MAX_ENTRIES; i++) {
+            //noinspection ResultOfMethodCallIgnored
+            files[i].delete();
+        }
+    }
+
+    private static @Nullable Bitmap createImageThumbnail(Context context, long partID) {
+        Uri partURI = ContentUris.withAppendedId(SMSHelper.getMMSPartUri(), partID);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        try {
+            // Read the size first, to decode no more pixels than needed
+            options.inJustDecodeBounds = true;
+            try (InputStream inputStream = context.getContentResolver().openInputStream(partURI)) {
+                BitmapFactory.decodeStream(inputStream, null, options);
+            }
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT);
+            Bitmap image;
+            try (InputStream inputStream = context.getContentResolver().openInputStream(partURI)) {
+                image = BitmapFactory.decodeStream(inputStream, null, options);
+            }
+            if (image == null) {
+                return null;
+            }
+            return ThumbnailUtils.extractThumbnail(image, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT, ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+        } catch (IOException | OutOfMemoryError e) {
+            Log.e("MmsThumbnailCache", "Couldn't create image thumbnail", e);
+            return null;
+        }
+    }
+
+    private static @Nullable Bitmap createVideoThumbnail(Context context, long partID) {
+        // Can't use try-with-resources since MediaMetadataRetriever's close method was only added in API 29
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(context, ContentUris.withAppendedId(SMSHelper.getMMSPartUri(), partID));
+            Bitmap frame;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+                // Get a frame just big enough to crop the thumbnail from, instead of a full size one.
+                // The frame keeps its aspect ratio, so leave room for wide videos.
+                frame = retriever.getScaledFrameAtTime(-1, MediaMetadataRetriever.OPTION_CLOSEST_SYNC,
+                        4 * THUMBNAIL_WIDTH, 4 * THUMBNAIL_HEIGHT);
+            } else {
+                frame = retriever.getFrameAtTime();
+            }
+            if (frame == null) {
+                return null;
+            }
+            return ThumbnailUtils.extractThumbnail(frame, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT, ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+        } catch (RuntimeException | OutOfMemoryError e) {
+            Log.e("MmsThumbnailCache", "Couldn't create video thumbnail", e);
+            return null;
+        } finally {
+            try {
+                retriever.release();
+            } catch (Exception e) {
+                // Nothing else we can do
+            }
+        }
+    }
+
+    /**
+     * Calculates the biggest power of two we can divide the size of an image by, while keeping both
+     * of its sides at least as big as the requested ones. See {@link BitmapFactory.Options#inSampleSize}.
+     */
+    private static int calculateInSampleSize(int width, int height, int requestedWidth, int requestedHeight) {
+        int inSampleSize = 1;
+        while (width / (inSampleSize * 2) >= requestedWidth && height / (inSampleSize * 2) >= requestedHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+}
@@ -20,6 +20,7 @@ import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.database.ContentObserver;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
@@ -50,11 +51,9 @@ import org.kde.kdeconnect_tp.BuildConfig;
 import org.kde.kdeconnect_tp.R;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 @PluginFactory.LoadablePlugin
 @SuppressLint("InlinedApi")
@@ -145,7 +144,10 @@ public class SMSPlugin extends Plugin {
     /**
      * Packet sent to request the most-recent message in each conversations on the device
      * <p>
-     * The request packet shall contain no body
+     * The following fields are available:
+     * "deferThumbnails": <boolean>  // (Optional) If true, the messages are first sent with only the
+     *                               // thumbnails which were already created, and the MMS missing some are
+     *                               // sent again once they're created. Defaults to false.
      */
     private final static String PACKET_TYPE_SMS_REQUEST_CONVERSATIONS = "kdeconnect.sms.request_conversations";
 
@@ -181,6 +183,15 @@ public class SMSPlugin extends Plugin {
 
     private static final String KEY_PREF_BLOCKED_NUMBERS = "telephony_blocked_numbers";
 
+    /**
+     * When all conversations are requested, they are sent in packets of up to this many messages...
+     */
+    private static final int CONVERSATIONS_PER_PACKET = 50;
+    /**
+     * ...or roughly this many bytes, since attachment thumbnails can make some messages big
+     */
+    private static final int MAX_CONVERSATIONS_PACKET_SIZE = 256 * 1024;
+
     private final BroadcastReceiver receiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -211,12 +222,16 @@ public class SMSPlugin extends Plugin {
     };
 
     /**
-     * Keep track of the most-recently-seen message so that we can query for later ones as they arrive
+     * Finds the messages which changed since we last looked, so we can send them as they arrive.
+     * Only started once the desktop requests messages, before that nobody is listening for updates.
+     */
+    private MessageChangeTracker messageChangeTracker;
+
+    /**
+     * Runs the slow work which doesn't need to delay our replies, on the same thread which reads
+     * the messages database when it changes
      */
-    private long mostRecentTimestamp = 0;
-    // Since the mostRecentTimestamp is accessed both from the plugin's thread and the ContentObserver
-    // thread, make sure that access is coherent
-    private final Lock mostRecentTimestampLock = new ReentrantLock();
+    private Handler helperHandler;
 
     private class MessageContentObserver extends ContentObserver {
 
@@ -238,7 +253,13 @@ public class SMSPlugin extends Plugin {
          */
         @Override
         public void onChange(boolean selfChange) {
-            sendLatestMessage();
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            SMSHelper.onMessagesChanged(uri);
+            messageChangeTracker.onChange(uri);
         }
 
     }
@@ -255,43 +276,11 @@ public class SMSPlugin extends Plugin {
             String action = intent.getAction();
 
             if (Transaction.REFRESH.equals(action)) {
-                sendLatestMessage();
+                messageChangeTracker.onChange(null);
             }
         }
     };
 
-    /**
-     * Helper method to read the latest message from the sms-mms database and sends it to the desktop
-     */
-    private void sendLatestMessage() {
-        // Lock so no one uses the mostRecentTimestamp between the moment we read it and the
-        // moment we update it. This is because reading the Messages DB can take long.
-        mostRecentTimestampLock.lock();
-
-        if (mostRecentTimestamp == 0) {
-            // Since the timestamp has not been initialized, we know that nobody else
-            // has requested a message. That being the case, there is most likely
-            // nobody listening for message updates, so just drop them
-            mostRecentTimestampLock.unlock();
-            return;
-        }
-        List<SMSHelper.Message> messages = SMSHelper.getMessagesInRange(context, null, mostRecentTimestamp, null, false);
-
-        long newMostRecentTimestamp = mostRecentTimestamp;
-        for (SMSHelper.Message message : messages) {
-            if (message == null || message.date >= newMostRecentTimestamp) {
-                  newMostRecentTimestamp = message.date;
-            }
-        }
-
-        // Update the most recent counter
-        mostRecentTimestamp = newMostRecentTimestamp;
-        mostRecentTimestampLock.unlock();
-
-        // Send the alert about the update
-        device.sendPacket(constructBulkMessagePacket(messages));
-    }
-
     /**
      * Deliver an old-style SMS packet in response to a new message arriving
      *
@@ -365,7 +354,11 @@ public class SMSPlugin extends Plugin {
         context.registerReceiver(messagesUpdateReceiver, refreshFilter);
 
         Looper helperLooper = SMSHelper.MessageLooper.getLooper();
-        ContentObserver messageObserver = new MessageContentObserver(new Handler(helperLooper));
+        helperHandler = new Handler(helperLooper);
+        // Send the messages which changed to whoever is listening
+        messageChangeTracker = new MessageChangeTracker(context, helperHandler,
+                messages -> device.sendPacket(constructBulkMessagePacket(messages)));
+        ContentObserver messageObserver = new MessageContentObserver(helperHandler);
         SMSHelper.registerObserver(messageObserver, context);
 
         // To see debug messages for Klinker library, uncomment the below line
@@ -482,27 +475,95 @@ public class SMSPlugin extends Plugin {
     /**
      * Respond to a request for all conversations
      * <p>
-     * Send one packet of type PACKET_TYPE_SMS_MESSAGE with the first message in all conversations
+     * Send packets of type PACKET_TYPE_SMS_MESSAGE with the first message in all conversations,
+     * each one with a page of conversations so the desktop can start showing them right away.
+     * <p>
+     * If the desktop asks for it, the list is sent with only the thumbnails which were already
+     * cached, and the messages missing thumbnails are sent again once they're created.
      */
     private boolean handleRequestAllConversations(NetworkPacket packet) {
-        Iterable<SMSHelper.Message> conversations = SMSHelper.getConversations(this.context);
-
-        // Prepare the mostRecentTimestamp counter based on these messages, since they are the most
-        // recent in every conversation
-        mostRecentTimestampLock.lock();
-        for (SMSHelper.Message message : conversations) {
-            if (message.date > mostRecentTimestamp) {
-                mostRecentTimestamp = message.date;
+        // From now on, someone is listening for new messages
+        messageChangeTracker.start();
+
+        boolean deferThumbnails = packet.getBoolean("deferThumbnails", false);
+        Iterable<SMSHelper.Message> conversations = SMSHelper.getConversations(this.context, !deferThumbnails);
+
+        List<Long> missingThumbnails = new ArrayList<>();
+        sendInBatches(conversations, message -> {
+            if (deferThumbnails && isMissingThumbnails(message)) {
+                missingThumbnails.add(message.uID);
             }
-            NetworkPacket partialReply = constructBulkMessagePacket(Collections.singleton(message));
-            device.sendPacket(partialReply);
-        }
-        mostRecentTimestampLock.unlock();
+        });
+
+        sendThumbnailsLater(missingThumbnails);
 
         return true;
     }
 
+    /**
+     * Sends the MMS with the given IDs again, with the thumbnails of their attachments, once the
+     * helper thread is done with the work queued before
+     */
+    private void sendThumbnailsLater(List<Long> mmsIDs) {
+        if (mmsIDs.isEmpty()) {
+            return;
+        }
+        helperHandler.post(() -> {
+            try {
+                List<SMSHelper.Message> messages = SMSHelper.getMessagesWithIDs(context, SMSHelper.TransportType.MMS, mmsIDs, true);
+                sendInBatches(messages, message -> {});
+            } catch (SMSHelper.MessageAccessException e) {
+                Log.e("SMSPlugin", "Couldn't read the messages to send their thumbnails", e);
+            }
+        });
+    }
+
+    /**
+     * Sends the messages in packets of up to CONVERSATIONS_PER_PACKET messages and about
+     * MAX_CONVERSATIONS_PACKET_SIZE bytes
+     *
+     * @param onMessage Called with each message as it's added to a packet
+     */
+    private void sendInBatches(Iterable<SMSHelper.Message> messages, Consumer<SMSHelper.Message> onMessage) {
+        List<SMSHelper.Message> batch = new ArrayList<>(CONVERSATIONS_PER_PACKET);
+        int batchSize = 0;
+        for (SMSHelper.Message message : messages) {
+            int messageSize = message.estimateSerializedSize();
+            if (!batch.isEmpty() && (batch.size() >= CONVERSATIONS_PER_PACKET || batchSize + messageSize > MAX_CONVERSATIONS_PACKET_SIZE)) {
+                device.sendPacket(constructBulkMessagePacket(batch));
+                batch.clear();
+                batchSize = 0;
+            }
+            batch.add(message);
+            batchSize += messageSize;
+            onMessage.accept(message);
+        }
+        if (!batch.isEmpty()) {
+            device.sendPacket(constructBulkMessagePacket(batch));
+        }
+    }
+
+    /**
+     * @return true if the message has image or video attachments whose thumbnail wasn't cached
+     */
+    private static boolean isMissingThumbnails(SMSHelper.Message message) {
+        if (message.attachments == null) {
+            return false;
+        }
+        for (SMSHelper.Attachment attachment : message.attachments) {
+            if (attachment.getBase64EncodedFile() == null && MmsThumbnailCache.hasThumbnail(attachment.getMimeType())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private boolean handleRequestSingleConversation(NetworkPacket packet) {
+        // Sometimes when desktop app is kept open while android app is restarted for any reason
+        // the change tracker must be started in that scenario too if a user request for a
+        // single conversation and not the entire conversation list
+        messageChangeTracker.start();
+
         SMSHelper.ThreadID threadID = new SMSHelper.ThreadID(packet.getLong("threadID"));
 
         long rangeStartTimestamp = packet.getLong("rangeStartTimestamp", -1);
@@ -519,17 +580,6 @@ public class SMSPlugin extends Plugin {
             conversation = SMSHelper.getMessagesInRange(this.context, threadID, rangeStartTimestamp, numberToGet, true);
         }
 
-        // Sometimes when desktop app is kept open while android app is restarted for any reason
-        // mostRecentTimeStamp must be updated in that scenario too if a user request for a
-        // single conversation and not the entire conversation list
-        mostRecentTimestampLock.lock();
-        for (SMSHelper.Message message : conversation) {
-            if (message.date > mostRecentTimestamp) {
-                mostRecentTimestamp = message.date;
-            }
-        }
-        mostRecentTimestampLock.unlock();
-
         NetworkPacket reply = constructBulkMessagePacket(conversation);
 
         device.sendPacket(reply);
@@ -23,11 +23,11 @@ import org.apache.commons.io.IOUtils;
 import org.kde.kdeconnect.Device;
 import org.kde.kdeconnect.Helpers.FilesHelper;
 import org.kde.kdeconnect.Helpers.MediaStoreHelper;
+import org.kde.kdeconnect.Helpers.PayloadTransferHelper;
 import org.kde.kdeconnect.NetworkPacket;
 import org.kde.kdeconnect.async.BackgroundJob;
 import org.kde.kdeconnect_tp.R;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -50,7 +50,7 @@ import java.util.List;
  *     {@link #addNetworkPacket(NetworkPacket)}.
  * </p>
  * <p>
- *     The I/O-part of this file reading is handled by {@link #receiveFile(InputStream, OutputStream)}.
+ *     The I/O-part of this file reading is handled by {@link #receiveFile(InputStream, OutputStream, long)}.
  * </p>
  *
  * @see CompositeUploadFileJob
@@ -61,8 +61,7 @@ public class CompositeReceiveFileJob extends BackgroundJob<Device, Void> {
     private String currentFileName;
     private int currentFileNum;
     private long totalReceived;
-    private long lastProgressTimeMillis;
-    private long prevProgressPercentage;
+    private volatile long prevProgressPercentage;
 
     private final Object lock;                              //Use to protect concurrent access to the variables below
     @GuardedBy("lock")
@@ -83,7 +82,6 @@ public class CompositeReceiveFileJob extends BackgroundJob<Device, Void> {
         totalNumFiles = 0;
         totalPayloadSize = 0;
         totalReceived = 0;
-        lastProgressTimeMillis = 0;
         prevProgressPercentage = 0;
     }
 
@@ -143,10 +141,11 @@ public class CompositeReceiveFileJob extends BackgroundJob<Device, Void> {
                 fileDocument = getDocumentFileFor(currentFileName, currentNetworkPacket.getBoolean("open", false));
 
                 if (currentNetworkPacket.hasPayload()) {
-                    outputStream = new BufferedOutputStream(getDevice().getContext().getContentResolver().openOutputStream(fileDocument.getUri()));
+                    // Not buffered, PayloadTransferHelper already writes in big chunks
+                    outputStream = getDevice().getContext().getContentResolver().openOutputStream(fileDocument.getUri());
                     InputStream inputStream = currentNetworkPacket.getPayload().getInputStream();
 
-                    long received = receiveFile(inputStream, outputStream);
+                    long received = receiveFile(inputStream, outputStream, currentNetworkPacket.getPayloadSize());
 
                     currentNetworkPacket.getPayload().close();
 
@@ -285,32 +284,19 @@ public class CompositeReceiveFileJob extends BackgroundJob<Device, Void> {
         return fileDocument;
     }
 
-    private long receiveFile(InputStream input, OutputStream output) throws IOException {
-        byte[] data = new byte[4096];
-        int count;
-        long received = 0;
-
-        while ((count = input.read(data)) >= 0 && !canceled) {
-            received += count;
-            totalReceived += count;
-
-            output.write(data, 0, count);
-
+    private long receiveFile(InputStream input, OutputStream output, long expectedSize) throws IOException {
+        final long receivedBefore = totalReceived;
+        long received = PayloadTransferHelper.copy(input, output, expectedSize, () -> canceled, bytesCopied -> {
             long progressPercentage;
             synchronized (lock) {
-                progressPercentage = (totalReceived * 100 / totalPayloadSize);
+                progressPercentage = ((receivedBefore + bytesCopied) * 100 / totalPayloadSize);
             }
-            long curTimeMillis = System.currentTimeMillis();
-
-            if (progressPercentage != prevProgressPercentage &&
-                    (progressPercentage == 100 || curTimeMillis - lastProgressTimeMillis >= 500)) {
+            if (progressPercentage != prevProgressPercentage) {
                 prevProgressPercentage = progressPercentage;
-                lastProgressTimeMillis = curTimeMillis;
                 setProgress((int)progressPercentage);
             }
-        }
-
-        output.flush();
+        });
+        totalReceived += received;
 
         return received;
     }
@@ -6,12 +6,13 @@
 
 package org.kde.kdeconnect.UserInterface;
 
-import android.os.Build;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
@@ -22,10 +23,14 @@ import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 
 import org.kde.kdeconnect.Device;
 import org.kde.kdeconnect.DeviceStats;
+import org.kde.kdeconnect.Helpers.Metrics;
+import org.kde.kdeconnect.Helpers.ThreadHelper;
 import org.kde.kdeconnect.KdeConnect;
 import org.kde.kdeconnect.Plugins.Plugin;
 import org.kde.kdeconnect_tp.R;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Objects;
 
 public class PluginSettingsActivity
@@ -100,14 +105,16 @@ public class PluginSettingsActivity
     public boolean onPrepareOptionsMenu(Menu menu) {
         super.onPrepareOptionsMenu(menu);
         menu.clear();
-        if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.N) {
-            return false; // PacketStats not working in API < 24
-        }
         menu.add(R.string.plugin_stats).setOnMenuItemClickListener(item -> {
             String stats = DeviceStats.getStatsForDevice(deviceId);
+            Device device = KdeConnect.getInstance().getDevice(deviceId);
+            if (device != null) {
+                stats += "\n" + device.getPacketQueueStats();
+            }
             AlertDialog alertDialog = new MaterialAlertDialogBuilder(PluginSettingsActivity.this)
                     .setTitle(R.string.plugin_stats)
                     .setPositiveButton(R.string.ok, (dialog, which) -> dialog.dismiss())
+                    .setNeutralButton(R.string.export_metrics, (dialog, which) -> exportMetrics())
                     .setMessage(stats)
                     .show();
             View messageView = alertDialog.findViewById(android.R.id.message);
@@ -119,6 +126,29 @@ public class PluginSettingsActivity
         return true;
     }
 
+    /**
+     * Dumps the pipeline metrics to logcat and to a file in the app's external files dir, for offline analysis
+     */
+    private void exportMetrics() {
+        File directory = getExternalFilesDir(null);
+        ThreadHelper.execute(() -> {
+            Metrics.dumpToLog();
+            if (directory == null) {
+                // Shared storage isn't available, the metrics are only in the log
+                Log.e("PluginSettingsActivity", "Could not export metrics: no external files dir");
+                runOnUiThread(() -> Toast.makeText(this, R.string.error_metrics_export, Toast.LENGTH_LONG).show());
+                return;
+            }
+            File file = new File(directory, "metrics-" + System.currentTimeMillis() + ".txt");
+            try {
+                Metrics.dumpToFile(file);
+                runOnUiThread(() -> Toast.makeText(this, getString(R.string.metrics_exported, file.getAbsolutePath()), Toast.LENGTH_LONG).show());
+            } catch (IOException e) {
+                Log.e("PluginSettingsActivity", "Could not export metrics", e);
+            }
+        });
+    }
+
     @Override
     public void onStartPluginSettingsFragment(Plugin plugin) {
         setTitle(getString(R.string.plugin_settings_with_name, plugin.getDisplayName()));
@@ -38,6 +38,7 @@ import org.kde.kdeconnect_tp.R;
 public class SettingsFragment extends PreferenceFragmentCompat {
 
     public static final String KEY_UDP_BROADCAST_ENABLED = "udp_broadcast_enabled";
+    public static final String KEY_MULTIPLEXED_PAYLOADS_ENABLED = "multiplexed_payloads_enabled";
     public static final String KEY_APP_THEME = "theme_pref";
 
     private EditTextPreference renameDevice;
@@ -178,6 +179,13 @@ public class SettingsFragment extends PreferenceFragmentCompat {
         udpBroadcastDiscovery.setTitle(R.string.enable_udp_broadcast);
         screen.addPreference(udpBroadcastDiscovery);
 
+        // Multiplexed payloads toggle
+        final TwoStatePreference multiplexedPayloads = new SwitchPreference(context);
+        multiplexedPayloads.setDefaultValue(false);
+        multiplexedPayloads.setKey(KEY_MULTIPLEXED_PAYLOADS_ENABLED);
+        multiplexedPayloads.setTitle(R.string.enable_multiplexed_payloads);
+        screen.addPreference(multiplexedPayloads);
+
         // More settings text
         Preference moreSettingsText = new Preference(context);
         moreSettingsText.setPersistent(false);
@@ -0,0 +1,291 @@
+package org.kde.kdeconnect.Backends.BluetoothBackend;
+
+import android.bluetooth.BluetoothSocket;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({BluetoothSocket.class})
+public class ConnectionMultiplexerTest {
+
+    private static final UUID DEFAULT_CHANNEL = UUID.fromString("a0d0aaf4-1072-4d81-aa35-902a954b1266");
+    private static final int PIPE_SIZE = 256 * 1024;
+    private static final int V1_WINDOW = 4096;
+    private static final int V2_WINDOW = 64 * 1024;
+
+    private static final byte MESSAGE_PROTOCOL_VERSION = 0;
+    private static final byte MESSAGE_READ = 3;
+    private static final byte MESSAGE_WRITE = 4;
+
+    private final List<ConnectionMultiplexer> multiplexers = new ArrayList<>();
+    // Not the common pool, which may have a single thread
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() throws IOException {
+        for (ConnectionMultiplexer multiplexer : multiplexers) {
+            multiplexer.close();
+        }
+        executor.shutdownNow();
+    }
+
+    private static BluetoothSocket socket(InputStream input, OutputStream output) throws IOException {
+        BluetoothSocket socket = PowerMockito.mock(BluetoothSocket.class);
+        PowerMockito.when(socket.getInputStream()).thenReturn(input);
+        PowerMockito.when(socket.getOutputStream()).thenReturn(output);
+        PowerMockito.when(socket.isConnected()).thenReturn(true);
+        PowerMockito.doAnswer(invocation -> {
+            input.close();
+            output.close();
+            return null;
+        }).when(socket).close();
+        return socket;
+    }
+
+    /**
+     * The other end of a multiplexer, which reads and writes raw messages
+     */
+    private static class RawPeer {
+        final DataInputStream input;
+        final PipedOutputStream output;
+
+        RawPeer(DataInputStream input, PipedOutputStream output) {
+            this.input = input;
+            this.output = output;
+        }
+
+        Message read() throws IOException {
+            Message message = new Message();
+            message.type = input.readByte();
+            int length = input.readUnsignedShort();
+            message.channel = new UUID(input.readLong(), input.readLong());
+            message.data = new byte[length];
+            input.readFully(message.data);
+            return message;
+        }
+
+        void write(byte type, UUID channel, byte[] data) throws IOException {
+            ByteBuffer message = ByteBuffer.allocate(19 + data.length);
+            message.put(type);
+            message.putShort((short) data.length);
+            message.putLong(channel.getMostSignificantBits());
+            message.putLong(channel.getLeastSignificantBits());
+            message.put(data);
+            output.write(message.array());
+            output.flush();
+        }
+    }
+
+    private static class Message {
+        byte type;
+        UUID channel;
+        byte[] data;
+    }
+
+    private ConnectionMultiplexer multiplexer(InputStream input, OutputStream output) throws IOException {
+        ConnectionMultiplexer multiplexer = new ConnectionMultiplexer(socket(input, output));
+        multiplexers.add(multiplexer);
+        return multiplexer;
+    }
+
+    private RawPeer connectRawPeer() throws IOException {
+        PipedOutputStream toMultiplexer = new PipedOutputStream();
+        PipedInputStream multiplexerInput = new PipedInputStream(toMultiplexer, PIPE_SIZE);
+        PipedInputStream fromMultiplexer = new PipedInputStream(PIPE_SIZE);
+        PipedOutputStream multiplexerOutput = new PipedOutputStream(fromMultiplexer);
+        multiplexer(multiplexerInput, multiplexerOutput);
+        return new RawPeer(new DataInputStream(fromMultiplexer), toMultiplexer);
+    }
+
+    private ConnectionMultiplexer[] connectPair() throws IOException {
+        PipedOutputStream aToB = new PipedOutputStream();
+        PipedInputStream bInput = new PipedInputStream(aToB, PIPE_SIZE);
+        PipedOutputStream bToA = new PipedOutputStream();
+        PipedInputStream aInput = new PipedInputStream(bToA, PIPE_SIZE);
+        return new ConnectionMultiplexer[]{multiplexer(aInput, aToB), multiplexer(bInput, bToA)};
+    }
+
+    private static InputStream waitForChannel(ConnectionMultiplexer multiplexer, UUID id) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            try {
+                return multiplexer.getChannelInputStream(id);
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    private static void assertVersionMessage(Message message) {
+        Assert.assertEquals(MESSAGE_PROTOCOL_VERSION, message.type);
+        ByteBuffer data = ByteBuffer.wrap(message.data);
+        Assert.assertEquals(8, message.data.length);
+        Assert.assertEquals(1, data.getShort());
+        Assert.assertEquals(2, data.getShort());
+        Assert.assertEquals(0xFFFF, data.getInt());
+    }
+
+    /**
+     * @return how many bytes were granted to the default channel by the next read messages
+     */
+    private static int readGrants(RawPeer peer, int expected) throws IOException {
+        int granted = 0;
+        while (granted < expected) {
+            Message message = peer.read();
+            Assert.assertEquals(MESSAGE_READ, message.type);
+            Assert.assertEquals(DEFAULT_CHANNEL, message.channel);
+            granted += ByteBuffer.wrap(message.data).getShort() & 0xFFFF;
+        }
+        return granted;
+    }
+
+    @Test
+    public void version1PeerGetsSmallWindowAndCredits() throws Exception {
+        RawPeer peer = connectRawPeer();
+        assertVersionMessage(peer.read());
+
+        // A version 1 peer only sends the supported versions
+        peer.write(MESSAGE_PROTOCOL_VERSION, DEFAULT_CHANNEL, new byte[]{0, 1, 0, 1});
+        Assert.assertEquals(V1_WINDOW, readGrants(peer, V1_WINDOW));
+
+        // Never send more than what the peer granted, and continue once it grants more
+        ConnectionMultiplexer multiplexer = multiplexers.get(0);
+        byte[] data = new byte[3 * V1_WINDOW + 100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        OutputStream output = multiplexer.getDefaultOutputStream();
+        Future<?> writer = executor.submit(() -> {
+            output.write(data);
+            output.flush();
+            return null;
+        });
+        int received = 0;
+        int credits = 0;
+        while (received < data.length) {
+            if (credits == 0) {
+                credits = Math.min(V1_WINDOW, data.length - received);
+                peer.write(MESSAGE_READ, DEFAULT_CHANNEL, new byte[]{(byte) (credits >> 8), (byte) credits});
+            }
+            Message message = peer.read();
+            Assert.assertEquals(MESSAGE_WRITE, message.type);
+            Assert.assertTrue(message.data.length <= credits);
+            for (byte b : message.data) {
+                Assert.assertEquals(data[received++], b);
+            }
+            credits -= message.data.length;
+        }
+        writer.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void version2PeerGetsLargeWindow() throws Exception {
+        RawPeer peer = connectRawPeer();
+        assertVersionMessage(peer.read());
+
+        peer.write(MESSAGE_PROTOCOL_VERSION, DEFAULT_CHANNEL, new byte[]{0, 1, 0, 2, 0, 0, (byte) 0xFF, (byte) 0xFF});
+        Assert.assertEquals(V2_WINDOW, readGrants(peer, V2_WINDOW));
+    }
+
+    @Test
+    public void senderWaitsForCreditsAndContinuesWhenReadFrom() throws Exception {
+        ConnectionMultiplexer[] pair = connectPair();
+        UUID id = pair[0].newChannel();
+        InputStream input = waitForChannel(pair[1], id);
+
+        // More than the receive window and the send buffer together
+        byte[] data = new byte[3 * V2_WINDOW];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        OutputStream output = pair[0].getChannelOutputStream(id);
+        Future<?> writer = executor.submit(() -> {
+            output.write(data);
+            output.flush();
+            return null;
+        });
+
+        // The receiver gets a full window and nothing more while nobody reads
+        long deadline = System.currentTimeMillis() + 5000;
+        while (input.available() < V2_WINDOW && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        Assert.assertEquals(V2_WINDOW, input.available());
+        Assert.assertFalse(writer.isDone());
+
+        // Reading grants new credits, until everything arrived
+        byte[] received = new byte[data.length];
+        new DataInputStream(input).readFully(received);
+        Assert.assertArrayEquals(data, received);
+        writer.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void packetsAreNotDelayedByABusyChannel() throws Exception {
+        ConnectionMultiplexer[] pair = connectPair();
+        UUID id = pair[0].newChannel();
+        InputStream payloadInput = waitForChannel(pair[1], id);
+        OutputStream payloadOutput = pair[0].getChannelOutputStream(id);
+
+        // Keep the payload channel as busy as it can be
+        AtomicBoolean stop = new AtomicBoolean(false);
+        Future<?> payloadWriter = executor.submit(() -> {
+            byte[] chunk = new byte[16 * 1024];
+            while (!stop.get()) {
+                payloadOutput.write(chunk);
+            }
+            return null;
+        });
+        executor.execute(() -> {
+            byte[] chunk = new byte[16 * 1024];
+            try {
+                while (payloadInput.read(chunk) != -1) {
+                    // Drain it until the channel is closed
+                }
+            } catch (IOException ignored) {
+            }
+        });
+
+        OutputStream packetOutput = pair[0].getDefaultOutputStream();
+        InputStream packetInput = pair[1].getDefaultInputStream();
+        byte[] packet = "{\"type\":\"kdeconnect.ping\"}\n".getBytes();
+        for (int i = 0; i < 20; i++) {
+            Future<byte[]> reader = executor.submit(() -> {
+                byte[] received = new byte[packet.length];
+                new DataInputStream(packetInput).readFully(received);
+                return received;
+            });
+            packetOutput.write(packet);
+            packetOutput.flush();
+            Assert.assertArrayEquals(packet, reader.get(1, TimeUnit.SECONDS));
+        }
+
+        stop.set(true);
+        payloadWriter.get(5, TimeUnit.SECONDS);
+    }
+}
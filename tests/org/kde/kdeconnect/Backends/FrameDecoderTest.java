@@ -0,0 +1,65 @@
+package org.kde.kdeconnect.Backends;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+public class FrameDecoderTest {
+
+    private final ArrayList<String> frames = new ArrayList<>();
+    private final FrameDecoder.Listener listener = (data, offset, length) -> frames.add(new String(data, offset, length, StandardCharsets.UTF_8));
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void splitsFramesInASingleRead() throws Exception {
+        FrameDecoder decoder = new FrameDecoder(listener);
+        byte[] data = bytes("{\"a\":1}\n{\"b\":2}\r\n\n{\"c\"");
+        decoder.feed(data, 0, data.length);
+        Assert.assertEquals(2, frames.size());
+        Assert.assertEquals("{\"a\":1}", frames.get(0));
+        Assert.assertEquals("{\"b\":2}", frames.get(1));
+        decoder.feed(ByteBuffer.wrap(bytes(":3}\n")));
+        Assert.assertEquals(3, frames.size());
+        Assert.assertEquals("{\"c\":3}", frames.get(2));
+    }
+
+    @Test
+    public void joinsFramesSplitAcrossReads() throws Exception {
+        FrameDecoder decoder = new FrameDecoder(listener);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            expected.append('x');
+        }
+        byte[] data = bytes(expected + "\n");
+        for (int i = 0; i < data.length; i += 7) {
+            decoder.feed(data, i, Math.min(7, data.length - i));
+        }
+        Assert.assertEquals(1, frames.size());
+        Assert.assertEquals(expected.toString(), frames.get(0));
+    }
+
+    @Test
+    public void rejectsFramesOverTheLimit() throws Exception {
+        FrameDecoder decoder = new FrameDecoder(10, listener);
+        byte[] ok = bytes("0123456789\n");
+        decoder.feed(ok, 0, ok.length);
+        Assert.assertEquals(1, frames.size());
+        byte[] tooLarge = bytes("0123456789A");
+        Assert.assertThrows(FrameDecoder.FrameTooLargeException.class, () -> decoder.feed(tooLarge, 0, tooLarge.length));
+    }
+
+    @Test
+    public void rejectsCompleteFramesOverTheLimit() throws Exception {
+        FrameDecoder decoder = new FrameDecoder(10, listener);
+        byte[] data = bytes("0123456789\n0123456789A\n0\n");
+        Assert.assertThrows(FrameDecoder.FrameTooLargeException.class, () -> decoder.feed(data, 0, data.length));
+        Assert.assertEquals(1, frames.size());
+        Assert.assertEquals("0123456789", frames.get(0));
+    }
+}
@@ -0,0 +1,92 @@
+package org.kde.kdeconnect.Backends.LanBackend;
+
+import android.util.Log;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({Log.class})
+public class HandshakeSchedulerTest {
+
+    private InetAddress first;
+    private InetAddress second;
+    private InetAddress third;
+    private InetAddress barrier;
+
+    @Before
+    public void setUp() throws UnknownHostException {
+        PowerMockito.mockStatic(Log.class);
+        first = InetAddress.getByAddress(new byte[]{10, 0, 0, 1});
+        second = InetAddress.getByAddress(new byte[]{10, 0, 0, 2});
+        third = InetAddress.getByAddress(new byte[]{10, 0, 0, 3});
+        barrier = InetAddress.getByAddress(new byte[]{10, 0, 0, 99});
+    }
+
+    private static Runnable waitFor(CountDownLatch started, CountDownLatch release, CountDownLatch finished) {
+        return () -> {
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+            }
+            finished.countDown();
+        };
+    }
+
+    /**
+     * Waits until the handshakes queued so far have finished and released their slots. The
+     * schedulers in these tests have a single thread, so this is the case once a handshake
+     * queued after them has run.
+     */
+    private void awaitIdle(HandshakeScheduler scheduler) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        Assert.assertTrue(scheduler.execute(barrier, done::countDown));
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void limitsHandshakesPerAddress() throws InterruptedException {
+        HandshakeScheduler scheduler = new HandshakeScheduler(1, 10, 2);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(3);
+        Assert.assertTrue(scheduler.execute(first, waitFor(started, release, finished)));
+        Assert.assertTrue(scheduler.execute(first, waitFor(started, release, finished)));
+        Assert.assertFalse(scheduler.execute(first, waitFor(started, release, finished)));
+        Assert.assertTrue(scheduler.execute(second, waitFor(started, release, finished)));
+
+        release.countDown();
+        Assert.assertTrue(finished.await(5, TimeUnit.SECONDS));
+        awaitIdle(scheduler);
+        Assert.assertTrue(scheduler.execute(first, () -> {}));
+    }
+
+    @Test
+    public void limitsQueuedHandshakes() throws InterruptedException {
+        HandshakeScheduler scheduler = new HandshakeScheduler(1, 1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(2);
+        Assert.assertTrue(scheduler.execute(first, waitFor(started, release, finished)));
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(scheduler.execute(third, waitFor(started, release, finished)));
+        Assert.assertFalse(scheduler.execute(second, waitFor(started, release, finished)));
+
+        // The rejected handshake doesn't count against its address, which would now be at its limit
+        release.countDown();
+        Assert.assertTrue(finished.await(5, TimeUnit.SECONDS));
+        awaitIdle(scheduler);
+        Assert.assertTrue(scheduler.execute(second, () -> {}));
+    }
+}
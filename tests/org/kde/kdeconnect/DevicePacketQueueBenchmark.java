@@ -0,0 +1,167 @@
+package org.kde.kdeconnect;
+
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayDeque;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link DevicePacketQueue} with the single-lock queue it replaced, while two threads stream
+ * mouse moves (which replace each other) and another thread sends them along a backlog of other packets.
+ * <p>
+ * Not run as part of the tests, run {@link #main(String[])} instead.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DevicePacketQueueBenchmark {
+
+    /**
+     * The implementation before DevicePacketQueue got priority lanes and a lock-free enqueue
+     */
+    static class SynchronizedPacketQueue {
+        private static final class Item {
+            NetworkPacket packet;
+            final int replaceID;
+            Device.SendPacketStatusCallback callback;
+
+            Item(NetworkPacket packet, int replaceID, Device.SendPacketStatusCallback callback) {
+                this.packet = packet;
+                this.callback = callback;
+                this.replaceID = replaceID;
+            }
+        }
+
+        private final ArrayDeque<Item> items = new ArrayDeque<>();
+        private final Object lock = new Object();
+
+        void addPacket(NetworkPacket packet, int replaceID, Device.SendPacketStatusCallback callback) {
+            synchronized (lock) {
+                boolean replaced = false;
+                if (replaceID >= 0) {
+                    for (Item item : items) {
+                        if (item.replaceID == replaceID) {
+                            item.packet = packet;
+                            item.callback = callback;
+                            replaced = true;
+                            break;
+                        }
+                    }
+                }
+                if (!replaced) {
+                    items.addLast(new Item(packet, replaceID, callback));
+                    lock.notify();
+                }
+            }
+        }
+
+        NetworkPacket getAndRemoveUnsentPacket(int replaceID) {
+            synchronized (lock) {
+                final Optional<Item> itemOptional = items.stream()
+                        .filter(item -> item.replaceID == replaceID).findFirst();
+                if (itemOptional.isPresent()) {
+                    final Item item = itemOptional.get();
+                    items.remove(item);
+                    return item.packet;
+                }
+            }
+            return null;
+        }
+
+        NetworkPacket pollNextPacket() {
+            synchronized (lock) {
+                Item item = items.pollFirst();
+                return (item == null) ? null : item.packet;
+            }
+        }
+    }
+
+    // Packets from other plugins waiting to be sent while the mouse moves
+    private static final int BACKLOG_SIZE = 100;
+
+    @State(Scope.Group)
+    public static class Queues {
+        final NetworkPacket mouseMove = new NetworkPacket("kdeconnect.mousepad.request");
+        final NetworkPacket notification = new NetworkPacket("kdeconnect.notification");
+        Device.SendPacketStatusCallback callback;
+        DevicePacketQueue queue;
+        SynchronizedPacketQueue synchronizedQueue;
+
+        @Setup
+        public void setup() {
+            callback = Mockito.mock(Device.SendPacketStatusCallback.class);
+            queue = new DevicePacketQueue(Mockito.mock(Device.class), false);
+            synchronizedQueue = new SynchronizedPacketQueue();
+            for (int i = 0; i < BACKLOG_SIZE; i++) {
+                queue.addPacket(notification, -1, callback);
+                synchronizedQueue.addPacket(notification, -1, callback);
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("lockFree")
+    @GroupThreads(2)
+    public NetworkPacket lockFreeMouseMoves(Queues queues) {
+        // What MousePadPlugin does: merge with the unsent move, if any
+        NetworkPacket unsent = queues.queue.getAndRemoveUnsentPacket(NetworkPacket.PACKET_REPLACEID_MOUSEMOVE);
+        queues.queue.addPacket(queues.mouseMove, NetworkPacket.PACKET_REPLACEID_MOUSEMOVE, queues.callback);
+        return unsent;
+    }
+
+    @Benchmark
+    @Group("lockFree")
+    @GroupThreads(1)
+    public NetworkPacket lockFreeSender(Queues queues) {
+        NetworkPacket sent = queues.queue.pollNextPacket();
+        if (sent == queues.notification) {
+            queues.queue.addPacket(queues.notification, -1, queues.callback); // Keep the backlog size constant
+        }
+        return sent;
+    }
+
+    @Benchmark
+    @Group("synchronized")
+    @GroupThreads(2)
+    public NetworkPacket synchronizedMouseMoves(Queues queues) {
+        NetworkPacket unsent = queues.synchronizedQueue.getAndRemoveUnsentPacket(NetworkPacket.PACKET_REPLACEID_MOUSEMOVE);
+        queues.synchronizedQueue.addPacket(queues.mouseMove, NetworkPacket.PACKET_REPLACEID_MOUSEMOVE, queues.callback);
+        return unsent;
+    }
+
+    @Benchmark
+    @Group("synchronized")
+    @GroupThreads(1)
+    public NetworkPacket synchronizedSender(Queues queues) {
+        NetworkPacket sent = queues.synchronizedQueue.pollNextPacket();
+        if (sent == queues.notification) {
+            queues.synchronizedQueue.addPacket(queues.notification, -1, queues.callback);
+        }
+        return sent;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(DevicePacketQueueBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
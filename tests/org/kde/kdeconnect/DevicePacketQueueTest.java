@@ -1,10 +1,24 @@
 package org.kde.kdeconnect;
 
 import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+
+import android.util.Log;
 
 import org.junit.Test;
+import org.junit.runner.RunWith;
 import org.mockito.Mockito;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({Log.class})
 public class DevicePacketQueueTest {
     @Test
     public void addPacketWithPositiveReplaceId() {
@@ -47,4 +61,102 @@ public class DevicePacketQueueTest {
         assertNotNull(queue.getAndRemoveUnsentPacket(1));
         assertNull(queue.getAndRemoveUnsentPacket(1));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void interactivePacketsAreSentFirst() {
+        Device device = Mockito.mock(Device.class);
+        Device.SendPacketStatusCallback callback = Mockito.mock(Device.SendPacketStatusCallback.class);
+
+        DevicePacketQueue queue = new DevicePacketQueue(device, false);
+
+        queue.addPacket(new NetworkPacket("kdeconnect.sms.messages"), -1, callback);
+        queue.addPacket(new NetworkPacket("kdeconnect.battery"), -1, callback);
+        queue.addPacket(new NetworkPacket("kdeconnect.mousepad.request"), -1, callback);
+
+        assertEquals("kdeconnect.mousepad.request", queue.pollNextPacket().getType());
+        assertEquals("kdeconnect.battery", queue.pollNextPacket().getType());
+        assertEquals("kdeconnect.sms.messages", queue.pollNextPacket().getType());
+        assertNull(queue.pollNextPacket());
+    }
+
+    @Test
+    public void bulkPacketsAreNotStarved() {
+        Device device = Mockito.mock(Device.class);
+        Device.SendPacketStatusCallback callback = Mockito.mock(Device.SendPacketStatusCallback.class);
+
+        DevicePacketQueue queue = new DevicePacketQueue(device, false);
+
+        queue.addPacket(new NetworkPacket("kdeconnect.contacts.response_vcards"), -1, callback);
+        for (int i = 0; i < 10; i++) {
+            queue.addPacket(new NetworkPacket("kdeconnect.notification"), -1, callback);
+        }
+
+        int sentBeforeBulk = 0;
+        while (!queue.pollNextPacket().getType().equals("kdeconnect.contacts.response_vcards")) {
+            sentBeforeBulk++;
+        }
+        assertTrue(sentBeforeBulk < 10);
+    }
+
+    @Test
+    public void pluginsTakeTurnsWithinALane() {
+        Device device = Mockito.mock(Device.class);
+        Device.SendPacketStatusCallback callback = Mockito.mock(Device.SendPacketStatusCallback.class);
+
+        DevicePacketQueue queue = new DevicePacketQueue(device, false);
+
+        queue.addPacket(new NetworkPacket("kdeconnect.sms.messages"), -1, callback);
+        queue.addPacket(new NetworkPacket("kdeconnect.sms.messages"), -1, callback);
+        queue.addPacket(new NetworkPacket("kdeconnect.share.request"), -1, callback);
+
+        assertEquals("kdeconnect.sms.messages", queue.pollNextPacket().getType());
+        assertEquals("kdeconnect.share.request", queue.pollNextPacket().getType());
+        assertEquals("kdeconnect.sms.messages", queue.pollNextPacket().getType());
+    }
+
+    @Test
+    public void replacedPacketKeepsItsPlace() {
+        Device device = Mockito.mock(Device.class);
+        Device.SendPacketStatusCallback callback = Mockito.mock(Device.SendPacketStatusCallback.class);
+
+        DevicePacketQueue queue = new DevicePacketQueue(device, false);
+
+        queue.addPacket(new NetworkPacket("kdeconnect.mousepad.request"), 0, callback);
+        queue.addPacket(new NetworkPacket("kdeconnect.mousepad.keyboardstate"), -1, callback);
+        NetworkPacket replacement = new NetworkPacket("kdeconnect.mousepad.request");
+        queue.addPacket(replacement, 0, callback);
+
+        assertSame(replacement, queue.pollNextPacket());
+        assertEquals("kdeconnect.mousepad.keyboardstate", queue.pollNextPacket().getType());
+        assertNull(queue.pollNextPacket());
+        assertNull(queue.getAndRemoveUnsentPacket(0));
+    }
+
+    @Test
+    public void nonInteractivePacketsWaitForABatchUntilAnInteractiveOneArrives() throws InterruptedException {
+        PowerMockito.mockStatic(Log.class);
+        Device device = Mockito.mock(Device.class);
+        Device.SendPacketStatusCallback callback = Mockito.mock(Device.SendPacketStatusCallback.class);
+        List<Integer> batchSizes = new ArrayList<>();
+        CountDownLatch sent = new CountDownLatch(1);
+        Mockito.doAnswer(invocation -> {
+            batchSizes.add(((List<?>) invocation.getArgument(0)).size());
+            sent.countDown();
+            return null;
+        }).when(device).sendPacketsBlocking(any(), any());
+
+        // Much longer than the test, so the packets can only be sent together
+        DevicePacketQueue queue = new DevicePacketQueue(device, true, TimeUnit.MINUTES.toMillis(10));
+        try {
+            queue.addPacket(new NetworkPacket("kdeconnect.notification"), -1, callback);
+            queue.addPacket(new NetworkPacket("kdeconnect.battery"), -1, callback);
+            queue.addPacket(new NetworkPacket("kdeconnect.mousepad.request"), -1, callback);
+
+            assertTrue(sent.await(5, TimeUnit.SECONDS));
+            assertEquals(1, batchSizes.size());
+            assertEquals(3, (int) batchSizes.get(0));
+        } finally {
+            queue.disconnected();
+        }
+    }
+}
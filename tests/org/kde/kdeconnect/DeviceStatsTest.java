@@ -3,72 +3,75 @@ package org.kde.kdeconnect;
 import org.junit.Assert;
 import org.junit.Test;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-
 public class DeviceStatsTest {
 
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+    private static final long NOW = 1000 * DAY_MILLIS;
+
+    @Test
+    public void eventsAreCounted() {
+        DeviceStats.PacketTypeStats stats = new DeviceStats.PacketTypeStats();
+        stats.countReceived(NOW - DAY_MILLIS / 2, 100);
+        stats.countReceived(NOW, 0);
+        stats.countSent(NOW, true, 50, 2);
+        stats.countSent(NOW, false, 70, 2);
+        DeviceStats.PacketStats.Summary summary = stats.summarize("kdeconnect.ping", NOW);
+        Assert.assertEquals(2, summary.received);
+        Assert.assertEquals(100, summary.receivedBytes);
+        Assert.assertEquals(1, summary.sentSuccessful);
+        Assert.assertEquals(1, summary.sentFailed);
+        Assert.assertEquals(50, summary.sentBytes);
+        Assert.assertEquals(4, summary.total);
+    }
+
+    @Test
+    public void oldEventsAreForgotten() {
+        DeviceStats.PacketTypeStats stats = new DeviceStats.PacketTypeStats();
+        stats.countReceived(NOW - DAY_MILLIS, 0);
+        stats.countReceived(NOW - DAY_MILLIS + DeviceStats.BUCKET_MILLIS, 0);
+        DeviceStats.PacketStats.Summary summary = stats.summarize("kdeconnect.ping", NOW);
+        Assert.assertEquals(1, summary.received);
+    }
+
     @Test
-    public void removeOldEvents_cutoutExists() {
-        final String key = "kdeconnect.ping";
-        HashMap<String, ArrayList<Long>> eventsByType = new HashMap<>();
-        ArrayList<Long> events = new ArrayList<>();
-        eventsByType.put(key, events);
-        events.add(10L);
-        events.add(20L);
-        events.add(30L);
-        final long cutout = 20L;
-        DeviceStats.removeOldEvents(eventsByType, cutout);
-        ArrayList<Long> eventsAfter = eventsByType.get(key);
-        Assert.assertNotNull(eventsAfter);
-        Assert.assertEquals(2, eventsAfter.size());
-        Assert.assertEquals(eventsAfter.get(0).longValue(), 20L);
-        Assert.assertEquals(eventsAfter.get(1).longValue(), 30L);
+    public void reusedBucketStartsFromZero() {
+        DeviceStats.PacketTypeStats stats = new DeviceStats.PacketTypeStats();
+        stats.countReceived(NOW - DAY_MILLIS, 0);
+        stats.countReceived(NOW - DAY_MILLIS, 0);
+        stats.countReceived(NOW, 0); // Same bucket, one day later
+        DeviceStats.PacketStats.Summary summary = stats.summarize("kdeconnect.ping", NOW);
+        Assert.assertEquals(1, summary.received);
     }
 
     @Test
-    public void removeOldEvents_cutoutDoesntExist() {
-        final String key = "kdeconnect.ping";
-        HashMap<String, ArrayList<Long>> eventsByType = new HashMap<>();
-        ArrayList<Long> events = new ArrayList<>();
-        eventsByType.put(key, events);
-        events.add(10L);
-        events.add(20L);
-        events.add(30L);
-        final long cutout = 25L;
-        DeviceStats.removeOldEvents(eventsByType, cutout);
-        ArrayList<Long> eventsAfter = eventsByType.get(key);
-        Assert.assertNotNull(eventsAfter);
-        Assert.assertEquals(1, eventsAfter.size());
-        Assert.assertEquals(eventsAfter.get(0).longValue(), 30L);
+    public void eventsFromThePastAreIgnored() {
+        DeviceStats.PacketTypeStats stats = new DeviceStats.PacketTypeStats();
+        stats.countReceived(NOW, 0);
+        stats.countReceived(NOW - DAY_MILLIS, 0); // Clock went backwards
+        DeviceStats.PacketStats.Summary summary = stats.summarize("kdeconnect.ping", NOW);
+        Assert.assertEquals(1, summary.received);
     }
 
     @Test
-    public void removeOldEvents_OnlyOldEvents() {
-        final String key = "kdeconnect.ping";
-        HashMap<String, ArrayList<Long>> eventsByType = new HashMap<>();
-        ArrayList<Long> events = new ArrayList<>();
-        eventsByType.put(key, events);
-        events.add(10L);
-        events.add(20L);
-        final long cutout = 25L;
-        DeviceStats.removeOldEvents(eventsByType, cutout);
-        ArrayList<Long> eventsAfter = eventsByType.get(key);
-        Assert.assertNull(eventsAfter);
+    public void sendTimesGoToTheirBin() {
+        Assert.assertEquals(0, DeviceStats.histogramBin(0));
+        Assert.assertEquals(1, DeviceStats.histogramBin(1));
+        Assert.assertEquals(1, DeviceStats.histogramBin(3));
+        Assert.assertEquals(2, DeviceStats.histogramBin(4));
+        Assert.assertEquals(DeviceStats.SEND_MILLIS_BINS.length, DeviceStats.histogramBin(Long.MAX_VALUE));
     }
 
     @Test
-    public void removeOldEvents_OnlyNewEvents() {
-        final String key = "kdeconnect.ping";
-        HashMap<String, ArrayList<Long>> eventsByType = new HashMap<>();
-        ArrayList<Long> events = new ArrayList<>();
-        eventsByType.put(key, events);
-        events.add(10L);
-        final long cutout = 5L;
-        DeviceStats.removeOldEvents(eventsByType, cutout);
-        ArrayList<Long> eventsAfter = eventsByType.get(key);
-        Assert.assertNotNull(eventsAfter);
-        Assert.assertEquals(1, eventsAfter.size());
-        Assert.assertEquals(eventsAfter.get(0).longValue(), 10L);
+    public void sendTimePercentiles() {
+        DeviceStats.PacketTypeStats stats = new DeviceStats.PacketTypeStats();
+        for (int i = 0; i < 98; i++) {
+            stats.countSent(NOW, true, 0, 2);
+        }
+        stats.countSent(NOW, true, 0, 100);
+        stats.countSent(NOW, true, 0, 10000);
+        DeviceStats.PacketStats.Summary summary = stats.summarize("kdeconnect.ping", NOW);
+        Assert.assertEquals(4, summary.sendMillisPercentile(0.5));
+        Assert.assertEquals(256, summary.sendMillisPercentile(0.99));
+        Assert.assertEquals(-1, summary.sendMillisPercentile(1));
     }
 }
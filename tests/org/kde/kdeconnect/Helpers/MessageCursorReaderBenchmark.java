@@ -0,0 +1,232 @@
+/*
+ * SPDX-FileCopyrightText: 2023 KDE Connect contributors
+ *
+ * SPDX-License-Identifier: GPL-2.0-only OR GPL-3.0-only OR LicenseRef-KDE-Accepted-GPL
+ */
+
+package org.kde.kdeconnect.Helpers;
+
+import android.content.ContentResolver;
+import android.database.CharArrayBuffer;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.net.Uri;
+import android.os.Bundle;
+import android.provider.Telephony;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading SMS rows with {@link MessageCursorReader} against the map of column names to
+ * strings SMSHelper used to build for every row, over an in-memory cursor.
+ * <p>
+ * Not run as part of the tests, run {@link #main(String[])} instead.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageCursorReaderBenchmark {
+
+    private static final int ROWS = 10000;
+
+    /**
+     * A cursor over rows kept in memory. Numbers are stored as such, like SQLite does, so reading
+     * them as strings has the same cost of converting them.
+     */
+    static class InMemoryCursor implements Cursor {
+        private final String[] columnNames;
+        private final Object[][] rows;
+        private int position = -1;
+
+        InMemoryCursor(String[] columnNames, Object[][] rows) {
+            this.columnNames = columnNames;
+            this.rows = rows;
+        }
+
+        @Override public int getCount() { return rows.length; }
+        @Override public int getPosition() { return position; }
+        @Override public boolean move(int offset) { return moveToPosition(position + offset); }
+        @Override public boolean moveToPosition(int position) {
+            this.position = Math.max(-1, Math.min(rows.length, position));
+            return this.position >= 0 && this.position < rows.length;
+        }
+        @Override public boolean moveToFirst() { return moveToPosition(0); }
+        @Override public boolean moveToLast() { return moveToPosition(rows.length - 1); }
+        @Override public boolean moveToNext() { return moveToPosition(position + 1); }
+        @Override public boolean moveToPrevious() { return moveToPosition(position - 1); }
+        @Override public boolean isFirst() { return position == 0 && rows.length > 0; }
+        @Override public boolean isLast() { return position == rows.length - 1 && rows.length > 0; }
+        @Override public boolean isBeforeFirst() { return position < 0 || rows.length == 0; }
+        @Override public boolean isAfterLast() { return position >= rows.length || rows.length == 0; }
+
+        @Override public int getColumnIndex(String columnName) {
+            for (int i = 0; i < columnNames.length; i++) {
+                if (columnNames[i].equals(columnName)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        @Override public int getColumnIndexOrThrow(String columnName) {
+            int index = getColumnIndex(columnName);
+            if (index < 0) {
+                throw new IllegalArgumentException("No column " + columnName);
+            }
+            return index;
+        }
+        @Override public String getColumnName(int columnIndex) { return columnNames[columnIndex]; }
+        @Override public String[] getColumnNames() { return columnNames; }
+        @Override public int getColumnCount() { return columnNames.length; }
+
+        @Override public byte[] getBlob(int columnIndex) { throw new UnsupportedOperationException(); }
+        @Override public String getString(int columnIndex) {
+            Object value = rows[position][columnIndex];
+            return value == null ? null : value.toString();
+        }
+        @Override public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) { throw new UnsupportedOperationException(); }
+        @Override public short getShort(int columnIndex) { return (short) getLong(columnIndex); }
+        @Override public int getInt(int columnIndex) { return (int) getLong(columnIndex); }
+        @Override public long getLong(int columnIndex) {
+            Object value = rows[position][columnIndex];
+            return value instanceof Long ? (Long) value : NumberUtils.toLong((String) value);
+        }
+        @Override public float getFloat(int columnIndex) { return getLong(columnIndex); }
+        @Override public double getDouble(int columnIndex) { return getLong(columnIndex); }
+        @Override public int getType(int columnIndex) {
+            Object value = rows[position][columnIndex];
+            return value == null ? FIELD_TYPE_NULL : value instanceof Long ? FIELD_TYPE_INTEGER : FIELD_TYPE_STRING;
+        }
+        @Override public boolean isNull(int columnIndex) { return rows[position][columnIndex] == null; }
+
+        @Override public void deactivate() {}
+        @Override public boolean requery() { return false; }
+        @Override public void close() {}
+        @Override public boolean isClosed() { return false; }
+        @Override public void registerContentObserver(ContentObserver observer) {}
+        @Override public void unregisterContentObserver(ContentObserver observer) {}
+        @Override public void registerDataSetObserver(DataSetObserver observer) {}
+        @Override public void unregisterDataSetObserver(DataSetObserver observer) {}
+        @Override public void setNotificationUri(ContentResolver cr, Uri uri) {}
+        @Override public Uri getNotificationUri() { return null; }
+        @Override public boolean getWantsAllOnMoveCalls() { return false; }
+        @Override public void setExtras(Bundle extras) {}
+        @Override public Bundle getExtras() { return null; }
+        @Override public Bundle respond(Bundle extras) { return null; }
+    }
+
+    private InMemoryCursor cursor;
+
+    @Setup
+    public void setup() {
+        // The columns read by getMessagesWithIDs from the SMS database
+        String[] columns = Arrays.copyOf(SMSHelper.Message.smsColumns, SMSHelper.Message.smsColumns.length + 1);
+        columns[columns.length - 1] = Telephony.Sms.SUBSCRIPTION_ID;
+        Object[][] rows = new Object[ROWS][];
+        for (int i = 0; i < ROWS; i++) {
+            HashMap<String, Object> row = new HashMap<>();
+            row.put(Telephony.Sms.ADDRESS, "+1555" + (1000000 + i % 200));
+            row.put(Telephony.Sms.BODY, "Message number " + i + ", long enough to look like a real one");
+            row.put(Telephony.Sms.DATE, 1690000000000L + i * 60000L);
+            row.put(Telephony.Sms.TYPE, (long) (i % 2 + 1));
+            row.put(Telephony.Sms.READ, 1L);
+            row.put(Telephony.Sms.THREAD_ID, (long) (i % 200));
+            row.put(Telephony.Sms._ID, (long) i);
+            row.put(Telephony.Sms.SUBSCRIPTION_ID, 1L);
+            rows[i] = new Object[columns.length];
+            for (int column = 0; column < columns.length; column++) {
+                rows[i][column] = row.get(columns[column]);
+            }
+        }
+        cursor = new InMemoryCursor(columns, rows);
+    }
+
+    @Benchmark
+    public List<SMSHelper.Message> cursorReader() {
+        List<SMSHelper.Message> messages = new ArrayList<>(ROWS);
+        cursor.moveToFirst();
+        MessageCursorReader reader = new MessageCursorReader(cursor);
+        do {
+            messages.add(reader.readSMS());
+        } while (cursor.moveToNext());
+        return messages;
+    }
+
+    @Benchmark
+    public List<SMSHelper.Message> mapPerRow() {
+        List<SMSHelper.Message> messages = new ArrayList<>(ROWS);
+        cursor.moveToFirst();
+        do {
+            // What getMessages did before MessageCursorReader
+            HashMap<String, String> messageInfo = new HashMap<>();
+            for (int columnIdx = 0; columnIdx < cursor.getColumnCount(); columnIdx++) {
+                messageInfo.put(cursor.getColumnName(columnIdx), cursor.getString(columnIdx));
+            }
+            messages.add(parseSMS(messageInfo));
+        } while (cursor.moveToNext());
+        return messages;
+    }
+
+    /**
+     * The implementation of SMSHelper.parseSMS before MessageCursorReader
+     */
+    private static SMSHelper.Message parseSMS(HashMap<String, String> messageInfo) {
+        List<SMSHelper.Address> address = Collections.singletonList(new SMSHelper.Address(messageInfo.get(Telephony.Sms.ADDRESS)));
+        String maybeBody = messageInfo.getOrDefault(SMSHelper.Message.BODY, "");
+        String body = maybeBody != null ? maybeBody : "";
+        long date = NumberUtils.toLong(messageInfo.getOrDefault(SMSHelper.Message.DATE, null));
+        int type = NumberUtils.toInt(messageInfo.getOrDefault(SMSHelper.Message.TYPE, null));
+        int read = NumberUtils.toInt(messageInfo.getOrDefault(SMSHelper.Message.READ, null));
+        SMSHelper.ThreadID threadID = new SMSHelper.ThreadID(NumberUtils.toLong(messageInfo.getOrDefault(SMSHelper.Message.THREAD_ID, null), SMSHelper.ThreadID.invalidThreadId.threadID));
+        long uID = NumberUtils.toLong(messageInfo.getOrDefault(SMSHelper.Message.U_ID, null));
+        int subscriptionID = NumberUtils.toInt(messageInfo.getOrDefault(SMSHelper.Message.SUBSCRIPTION_ID, null));
+
+        boolean anyNulls = Arrays.stream(new String[] {
+                        Telephony.Sms.ADDRESS,
+                        SMSHelper.Message.BODY,
+                        SMSHelper.Message.DATE,
+                        SMSHelper.Message.TYPE,
+                        SMSHelper.Message.READ,
+                        SMSHelper.Message.THREAD_ID,
+                        SMSHelper.Message.U_ID })
+                .map(key -> messageInfo.getOrDefault(key, null))
+                .anyMatch(Objects::isNull);
+        if (anyNulls) {
+            throw new IllegalStateException("The benchmark data shouldn't have nulls");
+        }
+
+        return new SMSHelper.Message(address, body, date, type, read, threadID, uID,
+                SMSHelper.Message.EVENT_TEXT_MESSAGE, subscriptionID, null);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(MessageCursorReaderBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
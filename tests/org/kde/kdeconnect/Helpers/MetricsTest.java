@@ -0,0 +1,53 @@
+package org.kde.kdeconnect.Helpers;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+public class MetricsTest {
+
+    @Test
+    public void histogramPercentiles() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        for (int i = 0; i < 90; i++) {
+            histogram.record(3);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(1000);
+        }
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(90 * 3 + 10 * 1000, histogram.getSum());
+        Assert.assertEquals(1000, histogram.getMax());
+        Assert.assertEquals(3, histogram.getPercentile(0.5));
+        Assert.assertEquals(3, histogram.getPercentile(0.9));
+        Assert.assertEquals(1000, histogram.getPercentile(0.99));
+    }
+
+    @Test
+    public void histogramExtremes() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        Assert.assertEquals(0, histogram.getPercentile(0.5));
+        Assert.assertEquals(Long.MAX_VALUE, histogram.getPercentile(1));
+    }
+
+    @Test
+    public void sameNameSameMetric() {
+        Assert.assertSame(Metrics.counter("test.same"), Metrics.counter("test.same"));
+        Assert.assertSame(Metrics.timer("test.same"), Metrics.timer("test.same"));
+    }
+
+    @Test
+    public void snapshotListsMetrics() throws IOException {
+        Metrics.counter("test.snapshot.counter").add(3);
+        Metrics.timer("test.snapshot.timer").record(2000);
+        StringWriter writer = new StringWriter();
+        Metrics.writeTo(writer);
+        String snapshot = writer.toString();
+        Assert.assertTrue(snapshot.contains("test.snapshot.counter count=3\n"));
+        Assert.assertTrue(snapshot.contains("test.snapshot.timer_us count=1 mean=2 "));
+    }
+}
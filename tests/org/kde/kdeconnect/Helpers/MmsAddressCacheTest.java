@@ -0,0 +1,52 @@
+package org.kde.kdeconnect.Helpers;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+
+public class MmsAddressCacheTest {
+
+    private static MmsAddressCache.Entry entry(String from) {
+        return new MmsAddressCache.Entry(new SMSHelper.Address(from), Collections.emptyList());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        MmsAddressCache cache = new MmsAddressCache(2);
+        cache.put(1, entry("1"));
+        cache.put(2, entry("2"));
+        Assert.assertNotNull(cache.get(1)); // Now 2 is the least recently used
+        cache.put(3, entry("3"));
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals("1", cache.get(1).from.address);
+        Assert.assertNull(cache.get(2));
+        Assert.assertEquals("3", cache.get(3).from.address);
+    }
+
+    @Test
+    public void removeAndClear() {
+        MmsAddressCache cache = new MmsAddressCache(10);
+        cache.put(1, entry("1"));
+        cache.put(2, entry("2"));
+        cache.remove(1);
+        Assert.assertNull(cache.get(1));
+        Assert.assertNotNull(cache.get(2));
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+        MmsAddressCache cache = new MmsAddressCache(10);
+        long hits = Metrics.counter("sms.mms_addresses.hit").get();
+        long misses = Metrics.counter("sms.mms_addresses.miss").get();
+        cache.put(1, entry("1"));
+        cache.get(1);
+        cache.get(1);
+        cache.get(2);
+        Assert.assertEquals(hits + 2, Metrics.counter("sms.mms_addresses.hit").get());
+        Assert.assertEquals(misses + 1, Metrics.counter("sms.mms_addresses.miss").get());
+    }
+}
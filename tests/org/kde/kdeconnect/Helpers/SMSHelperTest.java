@@ -0,0 +1,34 @@
+package org.kde.kdeconnect.Helpers;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class SMSHelperTest {
+
+    private static SMSHelper.Message message(List<SMSHelper.Address> addresses, String body, List<SMSHelper.Attachment> attachments) {
+        return new SMSHelper.Message(addresses, body, 0, 1, 1, new SMSHelper.ThreadID(1), 1,
+                SMSHelper.Message.EVENT_TEXT_MESSAGE, 0, attachments);
+    }
+
+    @Test
+    public void estimateSerializedSizeGrowsWithTheContent() {
+        SMSHelper.Message small = message(Collections.singletonList(new SMSHelper.Address("123")), "Hi", null);
+        SMSHelper.Message big = message(
+                Arrays.asList(new SMSHelper.Address("123"), new SMSHelper.Address("456")),
+                "Hello there",
+                Collections.singletonList(new SMSHelper.Attachment(1, "image/jpeg", "AAAA", "1")));
+        Assert.assertTrue(small.estimateSerializedSize() > "Hi".length());
+        Assert.assertTrue(big.estimateSerializedSize() > small.estimateSerializedSize() + "AAAA".length());
+    }
+
+    @Test
+    public void estimateSerializedSizeWithMissingFields() {
+        SMSHelper.Message message = message(Collections.singletonList(new SMSHelper.Address(null)), null,
+                Collections.singletonList(new SMSHelper.Attachment(1, "image/jpeg", null, "1")));
+        Assert.assertTrue(message.estimateSerializedSize() > 0);
+    }
+}
@@ -9,6 +9,7 @@ package org.kde.kdeconnect;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 
 import android.util.Log;
@@ -26,6 +27,8 @@ import org.powermock.modules.junit4.PowerMockRunner;
 
 import java.security.cert.Certificate;
 
+import kotlin.text.Charsets;
+
 @RunWith(PowerMockRunner.class)
 @PrepareForTest({DeviceHelper.class, Log.class})
 public class NetworkPacketTest {
@@ -68,6 +71,70 @@ public class NetworkPacketTest {
 
     }
 
+    @Test
+    public void testSerializationFormat() throws JSONException {
+        NetworkPacket np = new NetworkPacket("com.test");
+        np.set("url", "https://kde.org/");
+        np.set("text", "\"quoted\"\n\u00e9\u20ac\ud83d\ude00");
+        np.set("number", 42);
+
+        String serialized = np.serialize();
+        // Slashes are not escaped, like QJson does
+        assertTrue(serialized.contains("\"url\":\"https://kde.org/\""));
+        assertTrue(serialized.endsWith("}\n"));
+        assertEquals(serialized, new String(np.serializeToBytes(), Charsets.UTF_8));
+
+        NetworkPacket np2 = NetworkPacket.unserialize(serialized);
+        assertEquals(np.getId(), np2.getId());
+        assertEquals(np.getType(), np2.getType());
+        assertEquals(serialized, np2.serialize()); // Re-serializing an untouched body gives back the same bytes
+        assertEquals("https://kde.org/", np2.getString("url"));
+        assertEquals("\"quoted\"\n\u00e9\u20ac\ud83d\ude00", np2.getString("text"));
+        assertEquals(42, np2.getInt("number"));
+
+        String json = "{\"type\":\"test\",\"unknown\":[1,{\"a\":null}],\"id\":\"7\",\"body\":{},\"payloadSize\":10,\"payloadTransferInfo\":{\"port\":1739}}";
+        NetworkPacket np3 = NetworkPacket.unserialize(json);
+        assertEquals(7, np3.getId());
+        assertEquals(10, np3.getPayloadSize());
+        assertEquals(1739, np3.getPayloadTransferInfo().optInt("port"));
+    }
+
+    @Test(expected = JSONException.class)
+    public void testUnserializeInvalidBody() throws JSONException {
+        NetworkPacket.unserialize("{\"id\":1,\"type\":\"test\",\"body\":{\"a\":}}");
+    }
+
+    @Test
+    public void testUnserializeInvalidValues() {
+        String[] invalidValues = { "1-2", "--1", "1.", ".5", "01", "1e", "1e+", "1.2.3", "+1", "-", "1e999", "\"\\u12\"" };
+        for (String value : invalidValues) {
+            try {
+                NetworkPacket.unserialize("{\"id\":1,\"type\":\"test\",\"body\":{\"a\":" + value + "}}");
+                fail("Accepted invalid value " + value);
+            } catch (JSONException ignored) {
+            }
+        }
+    }
+
+    @Test
+    public void testUnserializeTrailingData() throws JSONException {
+        String packet = "{\"id\":1,\"type\":\"test\",\"body\":{\"a\":1}}";
+        assertEquals(1, NetworkPacket.unserialize(packet + " \r\n").getInt("a"));
+        try {
+            NetworkPacket.unserialize(packet + " garbage");
+            fail("Accepted data after the end of the packet");
+        } catch (JSONException ignored) {
+        }
+    }
+
+    @Test
+    public void testUnserializeValidNumbers() throws JSONException {
+        NetworkPacket np = NetworkPacket.unserialize("{\"id\":1,\"type\":\"test\",\"body\":{\"a\":-0,\"b\":12.5e-3,\"c\":[1E2,0.5],\"d\":12345678901234567890}}");
+        assertEquals(0, np.getInt("a"));
+        assertEquals(0.0125, np.getDouble("b"), 0);
+        assertEquals(100, np.getJSONArray("c").optInt(0));
+    }
+
     @Test
     public void testIdentity() {
         Certificate cert = Mockito.mock(Certificate.class);